@@ -3,6 +3,7 @@ package network.multicore.vt;
 import com.google.common.base.Preconditions;
 import com.zaxxer.hikari.HikariConfig;
 import dev.dejvokep.boostedyaml.YamlDocument;
+import dev.dejvokep.boostedyaml.block.implementation.Section;
 import dev.dejvokep.boostedyaml.dvs.versioning.BasicVersioning;
 import dev.dejvokep.boostedyaml.settings.dumper.DumperSettings;
 import dev.dejvokep.boostedyaml.settings.general.GeneralSettings;
@@ -15,15 +16,26 @@ import net.milkbowl.vault.economy.Economy;
 import network.multicore.vt.commands.TownChatCommand;
 import network.multicore.vt.commands.TownCommand;
 import network.multicore.vt.commands.VanillaTownsCommand;
+import network.multicore.vt.data.LogTownRepository;
 import network.multicore.vt.data.Town;
+import network.multicore.vt.data.TownMigrations;
 import network.multicore.vt.data.TownRepository;
+import network.multicore.vt.data.TownStore;
 import network.multicore.vt.listeners.CacheListener;
 import network.multicore.vt.listeners.OnPlayerMoveListener;
+import network.multicore.vt.listeners.PermissionCacheListener;
 import network.multicore.vt.persistence.Database;
 import network.multicore.vt.persistence.HibernateHbm2DdlAutoMode;
 import network.multicore.vt.persistence.PrefixNamingStrategy;
+import network.multicore.vt.persistence.UuidStorage;
 import network.multicore.vt.persistence.datasource.DataSourceProvider;
-import network.multicore.vt.persistence.entity.entities.PackageEntities;
+import network.multicore.vt.persistence.datasource.DataSourceType;
+import network.multicore.vt.persistence.datasource.H2Snapshots;
+import network.multicore.vt.persistence.datasource.RoutingDataSource;
+import network.multicore.vt.persistence.entity.EntityRepository;
+import network.multicore.vt.persistence.entity.entities.IndexedEntities;
+import network.multicore.vt.persistence.migration.Migration;
+import network.multicore.vt.persistence.migration.SchemaMigrator;
 import network.multicore.vt.utils.*;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
@@ -31,14 +43,22 @@ import org.bukkit.event.HandlerList;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.RegisteredServiceProvider;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.hibernate.stat.Statistics;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.sql.SQLException;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 
 
 /**
@@ -66,10 +86,11 @@ public class VanillaTowns extends JavaPlugin {
     public static final ConcurrentMap<Player, HomeTeleportRequest> TELEPORTS = new ConcurrentHashMap<>();
     public static final ConcurrentMap<Player, Date> TELEPORT_COOLDOWN = new ConcurrentHashMap<>();
     private Economy eco;
-    private YamlDocument config;
-    private Database db;
-    private TownRepository townRepository;
+    private volatile YamlDocument config;
+    private volatile Settings settings;
+    private volatile Storage storage;
     private Integer cooldownTask = null;
+    private Integer snapshotTask = null;
     private boolean firstRun = true;
 
     public VanillaTowns() {
@@ -86,16 +107,18 @@ public class VanillaTowns extends JavaPlugin {
         }
 
         try {
-            initConfig();
-        } catch (IOException e) {
+            YamlDocument newConfig = loadConfig();
+            settings = Settings.load(newConfig);
+            config = newConfig;
+        } catch (IOException | IllegalArgumentException e) {
             Text.severe("<red>Cannot load config.yml file: " + e.getMessage());
             onDisable();
             return;
         }
 
         try {
-            initStorage();
-        } catch (IOException | IllegalArgumentException e) {
+            storage = createStorage(config, null);
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
             Text.severe("<red>Cannot initialize storage: " + e.getMessage());
             onDisable();
             return;
@@ -105,7 +128,10 @@ public class VanillaTowns extends JavaPlugin {
 
         Messages.init(this);
 
+        PermissionCache.init(this);
+
         getServer().getPluginManager().registerEvents(new CacheListener(), this);
+        getServer().getPluginManager().registerEvents(new PermissionCacheListener(), this);
         getServer().getPluginManager().registerEvents(new OnPlayerMoveListener(), this);
 
         registerCommands();
@@ -114,21 +140,8 @@ public class VanillaTowns extends JavaPlugin {
 
         Text.info("<dark_green>VanillaTowns loaded and enabled!");
 
-        int teleportCooldown = config.getInt("teleport-cooldown", 0);
-        if (teleportCooldown > 0) {
-            cooldownTask = getServer().getScheduler().scheduleAsyncRepeatingTask(this, () -> {
-                Date now = new Date();
-
-                List<Player> toRemove = new ArrayList<>();
-                for (Map.Entry<Player, Date> entry : TELEPORT_COOLDOWN.entrySet()) {
-                    if (now.getTime() - entry.getValue().getTime() > (long) teleportCooldown * 1000) {
-                        toRemove.add(entry.getKey());
-                    }
-                }
-
-                toRemove.forEach(TELEPORT_COOLDOWN::remove);
-            }, 0L, 20L);
-        }
+        scheduleCooldownTask();
+        scheduleSnapshotTask();
 
         firstRun = false;
     }
@@ -137,38 +150,153 @@ public class VanillaTowns extends JavaPlugin {
     public void onDisable() {
         HandlerList.unregisterAll(this);
 
-        if (cooldownTask != null) getServer().getScheduler().cancelTask(cooldownTask);
+        if (cooldownTask != null) {
+            getServer().getScheduler().cancelTask(cooldownTask);
+            cooldownTask = null;
+        }
 
-        try {
-            if (db != null) db.close();
-        } catch (Throwable ignored) {
+        if (snapshotTask != null) {
+            getServer().getScheduler().cancelTask(snapshotTask);
+            snapshotTask = null;
+        }
+
+        Storage current = storage;
+        storage = null;
+
+        if (current != null) {
+            try {
+                Database db = current.db();
+                if (db != null) {
+                    Statistics statistics = db.getStatistics();
+                    if (db.isSecondLevelCacheEnabled() && statistics.isStatisticsEnabled()) {
+                        Text.info("Cache statistics: <aqua>" + statistics.getSecondLevelCacheHitCount() + "<reset> hits, <aqua>" + statistics.getSecondLevelCacheMissCount()
+                                + "<reset> misses, <aqua>" + statistics.getSecondLevelCachePutCount() + "<reset> puts");
+                    }
+                }
+            } catch (Throwable ignored) {
+            }
+
+            closeStorage(current, true);
         }
 
         Text.info("<dark_red>VanillaTowns disabled!");
     }
 
+    /**
+     * Reload config.yml without restarting the plugin.
+     * Messages, settings and permissions are always rebuilt, while the database is rebuilt only if the storage settings changed.
+     * Otherwise the entity manager, the connection pool and the cached towns are kept.
+     * <p>
+     * The new config and storage are fully built before replacing the current ones, so that a failed reload leaves the plugin
+     * running as before. A replaced storage is closed in the background once the async work using it is done.
+     *
+     * @throws IOException              if config.yml cannot be read.
+     * @throws IllegalArgumentException if config.yml or the new storage settings are invalid.
+     */
+    public void reload() throws IOException, IllegalArgumentException {
+        YamlDocument newConfig = loadConfig();
+        Settings newSettings = Settings.load(newConfig);
+        Storage oldStorage = storage;
+        Storage newStorage = oldStorage;
+        boolean replaced = !storageSettings(config).equals(storageSettings(newConfig));
+        // The writes to an in-memory database are stopped until it's replaced, so that its final snapshot holds all of them
+        Lock retiring = replaced && oldStorage != null && oldStorage.snapshots() != null ? oldStorage.users().writeLock() : null;
+        if (retiring != null) retiring.lock();
+
+        try {
+            if (replaced) {
+                try {
+                    newStorage = createStorage(newConfig, oldStorage);
+                } catch (NoClassDefFoundError e) {
+                    // Only the driver of the storage type configured at startup is on the classpath
+                    throw new IllegalStateException("The database driver for the new storage type is not loaded, restart the server to apply it");
+                }
+            }
+
+            config = newConfig;
+            settings = newSettings;
+            storage = newStorage;
+        } finally {
+            if (retiring != null) retiring.unlock();
+        }
+
+        Messages.init(this);
+        PermissionCache.init(this);
+
+        if (newStorage != oldStorage) {
+            // A new in-memory database has been loaded from the final snapshot of the old one, which is not taken again
+            boolean snapshotted = oldStorage != null && oldStorage.snapshots() != null && newStorage.snapshots() != null;
+            scheduleSnapshotTask();
+            Cache.get().reload();
+            getServer().getScheduler().runTaskAsynchronously(this, () -> closeStorage(oldStorage, !snapshotted));
+            Text.info("Storage settings changed, database reloaded");
+        }
+
+        scheduleCooldownTask();
+    }
+
     public YamlDocument config() {
         return config;
     }
 
-    public TownRepository townRepository() {
-        return townRepository;
+    /**
+     * Get the typed snapshot of config.yml.
+     * The snapshot is replaced as a whole when the config is reloaded, so callers should not keep a reference to it.
+     *
+     * @return The current settings.
+     */
+    public Settings settings() {
+        return settings;
+    }
+
+    public TownStore townRepository() {
+        Storage current = storage;
+        return current != null ? current.towns() : null;
+    }
+
+    /**
+     * Use the town storage from a thread other than the main one, such as for a PlaceholderAPI request.
+     * A reload that replaces the storage waits for the work to be done before closing the storage it has been given.
+     *
+     * @param work The work, which must not keep the storage.
+     * @param <R>  The type of the result.
+     * @return The result of the work.
+     * @throws IllegalStateException If the plugin is disabled.
+     */
+    public <R> R useTownStore(@NotNull Function<TownStore, R> work) {
+        Preconditions.checkNotNull(work, "work");
+
+        while (true) {
+            Storage current = storage;
+            if (current == null) throw new IllegalStateException("Storage not available");
+
+            Lock lock = current.users().readLock();
+            // Waits only while the storage is being closed, after a reload has replaced it
+            lock.lock();
+
+            try {
+                // Replaced by a reload between reading it and locking it: its writes would be lost
+                if (storage != current) continue;
+                return work.apply(current.towns());
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 
     public boolean hasPermission(@NotNull Player player, @NotNull String permission) {
         Preconditions.checkNotNull(player, "player");
         Preconditions.checkNotNull(permission, "permission");
 
-        return player.hasPermission(permission) ||
-                player.hasPermission("vanillatowns.player") ||
-                player.hasPermission("vanillatowns.staff");
+        return PermissionCache.get().hasPlayerPermission(player, permission);
     }
 
     public boolean hasStaffPermission(@NotNull CommandSender sender, @NotNull String permission) {
         Preconditions.checkNotNull(sender, "sender");
         Preconditions.checkNotNull(permission, "permission");
 
-        return sender.hasPermission(permission) || sender.hasPermission("vanillatowns.staff");
+        if (sender instanceof Player player) return PermissionCache.get().hasStaffPermission(player, permission);
+        return sender.hasPermission(permission) || sender.hasPermission(PermissionCache.STAFF);
     }
 
     public boolean hasEnoughMoney(Player player, double amount) {
@@ -191,13 +319,13 @@ public class VanillaTowns extends JavaPlugin {
         return eco != null;
     }
 
-    private void initConfig() throws IOException {
+    private YamlDocument loadConfig() throws IOException {
         if (!getDataFolder().exists() || !getDataFolder().isDirectory()) {
             if (!getDataFolder().mkdir()) throw new IOException("Failed to create plugin data folder");
         }
 
         try (InputStream is = getClass().getClassLoader().getResourceAsStream("config.yml")) {
-            config = YamlDocument.create(
+            YamlDocument config = YamlDocument.create(
                     new File(getDataFolder(), "config.yml"),
                     Objects.requireNonNull(is),
                     GeneralSettings.DEFAULT,
@@ -209,19 +337,77 @@ public class VanillaTowns extends JavaPlugin {
                     UpdaterSettings.builder()
                             .setVersioning(new BasicVersioning("file-version"))
                             .setOptionSorting(UpdaterSettings.OptionSorting.SORT_BY_DEFAULTS)
+                            // Driver properties are free-form: keep the user's keys instead of dropping the ones missing from the defaults.
+                            // Keyed by the version of the user's file, and the section only exists from version 2
+                            .addIgnoredRoute("2", "data.properties", '.')
                             .build()
             );
 
             config.update();
             config.save();
+            return config;
+        }
+    }
+
+    private Map<String, Object> storageSettings(YamlDocument config) {
+        Map<String, Object> storageSettings = new HashMap<>();
+        storageSettings.put("storage-type", config.getString("storage-type"));
+
+        Section data = config.getSection("data");
+        if (data != null) {
+            data.getStringRouteMappedValues(true).forEach((route, value) -> {
+                if (!(value instanceof Section)) storageSettings.put("data." + route, value);
+            });
         }
+
+        return storageSettings;
+    }
+
+    private void scheduleCooldownTask() {
+        if (cooldownTask != null) {
+            getServer().getScheduler().cancelTask(cooldownTask);
+            cooldownTask = null;
+        }
+
+        if (settings.townHomeTeleportCooldown() <= 0) return;
+
+        cooldownTask = getServer().getScheduler().scheduleAsyncRepeatingTask(this, () -> {
+            Date now = new Date();
+            int teleportCooldown = settings.townHomeTeleportCooldown();
+
+            List<Player> toRemove = new ArrayList<>();
+            for (Map.Entry<Player, Date> entry : TELEPORT_COOLDOWN.entrySet()) {
+                if (now.getTime() - entry.getValue().getTime() > (long) teleportCooldown * 1000) {
+                    toRemove.add(entry.getKey());
+                }
+            }
+
+            toRemove.forEach(TELEPORT_COOLDOWN::remove);
+        }, 0L, 20L);
     }
 
-    private void initStorage() throws IOException {
+    /**
+     * Build the storage configured in the given config. Nothing is kept open if it fails.
+     *
+     * @param config   The config.
+     * @param previous The storage being replaced by a reload, if any. The caller must hold its write lock when it has snapshots.
+     */
+    private Storage createStorage(YamlDocument config, Storage previous) throws IOException {
         DataSourceProvider<?> provider;
+        H2Snapshots newSnapshots = null;
 
         String storageType = config.getString("storage-type");
 
+        if ("LOG".equals(storageType)) {
+            // Neither Hibernate nor a database driver is loaded for this storage
+            LogTownRepository log = new LogTownRepository(new File(getDataFolder(), "log"));
+            long start = System.nanoTime();
+            log.open();
+            Text.info("Loaded <aqua>" + log.count() + "<reset> towns from the log in <aqua>" + (System.nanoTime() - start) / 1_000_000 + "<reset> ms");
+
+            return new Storage(null, log, log, null);
+        }
+
         switch (storageType) {
             case "MySQL", "MariaDB", "PostgreSQL" -> {
                 String address = config.getString("data.address");
@@ -238,43 +424,39 @@ public class VanillaTowns extends JavaPlugin {
                 Preconditions.checkArgument(!database.isBlank(), "database must not be blank");
                 Preconditions.checkArgument(!username.isBlank(), "username must not be blank");
 
-                String host;
-                int port;
-
-                if (address.contains(":")) {
-                    String[] parts = address.split(":");
-
-                    try {
-                        host = parts[0];
-                        port = Integer.parseInt(parts[1]);
-                    } catch (Exception e) {
-                        throw new IllegalArgumentException("Invalid address format");
-                    }
+                DataSourceType type = switch (storageType) {
+                    case "MySQL" -> DataSourceType.MYSQL;
+                    case "MariaDB" -> DataSourceType.MARIADB;
+                    default -> DataSourceType.POSTGRESQL;
+                };
+                Map<String, String> properties = driverProperties(config, type.getDefaultProperties());
+                DataSourceProvider<?> primary = createRemoteProvider(config, type, address, database, username, password, properties, usePool);
+                List<String> replicaAddresses = config.getStringList("data.replicas");
+
+                if (replicaAddresses.isEmpty()) {
+                    provider = primary;
                 } else {
-                    host = address;
-                    port = storageType.equals("MySQL") || storageType.equals("MariaDB") ? DataSourceProvider.DEF_MYSQL_PORT : DataSourceProvider.DEF_POSTGRESQL_PORT;
-                }
+                    List<DataSourceProvider<?>> replicas = new ArrayList<>();
 
-                if (usePool) {
-                    HikariConfig poolConfig = new HikariConfig();
-                    poolConfig.setMaximumPoolSize(config.getInt("data.pool.maximum-pool-size"));
-                    poolConfig.setMinimumIdle(config.getInt("data.pool.minimum-idle"));
-                    poolConfig.setMaxLifetime(config.getLong("data.pool.maximum-lifetime"));
-                    poolConfig.setKeepaliveTime(config.getLong("data.pool.keepalive-time"));
-                    poolConfig.setConnectionTimeout(config.getLong("data.pool.connection-timeout"));
-
-                    switch (storageType) {
-                        case "MySQL" -> provider = DataSourceProvider.newMysqlHikariDataSourceProvider(host, port, database, username, password, poolConfig);
-                        case "MariaDB" -> provider = DataSourceProvider.newMariaDbHikariDataSourceProvider(host, port, database, username, password, poolConfig);
-                        case "PostgreSQL" -> provider = DataSourceProvider.newPostgreSqlHikariDataSourceProvider(host, port, database, username, password, poolConfig);
-                        default -> throw new IllegalArgumentException("Invalid storage type");
-                    }
-                } else {
-                    switch (storageType) {
-                        case "MySQL" -> provider = DataSourceProvider.newMysqlDataSourceProvider(host, port, database, username, password);
-                        case "MariaDB" -> provider = DataSourceProvider.newMariaDbDataSourceProvider(host, port, database, username, password);
-                        case "PostgreSQL" -> provider = DataSourceProvider.newPostgreSqlDataSourceProvider(host, port, database, username, password);
-                        default -> throw new IllegalArgumentException("Invalid storage type");
+                    try {
+                        RoutingDataSource.Selection selection;
+                        try {
+                            selection = RoutingDataSource.Selection.valueOf(config.getString("data.replica-selection", "ROUND_ROBIN").toUpperCase(Locale.ROOT));
+                        } catch (IllegalArgumentException e) {
+                            throw new IllegalArgumentException("Invalid replica selection");
+                        }
+
+                        for (String replicaAddress : replicaAddresses) {
+                            replicas.add(createRemoteProvider(config, type, replicaAddress, database, username, password, properties, usePool));
+                        }
+
+                        provider = DataSourceProvider.newRoutingDataSourceProvider(primary, replicas, selection);
+                    } catch (RuntimeException e) {
+                        if (primary.getDataSource() instanceof Closeable pool) pool.close();
+                        for (DataSourceProvider<?> replica : replicas) {
+                            if (replica.getDataSource() instanceof Closeable pool) pool.close();
+                        }
+                        throw e;
                     }
                 }
             }
@@ -286,7 +468,37 @@ public class VanillaTowns extends JavaPlugin {
                     }
                 }
 
-                provider = DataSourceProvider.newH2DataSourceProvider(dbFile);
+                Map<String, String> properties = driverProperties(config, DataSourceProvider.createH2Properties(config.getInt("data.embedded.h2-cache-size", 16384), config.getInt("data.embedded.h2-close-delay", 0)));
+
+                if (config.getBoolean("data.embedded.pool", true)) {
+                    provider = DataSourceProvider.newH2HikariDataSourceProvider(dbFile, properties, createEmbeddedPoolConfig(config));
+                } else {
+                    provider = DataSourceProvider.newH2DataSourceProvider(dbFile, properties);
+                }
+            }
+            case "H2-Memory" -> {
+                File snapshotFile = new File(getDataFolder(), "vanillatowns-h2-snapshot.sql.gz");
+                // A new name for every database, so that a reload doesn't reuse the one being replaced
+                String name = getName().toLowerCase(Locale.ROOT) + "-" + UUID.randomUUID();
+                Map<String, String> properties = driverProperties(config, Map.of());
+
+                try {
+                    // The database being replaced by a reload saves its last changes before they are loaded in the new one.
+                    // Its writes are stopped by the reload, so that this is its final snapshot
+                    if (previous != null && previous.snapshots() != null) previous.snapshots().snapshot();
+
+                    newSnapshots = new H2Snapshots(DataSourceProvider.newH2MemoryDataSourceProvider(name, properties).getDataSource(), snapshotFile);
+                    if (newSnapshots.restore()) Text.info("Loaded the database snapshot <aqua>" + snapshotFile.getName());
+
+                    if (config.getBoolean("data.embedded.pool", true)) {
+                        provider = DataSourceProvider.newH2MemoryHikariDataSourceProvider(name, properties, createEmbeddedPoolConfig(config));
+                    } else {
+                        provider = DataSourceProvider.newH2MemoryDataSourceProvider(name, properties);
+                    }
+                } catch (SQLException | RuntimeException e) {
+                    if (newSnapshots != null) newSnapshots.close();
+                    throw new IllegalStateException("Failed to load the database snapshot: " + e.getMessage(), e);
+                }
             }
             case "SQLite" -> {
                 File dbFile = new File(getDataFolder(), "velocitycompact-sqlite.db");
@@ -296,7 +508,13 @@ public class VanillaTowns extends JavaPlugin {
                     }
                 }
 
-                provider = DataSourceProvider.newSQLiteDataSourceProvider(dbFile);
+                Map<String, String> properties = driverProperties(config, DataSourceProvider.createSQLiteProperties(config.getLong("data.embedded.sqlite-mmap-size", 268435456L), config.getInt("data.embedded.sqlite-busy-timeout", 5000)));
+
+                if (config.getBoolean("data.embedded.pool", true)) {
+                    provider = DataSourceProvider.newSQLiteHikariDataSourceProvider(dbFile, properties, createEmbeddedPoolConfig(config));
+                } else {
+                    provider = DataSourceProvider.newSQLiteDataSourceProvider(dbFile, properties);
+                }
             }
             default -> {
                 Text.severe("Invalid storage type");
@@ -304,15 +522,182 @@ public class VanillaTowns extends JavaPlugin {
             }
         }
 
+        UuidStorage uuidStorage = config.getBoolean("data.binary-uuids", true) ? UuidStorage.BINARY : UuidStorage.STRING;
+
+        try {
+            List<Migration> applied = new SchemaMigrator(provider.getDataSource(), provider.getType(), uuidStorage).migrate(TownMigrations.all());
+            applied.forEach(migration -> Text.info("Applied database migration <aqua>V" + migration.getVersion() + "<reset>: " + migration.getDescription()));
+        } catch (IllegalStateException e) {
+            if (provider.getDataSource() instanceof Closeable pool) pool.close();
+            if (newSnapshots != null) newSnapshots.close();
+            throw e;
+        }
+
         Database.Builder builder = new Database.Builder();
         builder.persistenceUnitName(getName())
-                .hbm2ddlAuto(HibernateHbm2DdlAutoMode.UPDATE)
+                // The schema is kept up to date by the migrations, Hibernate at most checks it
+                .hbm2ddlAuto(config.getBoolean("data.validate-schema", false) ? HibernateHbm2DdlAutoMode.VALIDATE : HibernateHbm2DdlAutoMode.NONE)
                 .dataSourceProvider(provider)
-                .entities(new PackageEntities(Town.class.getPackageName()));
+                .uuidStorage(uuidStorage)
+                .entities(IndexedEntities.indexedOrScanned(getClass().getClassLoader(), Town.class.getPackageName()))
+                .statistics(config.getBoolean("data.cache.statistics", false));
+
+        if (config.getBoolean("data.cache.enabled", true)) {
+            builder.secondLevelCache(config.getLong("data.cache.maximum-size", 10000L), Duration.ofSeconds(config.getLong("data.cache.time-to-live", 600L)))
+                    .queryCache(config.getBoolean("data.cache.query-cache", false));
+        }
+
+        Database db;
+        try {
+            db = builder.build();
+        } catch (RuntimeException e) {
+            if (newSnapshots != null) newSnapshots.close();
+            throw e;
+        }
 
-        db = builder.build();
+        TownRepository repository = db.createRepository(TownRepository.class, Town.class);
+        repository.setBatchSize(config.getInt("data.batch-size", EntityRepository.DEFAULT_BATCH_SIZE));
 
-        townRepository = db.createRepository(TownRepository.class, Town.class);
+        return new Storage(db, repository, null, newSnapshots);
+    }
+
+    /**
+     * Close a storage that is not in use anymore, once the async work using it is done.
+     *
+     * @param snapshot Whether to write a final snapshot of an in-memory database, false if it has already been written.
+     */
+    private void closeStorage(Storage storage, boolean snapshot) {
+        Lock lock = storage.users().writeLock();
+        lock.lock();
+
+        try {
+            if (storage.snapshots() != null) closeSnapshots(storage.snapshots(), snapshot);
+
+            try {
+                if (storage.db() != null) storage.db().close();
+            } catch (Exception e) {
+                Text.severe("Cannot close the database: " + e.getMessage());
+            }
+
+            try {
+                // Also writes the last changes of the town log to the disk
+                if (storage.log() != null) storage.log().close();
+            } catch (Exception e) {
+                Text.severe("Cannot close the town log: " + e.getMessage());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the snapshots of the in-memory H2 database in the background, every data.embedded.snapshot-interval seconds.
+     */
+    private void scheduleSnapshotTask() {
+        if (snapshotTask != null) {
+            getServer().getScheduler().cancelTask(snapshotTask);
+            snapshotTask = null;
+        }
+
+        long interval = config.getLong("data.embedded.snapshot-interval", 300L);
+        H2Snapshots current = storage != null ? storage.snapshots() : null;
+        if (current == null || interval <= 0) return;
+
+        snapshotTask = getServer().getScheduler().scheduleAsyncRepeatingTask(this, () -> {
+            try {
+                current.snapshot();
+            } catch (SQLException | IOException e) {
+                Text.severe("Cannot write the database snapshot: " + e.getMessage());
+            }
+        }, interval * 20L, interval * 20L);
+    }
+
+    /**
+     * Write a last snapshot of the in-memory H2 database, unless told otherwise, and release it. Must be called before closing its {@link Database}.
+     */
+    private void closeSnapshots(H2Snapshots snapshots, boolean snapshot) {
+        if (snapshot) {
+            try {
+                snapshots.snapshot();
+            } catch (SQLException | IOException e) {
+                Text.severe("Cannot write the database snapshot: " + e.getMessage());
+            }
+        }
+
+        try {
+            snapshots.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Create the data source of a MySQL, MariaDB or PostgreSQL server, given as host or host:port.
+     */
+    private DataSourceProvider<?> createRemoteProvider(YamlDocument config, DataSourceType type, String address, String database, String username, String password, Map<String, String> properties, boolean usePool) {
+        Preconditions.checkArgument(!address.isBlank(), "address must not be blank");
+
+        String host;
+        int port;
+
+        if (address.contains(":")) {
+            String[] parts = address.split(":");
+
+            try {
+                host = parts[0];
+                port = Integer.parseInt(parts[1]);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Invalid address format");
+            }
+        } else {
+            host = address;
+            port = type == DataSourceType.POSTGRESQL ? DataSourceProvider.DEF_POSTGRESQL_PORT : DataSourceProvider.DEF_MYSQL_PORT;
+        }
+
+        if (usePool) {
+            HikariConfig poolConfig = new HikariConfig();
+            poolConfig.setMaximumPoolSize(config.getInt("data.pool.maximum-pool-size"));
+            poolConfig.setMinimumIdle(config.getInt("data.pool.minimum-idle"));
+            poolConfig.setMaxLifetime(config.getLong("data.pool.maximum-lifetime"));
+            poolConfig.setKeepaliveTime(config.getLong("data.pool.keepalive-time"));
+            poolConfig.setConnectionTimeout(config.getLong("data.pool.connection-timeout"));
+
+            return switch (type) {
+                case MYSQL -> DataSourceProvider.newMysqlHikariDataSourceProvider(host, port, database, username, password, properties, poolConfig);
+                case MARIADB -> DataSourceProvider.newMariaDbHikariDataSourceProvider(host, port, database, username, password, properties, poolConfig);
+                case POSTGRESQL -> DataSourceProvider.newPostgreSqlHikariDataSourceProvider(host, port, database, username, password, properties, poolConfig);
+                default -> throw new IllegalArgumentException("Invalid storage type");
+            };
+        } else {
+            return switch (type) {
+                case MYSQL -> DataSourceProvider.newMysqlDataSourceProvider(host, port, database, username, password, properties);
+                case MARIADB -> DataSourceProvider.newMariaDbDataSourceProvider(host, port, database, username, password, properties);
+                case POSTGRESQL -> DataSourceProvider.newPostgreSqlDataSourceProvider(host, port, database, username, password, properties);
+                default -> throw new IllegalArgumentException("Invalid storage type");
+            };
+        }
+    }
+
+    /**
+     * Merge the driver properties of the data.properties section over the given defaults.
+     */
+    private Map<String, String> driverProperties(YamlDocument config, Map<String, String> defaults) {
+        Map<String, String> properties = new LinkedHashMap<>(defaults);
+
+        Section section = config.getSection("data.properties");
+        if (section != null) {
+            section.getStringRouteMappedValues(false).forEach((key, value) -> {
+                if (!(value instanceof Section)) properties.put(key, String.valueOf(value));
+            });
+        }
+
+        return properties;
+    }
+
+    private HikariConfig createEmbeddedPoolConfig(YamlDocument config) {
+        HikariConfig poolConfig = new HikariConfig();
+        poolConfig.setConnectionTimeout(config.getLong("data.pool.connection-timeout"));
+
+        return DataSourceProvider.createEmbeddedHikariConfig(getName() + "-pool", config.getInt("data.embedded.maximum-pool-size", 4), poolConfig);
     }
 
     @SuppressWarnings("UnstableApiUsage")
@@ -327,4 +712,15 @@ public class VanillaTowns extends JavaPlugin {
             commands.register("vanillatowns", "VanillaTowns", List.of("vtowns"), new VanillaTownsCommand(this));
         });
     }
+
+    /**
+     * The storage in use, replaced as a whole by a reload.
+     * Async users hold the read lock of the instance they use, so that it is only closed once they are done.
+     */
+    private record Storage(Database db, TownStore towns, LogTownRepository log, H2Snapshots snapshots, ReadWriteLock users) {
+
+        private Storage(Database db, TownStore towns, LogTownRepository log, H2Snapshots snapshots) {
+            this(db, towns, log, snapshots, new ReentrantReadWriteLock());
+        }
+    }
 }
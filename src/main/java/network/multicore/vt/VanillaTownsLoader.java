@@ -1,37 +1,82 @@
 package network.multicore.vt;
 
-import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
 import io.papermc.paper.plugin.loader.PluginClasspathBuilder;
 import io.papermc.paper.plugin.loader.PluginLoader;
 import io.papermc.paper.plugin.loader.library.impl.MavenLibraryResolver;
+import net.kyori.adventure.text.logger.slf4j.ComponentLogger;
+import org.bukkit.configuration.file.YamlConfiguration;
 import org.eclipse.aether.artifact.DefaultArtifact;
 import org.eclipse.aether.graph.Dependency;
 import org.eclipse.aether.repository.RemoteRepository;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 @SuppressWarnings("UnstableApiUsage")
 public class VanillaTownsLoader implements PluginLoader {
     private static final Gson GSON = new Gson();
+    private static final String DEF_STORAGE_TYPE = "H2";
+    private static final Set<String> REMOTE_STORAGE_TYPES = Set.of("MySQL", "MariaDB", "PostgreSQL");
+    private static final String LOG_STORAGE_TYPE = "LOG";
+    private static final Set<String> EMBEDDED_STORAGE_TYPES = Set.of("H2", "H2-Memory", "SQLite");
 
     @Override
     public void classloader(@NotNull PluginClasspathBuilder classpathBuilder) {
+        ComponentLogger logger = classpathBuilder.getContext().getLogger();
+
         try (InputStreamReader reader = new InputStreamReader(Objects.requireNonNull(getClass().getClassLoader().getResourceAsStream("dependencies.json")), StandardCharsets.UTF_8)) {
-            List<String> dependencies = GSON.fromJson(reader, new TypeToken<List<String>>() {}.getType());
+            Dependencies dependencies = GSON.fromJson(reader, Dependencies.class);
+
+            File configFile = classpathBuilder.getContext().getDataDirectory().resolve("config.yml").toFile();
+            // Before the first start there is no config yet: the defaults below must match the ones of the bundled config
+            YamlConfiguration config = configFile.isFile() ? YamlConfiguration.loadConfiguration(configFile) : new YamlConfiguration();
 
+            String storageType = config.getString("storage-type", DEF_STORAGE_TYPE);
             MavenLibraryResolver resolver = new MavenLibraryResolver();
             resolver.addRepository(new RemoteRepository.Builder("maven central", "default", "https://repo.maven.apache.org/maven2/").build());
-            dependencies.forEach(dependency -> resolver.addDependency(new Dependency(new DefaultArtifact(dependency), null)));
+
+            // The log storage needs neither Hibernate nor a driver, only the annotations and exceptions of the classes it shares with the database storage
+            if (LOG_STORAGE_TYPE.equals(storageType)) {
+                dependencies.log().forEach(dependency -> resolver.addDependency(new Dependency(new DefaultArtifact(dependency), null)));
+                classpathBuilder.addLibrary(resolver);
+                return;
+            }
+
+            boolean usePool = (REMOTE_STORAGE_TYPES.contains(storageType) && config.getBoolean("data.pool.enabled", true))
+                    || (EMBEDDED_STORAGE_TYPES.contains(storageType) && config.getBoolean("data.embedded.pool", true));
+            boolean useCache = config.getBoolean("data.cache.enabled", true);
+
+            List<String> libraries = new ArrayList<>(dependencies.common());
+
+            String driver = dependencies.drivers().get(storageType);
+            if (driver != null) {
+                libraries.add(driver);
+            } else {
+                // Let the plugin report the invalid storage type instead of failing here
+                logger.warn("Unknown storage type {}, loading every database driver", storageType);
+                libraries.addAll(dependencies.drivers().values());
+            }
+
+            if (usePool) libraries.addAll(dependencies.pool());
+            if (useCache) libraries.addAll(dependencies.cache());
+
+            libraries.forEach(dependency -> resolver.addDependency(new Dependency(new DefaultArtifact(dependency), null)));
 
             classpathBuilder.addLibrary(resolver);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    private record Dependencies(List<String> log, List<String> common, List<String> pool, List<String> cache, Map<String, String> drivers) {
+    }
 }
@@ -1,12 +1,13 @@
 package network.multicore.vt.commands;
 
-import dev.dejvokep.boostedyaml.YamlDocument;
 import io.papermc.paper.command.brigadier.BasicCommand;
 import io.papermc.paper.command.brigadier.CommandSourceStack;
 import network.multicore.vt.VanillaTowns;
 import network.multicore.vt.data.Town;
+import network.multicore.vt.data.TownRole;
 import network.multicore.vt.utils.Cache;
 import network.multicore.vt.utils.Messages;
+import network.multicore.vt.utils.Settings;
 import network.multicore.vt.utils.Text;
 import org.bukkit.Bukkit;
 import org.bukkit.command.CommandSender;
@@ -21,11 +22,9 @@ public class TownChatCommand implements BasicCommand {
     private final VanillaTowns plugin;
     private final Messages messages = Messages.get();
     private final Cache cache = Cache.get();
-    private final YamlDocument config;
 
     public TownChatCommand(VanillaTowns plugin) {
         this.plugin = plugin;
-        this.config = plugin.config();
     }
 
     @Override
@@ -55,10 +54,12 @@ public class TownChatCommand implements BasicCommand {
         }
 
         Town town = townOpt.get();
+        Settings settings = plugin.settings();
+        TownRole role = town.getMember(player).getRole();
 
         String msg = messages.getAndReplace("chat-format",
-                "role_color", config.getString("colors." + town.getMember(player).getRole().getName()),
-                "role", config.getString("roles." + town.getMember(player).getRole().getName()),
+                "role_color", settings.roleColor(role),
+                "role", settings.roleName(role),
                 "player", player,
                 "message", String.join(" ", args)
         );
@@ -71,8 +72,8 @@ public class TownChatCommand implements BasicCommand {
 
         String socialspy = messages.getAndReplace("socialspy-format",
                 "town", town,
-                "role_color", config.getString("colors." + town.getMember(player).getRole().getName()),
-                "role", config.getString("roles." + town.getMember(player).getRole().getName()),
+                "role_color", settings.roleColor(role),
+                "role", settings.roleName(role),
                 "player", player,
                 "message", String.join(" ", args)
         );
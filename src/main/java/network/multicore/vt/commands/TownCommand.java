@@ -1,13 +1,14 @@
 package network.multicore.vt.commands;
 
-import dev.dejvokep.boostedyaml.YamlDocument;
 import io.papermc.paper.command.brigadier.BasicCommand;
 import io.papermc.paper.command.brigadier.CommandSourceStack;
 import network.multicore.vt.VanillaTowns;
 import network.multicore.vt.data.Town;
+import network.multicore.vt.data.TownBalanceView;
+import network.multicore.vt.data.TownFetchPlan;
 import network.multicore.vt.data.TownMember;
-import network.multicore.vt.data.TownRepository;
 import network.multicore.vt.data.TownRole;
+import network.multicore.vt.persistence.entity.EntityUpdateException;
 import network.multicore.vt.utils.*;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
@@ -17,28 +18,17 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 @SuppressWarnings("UnstableApiUsage")
 public class TownCommand implements BasicCommand {
     private final VanillaTowns plugin;
     private final Messages messages = Messages.get();
     private final Cache cache = Cache.get();
-    private final YamlDocument config;
-    private final Pattern townNamePattern;
-    private final TownRepository townRepository;
 
     public TownCommand(VanillaTowns plugin) {
         this.plugin = plugin;
-        this.config = plugin.config();
-        this.townRepository = plugin.townRepository();
-        try {
-            this.townNamePattern = Pattern.compile(config.getString("town-name-pattern"));
-        } catch (Throwable t) {
-            Text.severe("<red>Invalid town name pattern in config.yml");
-            plugin.onDisable();
-            throw new IllegalStateException("Invalid town name pattern in config.yml");
-        }
     }
 
     @Override
@@ -202,7 +192,7 @@ public class TownCommand implements BasicCommand {
         boolean self = false;
 
         if (name == null) {
-            town = townRepository.findByMember(player).orElse(null);
+            town = plugin.townRepository().findByMember(player).orElse(null);
 
             if (town == null) {
                 Text.send(messages.get("not-in-town"), player);
@@ -211,7 +201,7 @@ public class TownCommand implements BasicCommand {
 
             self = true;
         } else {
-            town = townRepository.findByName(name).orElse(null);
+            town = plugin.townRepository().findByNameReadOnly(name, TownFetchPlan.FULL).orElse(null);
 
             if (town == null) {
                 Text.send(messages.get("town-not-found"), player);
@@ -288,17 +278,18 @@ public class TownCommand implements BasicCommand {
         }
 
         name = Text.stripFormatting(name);
-        if (!townNamePattern.matcher(name).matches()) {
+        Settings settings = plugin.settings();
+        if (!settings.townNamePattern().matcher(name).matches()) {
             Text.send(messages.get("invalid-name"), player);
             return;
         }
 
-        if (townRepository.findByName(name).isPresent()) {
+        if (plugin.townRepository().existsByName(name)) {
             Text.send(messages.get("name-not-available"), player);
             return;
         }
 
-        double creationCost = config.getDouble("town-creation-cost", 0.0);
+        double creationCost = settings.townCreationCost();
         if (creationCost > 0) {
             if (!plugin.hasEnoughMoney(player, creationCost)) {
                 Text.send(messages.get("not-enough-money"), player);
@@ -311,11 +302,26 @@ public class TownCommand implements BasicCommand {
             }
         }
 
-        Town town = new Town(name, player);
-        town = townRepository.save(town);
+        Town town;
+        try {
+            town = plugin.townRepository().save(new Town(name, player));
+        } catch (RuntimeException e) {
+            Text.severe("Cannot create town " + name + ": " + e.getMessage());
+            if (creationCost > 0) plugin.giveMoney(player, creationCost);
+            Text.send(messages.get("town-update-failed"), player);
+            return;
+        }
+
+        if (town == null) {
+            // The name has been taken in the meantime, the unique constraint rejected the town
+            if (creationCost > 0) plugin.giveMoney(player, creationCost);
+            Text.send(messages.get("name-not-available"), player);
+            return;
+        }
+
         cache.addTown(town);
 
-        if (config.getBoolean("broadcast.town-created", true)) {
+        if (settings.broadcastTownCreated()) {
             Text.broadcast(messages.getAndReplace("town-created-broadcast",
                     "player", player,
                     "town", town));
@@ -384,7 +390,7 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        Town town = townRepository.findById(VanillaTowns.INVITES.get(player.getUniqueId())).orElse(null);
+        Town town = plugin.townRepository().findById(VanillaTowns.INVITES.get(player.getUniqueId())).orElse(null);
 
         if (town == null) {
             VanillaTowns.INVITES.remove(player.getUniqueId());
@@ -392,12 +398,11 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        town.addMember(player);
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        town = update(player, town, t -> t.getMember(player) == null, t -> t.addMember(player), "already-in-town");
+        if (town == null) return;
         VanillaTowns.INVITES.remove(player.getUniqueId());
 
-        if (config.getBoolean("broadcast.player-joined-town", false)) {
+        if (plugin.settings().broadcastPlayerJoinedTown()) {
             Text.broadcast(messages.getAndReplace("player-joined-town-broadcast",
                     "player", player,
                     "town", town));
@@ -433,11 +438,10 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        town.removeMember(player);
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        town = update(player, town, t -> t.getMember(player) != null && !isMayor(t, player), t -> t.removeMember(player));
+        if (town == null) return;
 
-        if (config.getBoolean("broadcast.player-left-town", false)) {
+        if (plugin.settings().broadcastPlayerLeftTown()) {
             Text.broadcast(messages.getAndReplace("player-left-town-broadcast",
                     "player", player,
                     "town", town));
@@ -479,11 +483,14 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        town.removeMember(targetMember.getUniqueId());
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        UUID targetId = targetMember.getUniqueId();
+        town = update(player, town, t -> {
+            TownMember m = t.getMember(targetId);
+            return m != null && t.canKick(player, m);
+        }, t -> t.removeMember(targetId));
+        if (town == null) return;
 
-        if (config.getBoolean("broadcast.player-left", false)) {
+        if (plugin.settings().broadcastPlayerLeftTown()) {
             Text.broadcast(messages.getAndReplace("player-kicked-from-town-broadcast",
                     "player", player,
                     "town", town,
@@ -526,19 +533,24 @@ public class TownCommand implements BasicCommand {
         }
 
         name = Text.stripFormatting(name);
-        if (!townNamePattern.matcher(name).matches()) {
+        if (!plugin.settings().townNamePattern().matcher(name).matches()) {
             Text.send(messages.get("invalid-name"), player);
             return;
         }
 
-        String oldName = town.getName();
+        // A town can change the case of its own name
+        if (!town.hasName(name) && plugin.townRepository().existsByName(name)) {
+            Text.send(messages.get("name-not-available"), player);
+            return;
+        }
 
-        town.setName(name);
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        String oldName = town.getName();
 
         String finalName = name;
-        if (config.getBoolean("broadcast.town-renamed", false)) {
+        town = update(player, town, t -> isMayor(t, player), t -> t.setName(finalName), "name-not-available");
+        if (town == null) return;
+
+        if (plugin.settings().broadcastTownRenamed()) {
             Bukkit.getOnlinePlayers()
                     .stream()
                     .filter(p -> !p.getUniqueId().equals(player.getUniqueId()))
@@ -588,9 +600,9 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        town.setMayor(targetMember);
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        UUID targetId = targetMember.getUniqueId();
+        town = update(player, town, t -> isMayor(t, player) && t.getMember(targetId) != null, t -> t.setMayor(t.getMember(targetId)));
+        if (town == null) return;
 
         town.getMembers()
                 .stream()
@@ -620,16 +632,26 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        townRepository.delete(town);
-        cache.removeTown(town);
+        // The refund is the balance deleted with the town, which the cached town may not be up to date with
+        double refund;
+        try {
+            refund = cache.delete(town, t -> isMayor(t, player));
+        } catch (EntityUpdateException e) {
+            Text.send(messages.get(e.getReason() == EntityUpdateException.Reason.NOT_FOUND ? "town-not-found" : "town-changed"), player);
+            return;
+        } catch (RuntimeException e) {
+            Text.severe("Cannot delete town " + town.getName() + ": " + e.getMessage());
+            Text.send(messages.get("town-update-failed"), player);
+            return;
+        }
 
-        if (town.getBalance() > 0) {
-            if (!plugin.giveMoney(player, town.getBalance())) {
-                Text.warning("Failed to give <yellow>" + town.getBalance() + "$<reset> to player <aqua>" + player.getName() + "<reset> after deleting town <aqua>" + town.getName());
+        if (refund > 0) {
+            if (!plugin.giveMoney(player, refund)) {
+                Text.warning("Failed to give <yellow>" + refund + "$<reset> to player <aqua>" + player.getName() + "<reset> after deleting town <aqua>" + town.getName());
             }
         }
 
-        if (config.getBoolean("broadcast.town-deleted", true)) {
+        if (plugin.settings().broadcastTownDeleted()) {
             Bukkit.getOnlinePlayers()
                     .stream()
                     .forEach(p -> Text.send(messages.getAndReplace("town-deleted-broadcast",
@@ -652,7 +674,7 @@ public class TownCommand implements BasicCommand {
         boolean self = false;
 
         if (name == null) {
-            town = townRepository.findByMember(player).orElse(null);
+            town = plugin.townRepository().findByMember(player, TownFetchPlan.NAMES_ONLY).orElse(null);
 
             if (town == null) {
                 Text.send(messages.get("not-in-town"), player);
@@ -661,7 +683,7 @@ public class TownCommand implements BasicCommand {
 
             self = true;
         } else {
-            town = townRepository.findByName(name).orElse(null);
+            town = plugin.townRepository().findByNameReadOnly(name, TownFetchPlan.NAMES_ONLY).orElse(null);
 
             if (town == null) {
                 Text.send(messages.get("town-not-found"), player);
@@ -721,11 +743,24 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        town.deposit(amount);
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        OptionalDouble balance;
+        try {
+            balance = plugin.townRepository().deposit(town, amount);
+        } catch (EntityUpdateException e) {
+            // Logged by the storage
+            balance = null;
+        }
 
-        Text.send(messages.getAndReplace("deposit-success", "amount", Utils.formatNumber(amount), "balance", Utils.formatNumber(town.getBalance())), player);
+        if (balance == null || balance.isEmpty()) {
+            if (!plugin.giveMoney(player, amount)) {
+                Text.warning("Failed to give back <yellow>" + amount + "$<reset> to player <aqua>" + player.getName() + "<reset> after a failed deposit to town <aqua>" + town.getName());
+            }
+
+            Text.send(messages.get(balance == null ? "town-update-failed" : "deposit-failed"), player);
+            return;
+        }
+
+        Text.send(messages.getAndReplace("deposit-success", "amount", Utils.formatNumber(amount), "balance", Utils.formatNumber(balance.getAsDouble())), player);
 
         Text.info("Player <aqua>" + player.getName() + "<reset> deposited <yellow>" + amount + "$<reset> to town <aqua>" + town.getName() + "<reset>");
     }
@@ -762,14 +797,19 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        if (town.getBalance() < amount) {
-            Text.send(messages.get("not-enough-money-town"), player);
+        OptionalDouble balance;
+        try {
+            balance = plugin.townRepository().withdraw(town, amount);
+        } catch (EntityUpdateException e) {
+            // Logged by the storage
+            Text.send(messages.get("town-update-failed"), player);
             return;
         }
 
-        town.withdraw(amount);
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        if (balance.isEmpty()) {
+            Text.send(messages.get("not-enough-money-town"), player);
+            return;
+        }
 
         if (!plugin.giveMoney(player, amount)) {
             Text.send(messages.get("withdraw-failed"), player);
@@ -777,7 +817,7 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        Text.send(messages.getAndReplace("withdraw-success", "amount", Utils.formatNumber(amount), "balance", Utils.formatNumber(town.getBalance())), player);
+        Text.send(messages.getAndReplace("withdraw-success", "amount", Utils.formatNumber(amount), "balance", Utils.formatNumber(balance.getAsDouble())), player);
 
         Text.info("Player <aqua>" + player.getName() + "<reset> withdrew <yellow>" + amount + "$<reset> from town <aqua>" + town.getName() + "<reset>");
     }
@@ -788,26 +828,23 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        List<Town> towns = townRepository.findAll();
-        towns.sort((t1, t2) -> Double.compare(t2.getBalance(), t1.getBalance()));
+        List<TownBalanceView> towns = plugin.townRepository().findTopBalances(10);
         Optional<Town> townOpt = cache.getTown(player);
 
         Text.send(messages.get("baltop-header"), player);
 
         boolean found = false;
-        for (int i = 0; i < Math.min(10, towns.size()); i++) {
-            Town town = towns.get(i);
-            if (townOpt.isPresent() && town.getId() == townOpt.get().getId()) found = true;
+        for (int i = 0; i < towns.size(); i++) {
+            TownBalanceView town = towns.get(i);
+            if (townOpt.isPresent() && town.id() == townOpt.get().getId()) found = true;
 
-            Text.send(messages.getAndReplace("baltop-entry", "position", i + 1, "town", town, "balance", Utils.formatNumber(town.getBalance())), player);
+            Text.send(messages.getAndReplace("baltop-entry", "position", i + 1, "town", town.name(), "balance", Utils.formatNumber(town.balance())), player);
         }
 
         if (!found && townOpt.isPresent()) {
-            Town town = towns.stream().filter(t -> t.getId() == townOpt.get().getId()).findFirst().orElse(null);
-            if (town != null) {
-                int index = towns.indexOf(town);
-                Text.send(messages.getAndReplace("baltop-entry", "position", index + 1, "town", town, "balance", Utils.formatNumber(town.getBalance())), player);
-            }
+            Town town = townOpt.get();
+            long position = plugin.townRepository().getBalanceRank(town);
+            Text.send(messages.getAndReplace("baltop-entry", "position", position, "town", town, "balance", Utils.formatNumber(town.getBalance())), player);
         }
 
         Text.send(messages.get("baltop-footer"), player);
@@ -832,18 +869,22 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        String world = player.getWorld().getName();
-        if (config.getStringList("town-home-dimension-blacklist", List.of()).stream().anyMatch(world::equalsIgnoreCase)) {
+        Settings settings = plugin.settings();
+        if (settings.isDimensionBlacklisted(player.getWorld().getName())) {
             Text.send(messages.get("home-dimension-blacklisted"), player);
             return;
         }
 
-        double setHomeCost = config.getDouble("town-sethome-cost", 0.0);
+        double setHomeCost = settings.townSethomeCost();
+        // The part of the cost paid by the town bank, the rest is paid by the player
+        double townAmount = 0;
+        double dueAmount = 0;
         if (setHomeCost > 0) {
             if (town.getBalance() >= setHomeCost) {
-                town.withdraw(setHomeCost);
+                townAmount = setHomeCost;
             } else {
-                double dueAmount = setHomeCost - town.getBalance();
+                townAmount = town.getBalance();
+                dueAmount = setHomeCost - townAmount;
 
                 if (!plugin.hasEnoughMoney(player, dueAmount)) {
                     Text.send(messages.get("not-enough-money"), player);
@@ -854,14 +895,19 @@ public class TownCommand implements BasicCommand {
                     Text.send(messages.get("sethome-failed-withdraw"), player);
                     return;
                 }
-
-                town.setBalance(0);
             }
         }
 
-        town.setHome(player.getLocation());
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        Location location = player.getLocation();
+        double finalTownAmount = townAmount;
+        town = update(player, town, t -> t.canEditHome(player) && t.getBalance() >= finalTownAmount, t -> {
+            t.setBalance(t.getBalance() - finalTownAmount);
+            t.setHome(location);
+        });
+        if (town == null) {
+            if (dueAmount > 0) plugin.giveMoney(player, dueAmount);
+            return;
+        }
 
         Text.send(messages.get("home-set"), player);
 
@@ -887,9 +933,8 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        town.setHome(null);
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        town = update(player, town, t -> t.canEditHome(player), t -> t.setHome(null));
+        if (town == null) return;
 
         Text.send(messages.get("home-deleted"), player);
 
@@ -915,7 +960,8 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        double homeTeleportCost = config.getDouble("town-home-teleport-cost", 0.0);
+        Settings settings = plugin.settings();
+        double homeTeleportCost = settings.townHomeTeleportCost();
         if (homeTeleportCost > 0) {
             if (!plugin.hasEnoughMoney(player, homeTeleportCost)) {
                 Text.send(messages.get("not-enough-money"), player);
@@ -928,7 +974,7 @@ public class TownCommand implements BasicCommand {
             }
         }
 
-        int teleportCooldown = config.getInt("town-home-teleport-cooldown", 0);
+        int teleportCooldown = settings.townHomeTeleportCooldown();
         if (teleportCooldown > 0) {
             Date lastTeleport = VanillaTowns.TELEPORT_COOLDOWN.get(player);
 
@@ -941,7 +987,7 @@ public class TownCommand implements BasicCommand {
             }
         }
 
-        int countdownTime = config.getInt("town-home-teleport-countdown", 0);
+        int countdownTime = settings.townHomeTeleportCountdown();
         if (countdownTime > 0) {
             HomeTeleportRequest request = new HomeTeleportRequest(plugin, player, town.getHome().getLocation().get(), countdownTime);
             VanillaTowns.TELEPORTS.put(player, request);
@@ -1010,9 +1056,12 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        targetMember.setRole(TownRole.OFFICER);
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        UUID targetId = targetMember.getUniqueId();
+        town = update(player, town, t -> {
+            TownMember m = t.getMember(targetId);
+            return isMayor(t, player) && m != null && m.getRole().equals(TownRole.CITIZEN);
+        }, t -> t.getMember(targetId).setRole(TownRole.OFFICER));
+        if (town == null) return;
 
         Text.send(messages.getAndReplace("officer-set", "player", targetMember), player);
 
@@ -1049,9 +1098,12 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        targetMember.setRole(TownRole.CITIZEN);
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        UUID targetId = targetMember.getUniqueId();
+        town = update(player, town, t -> {
+            TownMember m = t.getMember(targetId);
+            return isMayor(t, player) && m != null && !m.getRole().equals(TownRole.CITIZEN);
+        }, t -> t.getMember(targetId).setRole(TownRole.CITIZEN));
+        if (town == null) return;
 
         Text.send(messages.getAndReplace("officer-removed", "player", targetMember), player);
 
@@ -1096,9 +1148,12 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        targetMember.setDeposit(deposit);
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        UUID targetId = targetMember.getUniqueId();
+        town = update(player, town, t -> {
+            TownMember m = t.getMember(targetId);
+            return isMayor(t, player) && m != null && !m.getRole().equals(TownRole.CITIZEN);
+        }, t -> t.getMember(targetId).setDeposit(deposit));
+        if (town == null) return;
 
         if (deposit) {
             Text.send(messages.getAndReplace("deposit-allowed", "player", targetMember), player);
@@ -1151,9 +1206,12 @@ public class TownCommand implements BasicCommand {
             return;
         }
 
-        targetMember.setWithdraw(withdraw);
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        UUID targetId = targetMember.getUniqueId();
+        town = update(player, town, t -> {
+            TownMember m = t.getMember(targetId);
+            return isMayor(t, player) && m != null && !m.getRole().equals(TownRole.CITIZEN);
+        }, t -> t.getMember(targetId).setWithdraw(withdraw));
+        if (town == null) return;
 
         if (withdraw) {
             Text.send(messages.getAndReplace("withdraw-allowed", "player", targetMember), player);
@@ -1172,4 +1230,35 @@ public class TownCommand implements BasicCommand {
 
         Text.info("Player <aqua>" + player.getName() + "<reset> " + (withdraw ? "allowed" : "denied") + " withdraw for <aqua>" + targetMember.getName() + "<reset> in town <aqua>" + town.getName() + "<reset>");
     }
+
+    private static boolean isMayor(Town town, Player player) {
+        return town.getMayor().getUniqueId().equals(player.getUniqueId());
+    }
+
+    private @Nullable Town update(Player player, Town town, Predicate<? super Town> precondition, Consumer<Town> mutation) {
+        return update(player, town, precondition, mutation, "town-update-failed");
+    }
+
+    /**
+     * Apply a change to a town, see {@link Cache#update(Town, Predicate, Consumer)}, and tell the player if it can't be stored.
+     *
+     * @param constraintMessage The message sent if the change violates a constraint, such as a unique name.
+     * @return The stored town, or null if the change can't be stored.
+     */
+    private @Nullable Town update(Player player, Town town, Predicate<? super Town> precondition, Consumer<Town> mutation, String constraintMessage) {
+        try {
+            return cache.update(town, precondition, mutation);
+        } catch (EntityUpdateException e) {
+            String message = switch (e.getReason()) {
+                case NOT_FOUND -> "town-not-found";
+                case PRECONDITION_FAILED, CONFLICT -> "town-changed";
+                case CONSTRAINT_VIOLATION -> constraintMessage;
+                case FAILURE -> "town-update-failed";
+            };
+
+            if (e.getReason() == EntityUpdateException.Reason.FAILURE) Text.severe("Cannot update town " + town.getName() + ": " + e.getMessage());
+            Text.send(messages.get(message), player);
+            return null;
+        }
+    }
 }
@@ -1,45 +1,39 @@
 package network.multicore.vt.commands;
 
-import dev.dejvokep.boostedyaml.YamlDocument;
 import io.papermc.paper.command.brigadier.BasicCommand;
 import io.papermc.paper.command.brigadier.CommandSourceStack;
 import network.multicore.vt.VanillaTowns;
 import network.multicore.vt.data.Town;
+import network.multicore.vt.data.TownMemberView;
+import network.multicore.vt.data.TownNameView;
 import network.multicore.vt.data.TownMember;
-import network.multicore.vt.data.TownRepository;
 import network.multicore.vt.data.TownRole;
+import network.multicore.vt.persistence.entity.EntityUpdateException;
 import network.multicore.vt.utils.Cache;
 import network.multicore.vt.utils.Messages;
 import network.multicore.vt.utils.TabCompleterUtil;
 import network.multicore.vt.utils.Text;
 import org.bukkit.Bukkit;
+import org.bukkit.Location;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 @SuppressWarnings("UnstableApiUsage")
 public class VanillaTownsCommand implements BasicCommand {
+    private static final int MAX_TOWN_COMPLETIONS = 100;
     private final VanillaTowns plugin;
     private final Messages messages = Messages.get();
     private final Cache cache = Cache.get();
-    private final YamlDocument config;
-    private final Pattern townNamePattern;
-    private final TownRepository townRepository;
 
     public VanillaTownsCommand(VanillaTowns plugin) {
         this.plugin = plugin;
-        this.config = plugin.config();
-        this.townRepository = plugin.townRepository();
-        try {
-            this.townNamePattern = Pattern.compile(config.getString("town-name-pattern"));
-        } catch (Throwable t) {
-            Text.severe("<red>Invalid town name pattern in config.yml");
-            plugin.onDisable();
-            throw new IllegalStateException("Invalid town name pattern in config.yml");
-        }
     }
 
     @Override
@@ -133,46 +127,38 @@ public class VanillaTownsCommand implements BasicCommand {
             if (plugin.hasStaffPermission(sender, "vanillatowns.staff.home")) completions.add("home");
         } else if (args.length == 2) {
             switch (args[0].toLowerCase()) {
-                case "invite", "join", "kick", "rename", "delete", "setmayor", "setofficer", "setcitizen", "sethome", "delhome", "home" -> completions.addAll(townRepository.findAll()
+                case "invite", "join", "kick", "rename", "delete", "setmayor", "setofficer", "setcitizen", "sethome", "delhome", "home" -> completions.addAll(plugin.useTownStore(store -> store.findNamesByPrefix(args[1], MAX_TOWN_COMPLETIONS))
                         .stream()
-                        .map(Town::getName)
+                        .map(TownNameView::name)
                         .toList());
 
             }
         } else if (args.length == 3) {
             switch (args[0].toLowerCase()) {
                 case "invite", "join" -> {
-                    Optional<Town> townOpt = townRepository.findByName(args[1]);
-                    townOpt.ifPresent(town -> completions.addAll(Bukkit.getOnlinePlayers()
+                    List<TownMemberView> members = plugin.useTownStore(store -> store.findMembers(args[1]));
+                    // Every town has at least its mayor, no members means that the town doesn't exist
+                    if (!members.isEmpty()) completions.addAll(Bukkit.getOnlinePlayers()
                             .stream()
                             .map(Player::getName)
-                            .filter(p -> town.getMember(p) == null)
-                            .toList()));
-                }
-                case "kick", "setmayor" -> {
-                    Optional<Town> townOpt = townRepository.findByName(args[1]);
-                    townOpt.ifPresent(town -> completions.addAll(town.getMembers()
-                            .stream()
-                            .filter(m -> !m.getRole().equals(TownRole.MAYOR))
-                            .map(TownMember::getName)
-                            .toList()));
-                }
-                case "setofficer" -> {
-                    Optional<Town> townOpt = townRepository.findByName(args[1]);
-                    townOpt.ifPresent(town -> completions.addAll(town.getMembers()
-                            .stream()
-                            .filter(m -> !m.getRole().equals(TownRole.OFFICER) && !m.getRole().equals(TownRole.MAYOR))
-                            .map(TownMember::getName)
-                            .toList()));
-                }
-                case "setcitizen" -> {
-                    Optional<Town> townOpt = townRepository.findByName(args[1]);
-                    townOpt.ifPresent(town -> completions.addAll(town.getMembers()
-                            .stream()
-                            .filter(m -> !m.getRole().equals(TownRole.CITIZEN) && !m.getRole().equals(TownRole.MAYOR))
-                            .map(TownMember::getName)
-                            .toList()));
+                            .filter(p -> members.stream().noneMatch(m -> m.name().equalsIgnoreCase(p)))
+                            .toList());
                 }
+                case "kick", "setmayor" -> completions.addAll(plugin.useTownStore(store -> store.findMembers(args[1]))
+                        .stream()
+                        .filter(m -> !m.role().equals(TownRole.MAYOR))
+                        .map(TownMemberView::name)
+                        .toList());
+                case "setofficer" -> completions.addAll(plugin.useTownStore(store -> store.findMembers(args[1]))
+                        .stream()
+                        .filter(m -> !m.role().equals(TownRole.OFFICER) && !m.role().equals(TownRole.MAYOR))
+                        .map(TownMemberView::name)
+                        .toList());
+                case "setcitizen" -> completions.addAll(plugin.useTownStore(store -> store.findMembers(args[1]))
+                        .stream()
+                        .filter(m -> !m.role().equals(TownRole.CITIZEN) && !m.role().equals(TownRole.MAYOR))
+                        .map(TownMemberView::name)
+                        .toList());
             }
         }
 
@@ -191,8 +177,15 @@ public class VanillaTownsCommand implements BasicCommand {
         }
 
         long millis = System.currentTimeMillis();
-        plugin.onDisable();
-        plugin.onEnable();
+
+        try {
+            plugin.reload();
+        } catch (IOException | RuntimeException e) {
+            Text.severe("<red>Cannot reload the plugin: " + e.getMessage());
+            Text.send(messages.get("reload-failed"), sender);
+            return;
+        }
+
         Text.send(messages.get("plugin-reloaded").replace("{time}", String.valueOf(System.currentTimeMillis() - millis)), sender);
     }
 
@@ -202,7 +195,7 @@ public class VanillaTownsCommand implements BasicCommand {
             return;
         }
 
-        Optional<Town> townOpt = townRepository.findByName(townName);
+        Optional<Town> townOpt = plugin.townRepository().findByName(townName);
         if (townOpt.isEmpty()) {
             Text.send(messages.get("town-not-found").replace("{town}", townName), sender);
             return;
@@ -238,7 +231,7 @@ public class VanillaTownsCommand implements BasicCommand {
             return;
         }
 
-        Optional<Town> townOpt = townRepository.findByName(townName);
+        Optional<Town> townOpt = plugin.townRepository().findByName(townName);
         if (townOpt.isEmpty()) {
             Text.send(messages.get("town-not-found").replace("{town}", townName), sender);
             return;
@@ -262,12 +255,11 @@ public class VanillaTownsCommand implements BasicCommand {
             return;
         }
 
-        town.addMember(target);
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        town = update(sender, town, t -> t.getMember(target) == null, t -> t.addMember(target), messages.get("player-already-in-town"));
+        if (town == null) return;
         VanillaTowns.INVITES.remove(target.getUniqueId());
 
-        if (config.getBoolean("broadcast.player-joined-town", false)) {
+        if (plugin.settings().broadcastPlayerJoinedTown()) {
             Text.broadcast(messages.getAndReplace("player-joined-town-broadcast",
                     "player", target,
                     "town", town));
@@ -289,7 +281,7 @@ public class VanillaTownsCommand implements BasicCommand {
             return;
         }
 
-        Optional<Town> townOpt = townRepository.findByName(townName);
+        Optional<Town> townOpt = plugin.townRepository().findByName(townName);
         if (townOpt.isEmpty()) {
             Text.send(messages.get("town-not-found").replace("{town}", townName), sender);
             return;
@@ -308,11 +300,11 @@ public class VanillaTownsCommand implements BasicCommand {
             return;
         }
 
-        town.removeMember(member.getUniqueId());
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        UUID memberId = member.getUniqueId();
+        town = update(sender, town, t -> t.getMember(memberId) != null && !t.getMayor().getUniqueId().equals(memberId), t -> t.removeMember(memberId));
+        if (town == null) return;
 
-        if (config.getBoolean("broadcast.player-left", false)) {
+        if (plugin.settings().broadcastPlayerLeftTown()) {
             Text.broadcast(messages.getAndReplace("player-kicked-from-town-broadcast",
                     "player", sender,
                     "town", town,
@@ -340,7 +332,7 @@ public class VanillaTownsCommand implements BasicCommand {
             return;
         }
 
-        Optional<Town> townOpt = townRepository.findByName(oldName);
+        Optional<Town> townOpt = plugin.townRepository().findByName(oldName);
         if (townOpt.isEmpty()) {
             Text.send(messages.get("town-not-found").replace("{town}", oldName), sender);
             return;
@@ -348,23 +340,24 @@ public class VanillaTownsCommand implements BasicCommand {
 
         Town town = townOpt.get();
 
-        if (!townNamePattern.matcher(newName).matches()) {
+        if (!plugin.settings().townNamePattern().matcher(newName).matches()) {
             Text.send(messages.get("invalid-town-name"), sender);
             return;
         }
 
         newName = Text.stripFormatting(newName);
-        if (townRepository.findByName(newName).isPresent()) {
+        // A town can change the case of its own name
+        if (!town.hasName(newName) && plugin.townRepository().existsByName(newName)) {
             Text.send(messages.get("town-already-exists").replace("{town}", newName), sender);
             return;
         }
 
-        town.setName(newName);
-        town = townRepository.save(town);
-        cache.updateTown(town);
-
         String finalName = newName;
-        if (config.getBoolean("broadcast.town-renamed", false)) {
+        // The name may have been taken in the meantime, the unique constraint rejects it
+        town = update(sender, town, t -> true, t -> t.setName(finalName), messages.get("town-already-exists").replace("{town}", newName));
+        if (town == null) return;
+
+        if (plugin.settings().broadcastTownRenamed()) {
             Bukkit.getOnlinePlayers().forEach(p -> Text.send(messages.getAndReplace("town-renamed-broadcast",
                     "player", sender,
                     "old_name", oldName,
@@ -387,7 +380,7 @@ public class VanillaTownsCommand implements BasicCommand {
             return;
         }
 
-        Optional<Town> townOpt = townRepository.findByName(townName);
+        Optional<Town> townOpt = plugin.townRepository().findByName(townName);
         if (townOpt.isEmpty()) {
             Text.send(messages.get("town-not-found").replace("{town}", townName), sender);
             return;
@@ -395,12 +388,21 @@ public class VanillaTownsCommand implements BasicCommand {
 
         Town town = townOpt.get();
 
-        townRepository.delete(town);
-        cache.removeTown(town);
+        double balance;
+        try {
+            balance = cache.delete(town, t -> true);
+        } catch (EntityUpdateException e) {
+            Text.send(messages.get("town-not-found").replace("{town}", townName), sender);
+            return;
+        } catch (RuntimeException e) {
+            Text.severe("Cannot delete town " + town.getName() + ": " + e.getMessage());
+            Text.send(messages.get("town-update-failed"), sender);
+            return;
+        }
 
         Text.send(messages.getAndReplace("town-deleted", "town", townName), sender);
 
-        if (config.getBoolean("broadcast.town-deleted-staff", false)) {
+        if (plugin.settings().broadcastTownDeleted()) {
             Bukkit.getOnlinePlayers()
                     .stream()
                     .filter(Objects::nonNull)
@@ -409,7 +411,7 @@ public class VanillaTownsCommand implements BasicCommand {
                             "town", townName), p));
         }
 
-        Text.info("Town <aqua>" + townName + "<reset> has been deleted by <aqua>" + sender.getName() + "<reset>. The town had <aqua>" + town.getBalance() + "$<reset> in its bank account.");
+        Text.info("Town <aqua>" + townName + "<reset> has been deleted by <aqua>" + sender.getName() + "<reset>. The town had <aqua>" + balance + "$<reset> in its bank account.");
     }
 
     private void setMayor(CommandSender sender, String townName, String playerName) {
@@ -418,7 +420,7 @@ public class VanillaTownsCommand implements BasicCommand {
             return;
         }
 
-        Optional<Town> townOpt = townRepository.findByName(townName);
+        Optional<Town> townOpt = plugin.townRepository().findByName(townName);
         if (townOpt.isEmpty()) {
             Text.send(messages.get("town-not-found").replace("{town}", townName), sender);
             return;
@@ -432,9 +434,9 @@ public class VanillaTownsCommand implements BasicCommand {
             return;
         }
 
-        town.setMayor(member);
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        UUID memberId = member.getUniqueId();
+        town = update(sender, town, t -> t.getMember(memberId) != null, t -> t.setMayor(t.getMember(memberId)));
+        if (town == null) return;
 
         Text.send(messages.getAndReplace("mayor-set-staff", "player", member, "town", town), sender);
         town.getMembers()
@@ -452,7 +454,7 @@ public class VanillaTownsCommand implements BasicCommand {
             return;
         }
 
-        Optional<Town> townOpt = townRepository.findByName(townName);
+        Optional<Town> townOpt = plugin.townRepository().findByName(townName);
         if (townOpt.isEmpty()) {
             Text.send(messages.get("town-not-found").replace("{town}", townName), sender);
             return;
@@ -476,9 +478,12 @@ public class VanillaTownsCommand implements BasicCommand {
             return;
         }
 
-        member.setRole(TownRole.OFFICER);
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        UUID memberId = member.getUniqueId();
+        town = update(sender, town, t -> {
+            TownMember m = t.getMember(memberId);
+            return m != null && m.getRole().equals(TownRole.CITIZEN);
+        }, t -> t.getMember(memberId).setRole(TownRole.OFFICER));
+        if (town == null) return;
 
         Text.send(messages.getAndReplace("officer-set-staff", "player", member, "town", town), sender);
 
@@ -496,7 +501,7 @@ public class VanillaTownsCommand implements BasicCommand {
             return;
         }
 
-        Optional<Town> townOpt = townRepository.findByName(townName);
+        Optional<Town> townOpt = plugin.townRepository().findByName(townName);
         if (townOpt.isEmpty()) {
             Text.send(messages.get("town-not-found").replace("{town}", townName), sender);
             return;
@@ -520,9 +525,12 @@ public class VanillaTownsCommand implements BasicCommand {
             return;
         }
 
-        member.setRole(TownRole.CITIZEN);
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        UUID memberId = member.getUniqueId();
+        town = update(sender, town, t -> {
+            TownMember m = t.getMember(memberId);
+            return m != null && m.getRole().equals(TownRole.OFFICER);
+        }, t -> t.getMember(memberId).setRole(TownRole.CITIZEN));
+        if (town == null) return;
 
         Text.send(messages.getAndReplace("citizen-set-staff", "player", member, "town", town), sender);
 
@@ -545,7 +553,7 @@ public class VanillaTownsCommand implements BasicCommand {
             return;
         }
 
-        Optional<Town> townOpt = townRepository.findByName(townName);
+        Optional<Town> townOpt = plugin.townRepository().findByName(townName);
         if (townOpt.isEmpty()) {
             Text.send(messages.get("town-not-found").replace("{town}", townName), sender);
             return;
@@ -553,9 +561,9 @@ public class VanillaTownsCommand implements BasicCommand {
 
         Town town = townOpt.get();
 
-        town.setHome(player.getLocation());
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        Location location = player.getLocation();
+        town = update(sender, town, t -> true, t -> t.setHome(location));
+        if (town == null) return;
 
         Text.send(messages.get("home-set"), player);
 
@@ -568,7 +576,7 @@ public class VanillaTownsCommand implements BasicCommand {
             return;
         }
 
-        Optional<Town> townOpt = townRepository.findByName(townName);
+        Optional<Town> townOpt = plugin.townRepository().findByName(townName);
         if (townOpt.isEmpty()) {
             Text.send(messages.get("town-not-found").replace("{town}", townName), sender);
             return;
@@ -576,9 +584,8 @@ public class VanillaTownsCommand implements BasicCommand {
 
         Town town = townOpt.get();
 
-        town.setHome(null);
-        town = townRepository.save(town);
-        cache.updateTown(town);
+        town = update(sender, town, t -> true, t -> t.setHome(null));
+        if (town == null) return;
 
         Text.send(messages.get("home-deleted"), sender);
 
@@ -596,7 +603,7 @@ public class VanillaTownsCommand implements BasicCommand {
             return;
         }
 
-        Optional<Town> townOpt = townRepository.findByName(townName);
+        Optional<Town> townOpt = plugin.townRepository().findByName(townName);
         if (townOpt.isEmpty()) {
             Text.send(messages.get("town-not-found").replace("{town}", townName), sender);
             return;
@@ -613,4 +620,31 @@ public class VanillaTownsCommand implements BasicCommand {
 
         Text.send(messages.get("home-teleporting"), player);
     }
+
+    private @Nullable Town update(CommandSender sender, Town town, Predicate<? super Town> precondition, Consumer<Town> mutation) {
+        return update(sender, town, precondition, mutation, messages.get("town-update-failed"));
+    }
+
+    /**
+     * Apply a change to a town, see {@link Cache#update(Town, Predicate, Consumer)}, and tell the sender if it can't be stored.
+     *
+     * @param constraintMessage The message sent if the change violates a constraint, such as a unique name.
+     * @return The stored town, or null if the change can't be stored.
+     */
+    private @Nullable Town update(CommandSender sender, Town town, Predicate<? super Town> precondition, Consumer<Town> mutation, String constraintMessage) {
+        try {
+            return cache.update(town, precondition, mutation);
+        } catch (EntityUpdateException e) {
+            String message = switch (e.getReason()) {
+                case NOT_FOUND -> messages.get("town-not-found").replace("{town}", town.getName());
+                case PRECONDITION_FAILED, CONFLICT -> messages.get("town-changed");
+                case CONSTRAINT_VIOLATION -> constraintMessage;
+                case FAILURE -> messages.get("town-update-failed");
+            };
+
+            if (e.getReason() == EntityUpdateException.Reason.FAILURE) Text.severe("Cannot update town " + town.getName() + ": " + e.getMessage());
+            Text.send(message, sender);
+            return null;
+        }
+    }
 }
@@ -0,0 +1,619 @@
+package network.multicore.vt.data;
+
+import com.google.common.base.Preconditions;
+import network.multicore.vt.persistence.entity.EntityUpdateException;
+import network.multicore.vt.persistence.log.AppendOnlyLog;
+import network.multicore.vt.utils.Text;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Stores the towns in an {@link AppendOnlyLog} instead of a database, so that neither Hibernate nor a database driver has to be loaded.
+ * Every town is kept in memory: lookups never touch the disk, and every change appends the new state of the town,
+ * or only its new balance, to the log. The log is replayed when opened, and compacted to a single record per town,
+ * after one holding the next id so that the ids of deleted towns are never given again, once it holds {@value #COMPACTION_RATIO} times more records than there are towns.
+ * <p>
+ * The towns returned are the stored instances, like the managed entities of the database storage, and the fetch plans are ignored.
+ * An update applies its change to a copy, which replaces the stored instance once written, like a merged entity.
+ * Changes are written through a memory mapping: they survive a crash of the server, while a crash of the operating system
+ * can lose those made since the log was last opened, compacted or closed.
+ */
+public class LogTownRepository implements TownStore, Closeable {
+    public static final String LOG_NAME = "towns";
+    private static final int FORMAT_VERSION = 1;
+    private static final byte TOWN_RECORD = 1;
+    private static final byte BALANCE_RECORD = 2;
+    private static final byte DELETE_RECORD = 3;
+    private static final byte BATCH_RECORD = 4;
+    private static final byte NEXT_ID_RECORD = 5;
+    private static final int COMPACTION_MIN_RECORDS = 1024;
+    private static final int COMPACTION_RATIO = 4;
+    private final AppendOnlyLog log;
+    private final Map<Long, Town> towns = new HashMap<>();
+    private final Map<String, Town> townsByName = new HashMap<>();
+    private final Map<UUID, Town> townsByMember = new HashMap<>();
+    // The keys each town is indexed with, which are removed when the town changes
+    private final Map<Long, IndexKeys> indexKeys = new HashMap<>();
+    private long nextId = 1;
+    // The unit of work being run, see inTransaction
+    private Unit unit;
+
+    public LogTownRepository(@NotNull File directory) {
+        Preconditions.checkNotNull(directory, "directory");
+
+        this.log = new AppendOnlyLog(directory, LOG_NAME, FORMAT_VERSION);
+    }
+
+    /**
+     * Open the log and load the towns it holds.
+     *
+     * @throws IOException If the log can't be read.
+     */
+    public synchronized void open() throws IOException {
+        try {
+            log.open(this::replay);
+        } catch (UncheckedIOException e) {
+            log.close();
+            throw e.getCause();
+        }
+
+        compactIfNeeded();
+    }
+
+    public synchronized int count() {
+        return towns.size();
+    }
+
+    @Override
+    public synchronized Optional<Town> findById(@NotNull Long id) {
+        Preconditions.checkNotNull(id, "id");
+
+        return Optional.ofNullable(towns.get(id));
+    }
+
+    @Override
+    public Optional<Town> findById(@NotNull Long id, @NotNull TownFetchPlan plan) {
+        return findById(id);
+    }
+
+    @Override
+    public synchronized List<Town> findAll(@NotNull TownFetchPlan plan) {
+        return new ArrayList<>(towns.values());
+    }
+
+    @Override
+    public synchronized Optional<Town> findByMember(UUID uuid) {
+        return Optional.ofNullable(townsByMember.get(uuid));
+    }
+
+    @Override
+    public Optional<Town> findByMember(UUID uuid, @NotNull TownFetchPlan plan) {
+        return findByMember(uuid);
+    }
+
+    @Override
+    public Optional<Town> findByMember(Player player) {
+        return findByMember(player.getUniqueId());
+    }
+
+    @Override
+    public Optional<Town> findByMember(Player player, @NotNull TownFetchPlan plan) {
+        return findByMember(player.getUniqueId());
+    }
+
+    @Override
+    public Optional<Town> findByMemberReadOnly(UUID uuid, @NotNull TownFetchPlan plan) {
+        return findByMember(uuid);
+    }
+
+    @Override
+    public Optional<Town> findByName(String name) {
+        return findByName(name, TownFetchPlan.FULL);
+    }
+
+    @Override
+    public synchronized Optional<Town> findByName(@NotNull String name, @NotNull TownFetchPlan plan) {
+        Preconditions.checkNotNull(name, "name");
+
+        return Optional.ofNullable(townsByName.get(Town.normalizeName(name)));
+    }
+
+    @Override
+    public Optional<Town> findByNameReadOnly(@NotNull String name, @NotNull TownFetchPlan plan) {
+        return findByName(name, plan);
+    }
+
+    @Override
+    public synchronized boolean existsByName(@NotNull String name) {
+        Preconditions.checkNotNull(name, "name");
+
+        return townsByName.containsKey(Town.normalizeName(name));
+    }
+
+    @Override
+    public Town initialize(@NotNull Town town, @NotNull TownFetchPlan plan) {
+        Preconditions.checkNotNull(town, "town");
+
+        return town;
+    }
+
+    @Override
+    public synchronized List<TownNameView> findNamesByPrefix(@NotNull String prefix, int limit) {
+        Preconditions.checkNotNull(prefix, "prefix");
+        Preconditions.checkArgument(limit > 0, "Limit must be greater than 0");
+
+        String normalizedPrefix = Town.normalizeName(prefix);
+
+        return towns.values()
+                .stream()
+                .filter(town -> Town.normalizeName(town.getName()).startsWith(normalizedPrefix))
+                .sorted(Comparator.comparing(Town::getName))
+                .limit(limit)
+                .map(town -> new TownNameView(town.getId(), town.getName()))
+                .toList();
+    }
+
+    @Override
+    public synchronized List<TownBalanceView> findTopBalances(int size) {
+        Preconditions.checkArgument(size > 0, "Size must be greater than 0");
+
+        return towns.values()
+                .stream()
+                .sorted(Comparator.comparingDouble(Town::getBalance).reversed().thenComparingLong(Town::getId))
+                .limit(size)
+                .map(town -> new TownBalanceView(town.getId(), town.getName(), town.getBalance()))
+                .toList();
+    }
+
+    @Override
+    public synchronized List<TownMemberView> findMembers(@NotNull String townName) {
+        Preconditions.checkNotNull(townName, "townName");
+
+        Town town = townsByName.get(Town.normalizeName(townName));
+        if (town == null) return List.of();
+
+        return town.getMembers()
+                .stream()
+                .map(member -> new TownMemberView(member.getUniqueId(), member.getName(), member.getRole()))
+                .toList();
+    }
+
+    @Override
+    public synchronized long getBalanceRank(@NotNull Town town) {
+        Preconditions.checkNotNull(town, "town");
+
+        Town stored = towns.get(town.getId());
+        double balance = stored != null ? stored.getBalance() : town.getBalance();
+
+        return towns.values()
+                .stream()
+                .filter(other -> other.getBalance() > balance)
+                .count() + 1;
+    }
+
+    @Override
+    public OptionalDouble deposit(@NotNull Town town, double amount) {
+        Preconditions.checkNotNull(town, "town");
+        Preconditions.checkArgument(amount > 0, "Amount must be greater than 0");
+
+        return updateBalance(town, amount);
+    }
+
+    @Override
+    public OptionalDouble withdraw(@NotNull Town town, double amount) {
+        Preconditions.checkNotNull(town, "town");
+        Preconditions.checkArgument(amount > 0, "Amount must be greater than 0");
+
+        return updateBalance(town, -amount);
+    }
+
+    private synchronized OptionalDouble updateBalance(Town town, double amount) {
+        Town stored = towns.get(town.getId());
+        if (stored == null || stored.getBalance() + amount < 0) return OptionalDouble.empty();
+
+        double balance = stored.getBalance() + amount;
+        long version = stored.getVersion() + 1;
+
+        try {
+            append(stored.getId(), encodeBalance(stored.getId(), balance, version));
+        } catch (IOException e) {
+            Text.severe("Cannot write the balance of town " + stored.getName() + ": " + e.getMessage());
+            throw new EntityUpdateException(EntityUpdateException.Reason.FAILURE, stored, e);
+        }
+
+        stored.setBalance(balance);
+        stored.setVersion(version);
+        town.setBalance(balance);
+        town.setVersion(version);
+        compactIfNeeded();
+
+        return OptionalDouble.of(balance);
+    }
+
+    @Override
+    public synchronized <S extends Town> S save(@NotNull S town) {
+        Preconditions.checkNotNull(town, "town");
+
+        if (violatesConstraints(town)) return null;
+
+        boolean created = town.getId() == 0;
+        long version = town.getVersion();
+        if (created) town.setId(nextId);
+        else town.setVersion(version + 1);
+
+        try {
+            append(town.getId(), encodeTown(town));
+        } catch (IOException e) {
+            if (created) town.setId(0);
+            town.setVersion(version);
+            throw new UncheckedIOException("Cannot write town " + town.getName(), e);
+        }
+
+        if (created) nextId++;
+        store(town);
+        compactIfNeeded();
+
+        return town;
+    }
+
+    @Override
+    public Town update(@NotNull Town town, @NotNull Consumer<Town> mutation) {
+        return update(town, t -> true, mutation);
+    }
+
+    @Override
+    public synchronized Town update(@NotNull Town town, @NotNull Predicate<? super Town> precondition, @NotNull Consumer<Town> mutation) {
+        Preconditions.checkNotNull(town, "town");
+        Preconditions.checkNotNull(precondition, "precondition");
+        Preconditions.checkNotNull(mutation, "mutation");
+
+        Town stored = towns.get(town.getId());
+        if (stored == null) throw new EntityUpdateException(EntityUpdateException.Reason.NOT_FOUND, null, null);
+        if (!precondition.test(stored)) throw new EntityUpdateException(EntityUpdateException.Reason.PRECONDITION_FAILED, stored, null);
+
+        // The change is applied to a copy, which only replaces the stored town once written: a failed change leaves no trace
+        Town updated;
+        try {
+            updated = copy(stored);
+        } catch (IOException e) {
+            throw new EntityUpdateException(EntityUpdateException.Reason.FAILURE, stored, e);
+        }
+
+        mutation.accept(updated);
+        updated.setId(stored.getId());
+        updated.setVersion(stored.getVersion() + 1);
+
+        if (violatesConstraints(updated)) throw new EntityUpdateException(EntityUpdateException.Reason.CONSTRAINT_VIOLATION, stored, null);
+
+        try {
+            append(updated.getId(), encodeTown(updated));
+        } catch (IOException e) {
+            throw new EntityUpdateException(EntityUpdateException.Reason.FAILURE, stored, e);
+        }
+
+        store(updated);
+        compactIfNeeded();
+
+        return updated;
+    }
+
+    // The unique constraints of the database storage: town names, and players in a single town
+    private boolean violatesConstraints(Town town) {
+        Town owner = townsByName.get(Town.normalizeName(town.getName()));
+        if (owner != null && owner.getId() != town.getId()) return true;
+
+        for (TownMember member : town.getMembers()) {
+            owner = townsByMember.get(member.getUniqueId());
+            if (owner != null && owner.getId() != town.getId()) return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public synchronized void delete(@NotNull Town town) {
+        Preconditions.checkNotNull(town, "town");
+
+        if (!towns.containsKey(town.getId())) return;
+
+        try {
+            append(town.getId(), encodeDelete(town.getId()));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot delete town " + town.getName(), e);
+        }
+
+        remove(town.getId());
+        compactIfNeeded();
+    }
+
+    /**
+     * Run several operations as a single unit of work. Their records are held back until the work is done, and then appended
+     * as a single record, which is replayed as a whole or not at all. If the work throws, the towns it has changed are restored
+     * as they were before the work, and nothing is written. Nested calls join the outer one.
+     *
+     * @throws IllegalStateException If a nested call has failed, even if the failure has been caught. Nothing is written.
+     * @throws UncheckedIOException  If the changes can't be written. They are then discarded.
+     */
+    @Override
+    public synchronized <R> R inTransaction(@NotNull Supplier<R> work) {
+        Preconditions.checkNotNull(work, "work");
+
+        if (unit != null) {
+            try {
+                return work.get();
+            } catch (RuntimeException | Error e) {
+                unit.rollbackOnly = true;
+                throw e;
+            }
+        }
+
+        unit = new Unit(nextId);
+        R result;
+
+        try {
+            result = work.get();
+
+            if (unit.rollbackOnly) throw new IllegalStateException("Part of the unit of work has failed");
+            if (!unit.records.isEmpty()) log.append(encodeBatch(unit.records));
+        } catch (IOException e) {
+            rollback();
+            throw new UncheckedIOException("Cannot write the changes of the unit of work", e);
+        } catch (RuntimeException | Error e) {
+            rollback();
+            throw e;
+        } finally {
+            unit = null;
+        }
+
+        compactIfNeeded();
+        return result;
+    }
+
+    @Override
+    public void inTransaction(@NotNull Runnable work) {
+        Preconditions.checkNotNull(work, "work");
+
+        inTransaction(() -> {
+            work.run();
+            return null;
+        });
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+    // Within a unit of work, the record is held back, and the town it changes is kept as it was before its first change
+    private void append(long id, byte[] record) throws IOException {
+        if (unit == null) {
+            log.append(record);
+            return;
+        }
+
+        if (!unit.originals.containsKey(id)) {
+            Town stored = towns.get(id);
+            unit.originals.put(id, stored != null ? copy(stored) : null);
+        }
+
+        unit.records.add(record);
+    }
+
+    private void rollback() {
+        unit.originals.forEach((id, original) -> {
+            remove(id);
+            if (original != null) store(original);
+        });
+
+        nextId = unit.nextId;
+    }
+
+    private void store(Town town) {
+        remove(town.getId());
+
+        String name = Town.normalizeName(town.getName());
+        List<UUID> members = town.getMembers().stream().map(TownMember::getUniqueId).toList();
+
+        towns.put(town.getId(), town);
+        townsByName.put(name, town);
+        members.forEach(uuid -> townsByMember.put(uuid, town));
+        indexKeys.put(town.getId(), new IndexKeys(name, members));
+        nextId = Math.max(nextId, town.getId() + 1);
+    }
+
+    private void remove(long id) {
+        towns.remove(id);
+
+        IndexKeys keys = indexKeys.remove(id);
+        if (keys == null) return;
+
+        townsByName.remove(keys.name());
+        keys.members().forEach(townsByMember::remove);
+    }
+
+    private void compactIfNeeded() {
+        // The towns hold the changes of the unit of work, which must not be written before it's done
+        if (unit != null) return;
+
+        long records = log.getRecords();
+        if (records < COMPACTION_MIN_RECORDS || records <= (long) towns.size() * COMPACTION_RATIO) return;
+
+        try {
+            List<byte[]> snapshot = new ArrayList<>(towns.size() + 1);
+            // The records of the deleted towns are dropped, the highest id given so far must not be
+            snapshot.add(encodeNextId(nextId));
+            for (Town town : towns.values()) {
+                snapshot.add(encodeTown(town));
+            }
+
+            log.rewrite(snapshot);
+        } catch (IOException e) {
+            // The log is still complete, only larger than needed
+            Text.severe("Cannot compact the town log: " + e.getMessage());
+        }
+    }
+
+    private void replay(ByteBuffer record) {
+        byte[] bytes = new byte[record.remaining()];
+        record.get(bytes);
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            switch (in.readByte()) {
+                case TOWN_RECORD -> store(decodeTown(in));
+                case BALANCE_RECORD -> {
+                    Town town = towns.get(in.readLong());
+                    double balance = in.readDouble();
+                    long version = in.readLong();
+
+                    if (town != null) {
+                        town.setBalance(balance);
+                        town.setVersion(version);
+                    }
+                }
+                case DELETE_RECORD -> remove(in.readLong());
+                case BATCH_RECORD -> {
+                    int records = in.readInt();
+                    for (int i = 0; i < records; i++) {
+                        byte[] batched = new byte[in.readInt()];
+                        in.readFully(batched);
+                        replay(ByteBuffer.wrap(batched));
+                    }
+                }
+                case NEXT_ID_RECORD -> nextId = Math.max(nextId, in.readLong());
+                default -> throw new IOException("Unknown town log record");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] encodeTown(Town town) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(TOWN_RECORD);
+            out.writeLong(town.getId());
+            out.writeLong(town.getVersion());
+            out.writeUTF(town.getName());
+            out.writeDouble(town.getBalance());
+
+            TownHome home = town.getHome();
+            out.writeBoolean(home != null);
+            if (home != null) {
+                out.writeUTF(home.getWorld());
+                out.writeDouble(home.getX());
+                out.writeDouble(home.getY());
+                out.writeDouble(home.getZ());
+                out.writeFloat(home.getYaw());
+                out.writeFloat(home.getPitch());
+            }
+
+            out.writeInt(town.getMembers().size());
+            for (TownMember member : town.getMembers()) {
+                out.writeLong(member.getUniqueId().getMostSignificantBits());
+                out.writeLong(member.getUniqueId().getLeastSignificantBits());
+                out.writeUTF(member.getName() == null ? "" : member.getName());
+                out.writeUTF(member.getRole().name());
+                out.writeBoolean(member.getDeposit());
+                out.writeBoolean(member.getWithdraw());
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static Town decodeTown(DataInputStream in) throws IOException {
+        Town town = new Town(in.readLong(), in.readLong(), in.readUTF(), in.readDouble());
+
+        if (in.readBoolean()) {
+            town.restoreHome(new TownHome(town, in.readUTF(), in.readDouble(), in.readDouble(), in.readDouble(), in.readFloat(), in.readFloat()));
+        }
+
+        int members = in.readInt();
+        for (int i = 0; i < members; i++) {
+            UUID uuid = new UUID(in.readLong(), in.readLong());
+            town.getMembers().add(new TownMember(town, uuid, in.readUTF(), TownRole.valueOf(in.readUTF()), in.readBoolean(), in.readBoolean()));
+        }
+
+        return town;
+    }
+
+    private static Town copy(Town town) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(encodeTown(town)))) {
+            in.readByte();
+            return decodeTown(in);
+        }
+    }
+
+    private static byte[] encodeBalance(long id, double balance, long version) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(BALANCE_RECORD);
+            out.writeLong(id);
+            out.writeDouble(balance);
+            out.writeLong(version);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeDelete(long id) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(DELETE_RECORD);
+            out.writeLong(id);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeNextId(long nextId) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(NEXT_ID_RECORD);
+            out.writeLong(nextId);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeBatch(List<byte[]> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(records.stream().mapToInt(record -> record.length + 4).sum() + 5);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(BATCH_RECORD);
+            out.writeInt(records.size());
+            for (byte[] record : records) {
+                out.writeInt(record.length);
+                out.write(record);
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private record IndexKeys(String name, List<UUID> members) {
+    }
+
+    private static final class Unit {
+        private final long nextId;
+        private final List<byte[]> records = new ArrayList<>();
+        // The towns changed by the unit as they were before, null for the ones it has created
+        private final Map<Long, Town> originals = new HashMap<>();
+        private boolean rollbackOnly;
+
+        private Unit(long nextId) {
+            this.nextId = nextId;
+        }
+    }
+}
@@ -5,22 +5,66 @@ import jakarta.persistence.*;
 import network.multicore.vt.utils.Text;
 import org.bukkit.Location;
 import org.bukkit.entity.Player;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.ColumnDefault;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
 
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+// Created by the migrations: see TownMigrations
+@Table(
+        uniqueConstraints = @UniqueConstraint(name = "ux_towns_normalized_name", columnNames = "normalized_name"),
+        indexes = @Index(name = "ix_towns_balance", columnList = "balance DESC, id")
+)
+@NamedEntityGraph(name = Town.GRAPH_MEMBERS, attributeNodes = @NamedAttributeNode("members"))
+@NamedEntityGraph(name = Town.GRAPH_HOME, attributeNodes = @NamedAttributeNode("home"))
+@NamedEntityGraph(name = Town.GRAPH_FULL, attributeNodes = {@NamedAttributeNode("members"), @NamedAttributeNode("home")})
+// The results of these queries are cached when the query cache is enabled
+@NamedQuery(name = Town.FIND_BY_MEMBER, query = "SELECT t FROM Town t JOIN t.members m WHERE m.uuid = :uuid",
+        hints = @QueryHint(name = "org.hibernate.cacheable", value = "true"))
+@NamedQuery(name = Town.FIND_BY_NAME, query = "SELECT t FROM Town t WHERE t.normalizedName = :name",
+        hints = @QueryHint(name = "org.hibernate.cacheable", value = "true"))
+@NamedQuery(name = Town.FIND_ID_BY_NAME, query = "SELECT t.id FROM Town t WHERE t.normalizedName = :name")
+// VERSIONED increments the version, so that stale copies of the town can't overwrite the new balance
+@NamedQuery(name = Town.DEPOSIT, query = "UPDATE VERSIONED Town t SET t.balance = t.balance + :amount WHERE t.id = :id")
+@NamedQuery(name = Town.WITHDRAW, query = "UPDATE VERSIONED Town t SET t.balance = t.balance - :amount WHERE t.id = :id AND t.balance >= :amount")
+@NamedQuery(name = Town.BALANCE, query = "SELECT t.balance, t.version FROM Town t WHERE t.id = :id")
+@NamedQuery(name = Town.BALANCE_RANK, query = "SELECT COUNT(t) FROM Town t WHERE t.balance > (SELECT s.balance FROM Town s WHERE s.id = :id)")
 public class Town {
+    // Named queries are parsed and validated once, when the persistence unit starts
+    static final String FIND_BY_MEMBER = "Town.findByMember";
+    static final String FIND_BY_NAME = "Town.findByName";
+    static final String FIND_ID_BY_NAME = "Town.findIdByName";
+    static final String DEPOSIT = "Town.deposit";
+    static final String WITHDRAW = "Town.withdraw";
+    static final String BALANCE = "Town.balance";
+    static final String BALANCE_RANK = "Town.balanceRank";
+    static final String GRAPH_MEMBERS = "Town.members";
+    static final String GRAPH_HOME = "Town.home";
+    static final String GRAPH_FULL = "Town.full";
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private long id;
+    @Version
+    @ColumnDefault("0")
+    private long version;
     private String name;
+    // Lowercase copy of the name, which makes name lookups case-insensitive and names unique regardless of case
+    @Column(name = "normalized_name")
+    private String normalizedName;
     private double balance;
-    @OneToOne(mappedBy = "town", cascade = CascadeType.ALL, fetch = FetchType.EAGER)
+    // Associations are fetched according to the TownFetchPlan of each query
+    @OneToOne(mappedBy = "town", cascade = CascadeType.ALL, fetch = FetchType.LAZY)
     private TownHome home;
-    @OneToMany(mappedBy = "town", cascade = CascadeType.ALL, fetch = FetchType.EAGER)
+    @OneToMany(mappedBy = "town", cascade = CascadeType.ALL, fetch = FetchType.LAZY)
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     private List<TownMember> members;
 
     public Town(@NotNull String name, @NotNull Player leader) {
@@ -28,6 +72,7 @@ public class Town {
         Preconditions.checkNotNull(leader, "leader");
 
         this.name = Text.stripFormatting(name);
+        this.normalizedName = normalizeName(this.name);
         this.members = new ArrayList<>();
         this.members.add(new TownMember(this, leader, TownRole.MAYOR));
     }
@@ -35,10 +80,32 @@ public class Town {
     protected Town() {
     }
 
+    // Restores a town read from the log storage
+    Town(long id, long version, @NotNull String name, double balance) {
+        this.id = id;
+        this.version = version;
+        this.name = name;
+        this.normalizedName = normalizeName(name);
+        this.balance = balance;
+        this.members = new ArrayList<>();
+    }
+
     public long getId() {
         return id;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+
+    void setId(long id) {
+        this.id = id;
+    }
+
     public String getName() {
         return name;
     }
@@ -47,9 +114,26 @@ public class Town {
         Preconditions.checkNotNull(name, "name");
 
         this.name = Text.stripFormatting(name);
+        this.normalizedName = normalizeName(this.name);
         return this;
     }
 
+    /**
+     * Check if the town has the given name, ignoring the case like the unique constraint on town names.
+     *
+     * @param name The name.
+     * @return true if the name is the one of the town, or only differs by case.
+     */
+    public boolean hasName(@NotNull String name) {
+        Preconditions.checkNotNull(name, "name");
+
+        return normalizeName(Text.stripFormatting(name)).equals(normalizeName(this.name));
+    }
+
+    static String normalizeName(@NotNull String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
     public double getBalance() {
         return balance;
     }
@@ -74,6 +158,10 @@ public class Town {
         return home;
     }
 
+    void restoreHome(TownHome home) {
+        this.home = home;
+    }
+
     public Town setHome(Location location) {
         if (location == null) this.home = null;
         else this.home = new TownHome(this, location);
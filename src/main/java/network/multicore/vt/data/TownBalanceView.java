@@ -0,0 +1,11 @@
+package network.multicore.vt.data;
+
+/**
+ * Read-only projection of a town for the balance top.
+ *
+ * @param id      The id of the town.
+ * @param name    The name of the town.
+ * @param balance The balance of the town.
+ */
+public record TownBalanceView(long id, String name, double balance) {
+}
@@ -0,0 +1,42 @@
+package network.multicore.vt.data;
+
+/**
+ * Which associations of a town are fetched along with it.
+ * Associations that are not part of the plan are loaded on first access, as long as the town is managed.
+ */
+public enum TownFetchPlan {
+    /**
+     * Only the columns of the town.
+     */
+    NAMES_ONLY(null),
+    /**
+     * The town and its members.
+     */
+    WITH_MEMBERS(Town.GRAPH_MEMBERS),
+    /**
+     * The town and its home.
+     */
+    WITH_HOME(Town.GRAPH_HOME),
+    /**
+     * The town, its members and its home.
+     */
+    FULL(Town.GRAPH_FULL);
+
+    private final String entityGraph;
+
+    TownFetchPlan(String entityGraph) {
+        this.entityGraph = entityGraph;
+    }
+
+    public String getEntityGraph() {
+        return entityGraph;
+    }
+
+    public boolean includesMembers() {
+        return this == WITH_MEMBERS || this == FULL;
+    }
+
+    public boolean includesHome() {
+        return this == WITH_HOME || this == FULL;
+    }
+}
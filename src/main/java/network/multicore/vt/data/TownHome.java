@@ -5,11 +5,15 @@ import jakarta.persistence.*;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.World;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Optional;
 
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class TownHome {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -41,6 +45,17 @@ public class TownHome {
     protected TownHome() {
     }
 
+    // Restores a home read from the log storage, whose world may not be loaded yet
+    TownHome(@NotNull Town town, @NotNull String world, double x, double y, double z, float yaw, float pitch) {
+        this.town = town;
+        this.world = world;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.yaw = yaw;
+        this.pitch = pitch;
+    }
+
     public long getId() {
         return id;
     }
@@ -49,6 +64,30 @@ public class TownHome {
         return town;
     }
 
+    String getWorld() {
+        return world;
+    }
+
+    double getX() {
+        return x;
+    }
+
+    double getY() {
+        return y;
+    }
+
+    double getZ() {
+        return z;
+    }
+
+    float getYaw() {
+        return yaw;
+    }
+
+    float getPitch() {
+        return pitch;
+    }
+
     public Optional<Location> getLocation() {
         World w = Bukkit.getWorld(world);
         if (w == null) return Optional.empty();
@@ -1,19 +1,37 @@
 package network.multicore.vt.data;
 
 import com.google.common.base.Preconditions;
+import jakarta.persistence.Cacheable;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.ManyToOne;
+import jakarta.persistence.Index;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+import jakarta.persistence.Version;
 import org.bukkit.entity.Player;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.ColumnDefault;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.UUID;
 
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+// Created by the migrations: see TownMigrations
+@Table(indexes = @Index(name = "ix_town_members_town", columnList = "town"))
+@NamedQuery(name = TownMember.FIND_VIEWS_BY_TOWN_NAME,
+        query = "SELECT new network.multicore.vt.data.TownMemberView(m.uuid, m.name, m.role) FROM TownMember m WHERE m.town.normalizedName = :name")
 public class TownMember {
+    static final String FIND_VIEWS_BY_TOWN_NAME = "TownMember.findViewsByTownName";
     @Id
     private UUID uuid;
+    @Version
+    @ColumnDefault("0")
+    private long version;
     @ManyToOne
     @JoinColumn(name = "town")
     private Town town;
@@ -42,6 +60,16 @@ public class TownMember {
     protected TownMember() {
     }
 
+    // Restores a member read from the log storage
+    TownMember(@NotNull Town town, @NotNull UUID uuid, String name, @NotNull TownRole role, boolean deposit, boolean withdraw) {
+        this.town = town;
+        this.uuid = uuid;
+        this.name = name;
+        this.role = role;
+        this.deposit = deposit;
+        this.withdraw = withdraw;
+    }
+
     public UUID getUniqueId() {
         return uuid;
     }
@@ -76,6 +104,10 @@ public class TownMember {
         return deposit || role.equals(TownRole.MAYOR) || role.equals(TownRole.OFFICER);
     }
 
+    boolean getDeposit() {
+        return deposit;
+    }
+
     public TownMember setDeposit(boolean deposit) {
         this.deposit = deposit;
         return this;
@@ -85,6 +117,10 @@ public class TownMember {
         return withdraw || role.equals(TownRole.MAYOR) || role.equals(TownRole.OFFICER);
     }
 
+    boolean getWithdraw() {
+        return withdraw;
+    }
+
     public TownMember setWithdraw(boolean withdraw) {
         this.withdraw = withdraw;
         return this;
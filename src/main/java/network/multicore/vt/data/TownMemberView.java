@@ -0,0 +1,13 @@
+package network.multicore.vt.data;
+
+import java.util.UUID;
+
+/**
+ * Read-only projection of a town member for rosters.
+ *
+ * @param uuid The UUID of the player.
+ * @param name The last known name of the player.
+ * @param role The role of the player in the town.
+ */
+public record TownMemberView(UUID uuid, String name, TownRole role) {
+}
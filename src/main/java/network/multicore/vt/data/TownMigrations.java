@@ -0,0 +1,277 @@
+package network.multicore.vt.data;
+
+import network.multicore.vt.persistence.UuidStorage;
+import network.multicore.vt.persistence.datasource.DataSourceType;
+import network.multicore.vt.persistence.migration.JavaMigration;
+import network.multicore.vt.persistence.migration.Migration;
+import network.multicore.vt.persistence.migration.MigrationContext;
+import network.multicore.vt.persistence.migration.SqlMigration;
+import network.multicore.vt.utils.Text;
+
+import java.nio.ByteBuffer;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The schema migrations of the town tables. New migrations must be appended with a higher version, never edited once released.
+ */
+public final class TownMigrations {
+    private static final List<Migration> MIGRATIONS = List.of(
+            new SqlMigration(1, "Create the towns, members and homes tables", "V1__create_tables.sql"),
+            new JavaMigration(2, "Add the optimistic locking version columns", TownMigrations::addVersionColumns),
+            new JavaMigration(3, "Add the normalized town name and the lookup indexes", TownMigrations::addIndexes),
+            JavaMigration.repeatable("Convert the member UUIDs to the configured storage", TownMigrations::convertMemberUuids)
+    );
+
+    private TownMigrations() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    public static List<Migration> all() {
+        return MIGRATIONS;
+    }
+
+    private static void addVersionColumns(MigrationContext context) throws SQLException {
+        // Tables created before optimistic locking, which V1 keeps as they are, don't have them yet
+        for (String table : List.of(context.table("towns"), context.table("town_members"))) {
+            if (!context.hasColumn(table, "version")) {
+                context.execute("ALTER TABLE " + table + " ADD version bigint default 0 not null");
+            }
+        }
+    }
+
+    private static void addIndexes(MigrationContext context) throws SQLException {
+        String towns = context.table("towns");
+        String members = context.table("town_members");
+
+        if (!context.hasColumn(towns, "normalized_name")) {
+            context.execute("ALTER TABLE " + towns + " ADD normalized_name varchar(255)");
+        }
+
+        // Names differing only by case used to be allowed: the oldest town keeps the name, the others are renamed to the first free
+        // Name-2, Name-3... so that the unique constraint can be created and every town can still be found by its name
+        List<TownName> names = new ArrayList<>();
+        try (Statement select = context.connection().createStatement();
+             ResultSet rs = select.executeQuery("SELECT id, name FROM " + towns + " ORDER BY id")) {
+            while (rs.next()) {
+                names.add(new TownName(rs.getLong(1), rs.getString(2)));
+            }
+        }
+
+        Set<String> existing = new HashSet<>();
+        for (TownName town : names) {
+            if (town.name() != null) existing.add(normalizeName(town.name()));
+        }
+
+        Set<String> taken = new HashSet<>();
+        try (PreparedStatement update = context.connection().prepareStatement("UPDATE " + towns + " SET name = ?, normalized_name = ? WHERE id = ?")) {
+            for (TownName town : names) {
+                String name = town.name();
+
+                if (name != null && !taken.add(normalizeName(name))) {
+                    String renamed;
+                    int suffix = 2;
+                    // Also skips the names of the towns that come later, which keep theirs
+                    do {
+                        renamed = name + "-" + suffix++;
+                    } while (existing.contains(normalizeName(renamed)) || !taken.add(normalizeName(renamed)));
+
+                    Text.warning("Town " + name + " (id " + town.id() + ") has been renamed to " + renamed + ": its name only differed by case from the one of an older town");
+                    name = renamed;
+                }
+
+                update.setString(1, name);
+                update.setString(2, name == null ? null : normalizeName(name));
+                update.setLong(3, town.id());
+                update.addBatch();
+            }
+
+            update.executeBatch();
+        }
+
+        if (!context.hasIndex(towns, "normalized_name")) {
+            context.execute("CREATE UNIQUE INDEX " + context.table("ux_towns_normalized_name") + " ON " + towns + " (normalized_name)");
+        }
+
+        // Backs the baltop and the balance rank, which sort by balance and break ties by id
+        if (!context.hasIndex(towns, "balance")) {
+            context.execute("CREATE INDEX " + context.table("ix_towns_balance") + " ON " + towns + " (balance DESC, id)");
+        }
+
+        // MySQL, MariaDB and H2 index foreign keys on their own, PostgreSQL and SQLite don't
+        if (!context.hasIndex(members, "town")) {
+            context.execute("CREATE INDEX " + context.table("ix_town_members_town") + " ON " + members + " (town)");
+        }
+    }
+
+    // The normalization of this version, kept here so that the migration doesn't change if the one of Town does
+    private static String normalizeName(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Convert the member UUIDs when the column doesn't match the configured {@link UuidStorage}, which happens when the option is changed
+     * or when the table has been created by an earlier version. The primary key type can't be changed in place portably,
+     * so the table is copied to a new one with the right type, converting every UUID. The old table is then renamed to a backup,
+     * the new one takes its place, and the backup is dropped: the members are never left without a table holding all of them.
+     * Databases that commit DDL statements implicitly can stop between these steps, in which case the next run resumes the swap.
+     */
+    private static void convertMemberUuids(MigrationContext context) throws SQLException {
+        String members = context.table("town_members");
+        String newMembers = context.table("town_members_new");
+        String backupMembers = context.table("town_members_backup");
+
+        resumeMemberSwap(context, members, newMembers, backupMembers);
+
+        UuidForm target = context.uuidStorage() == UuidStorage.STRING ? UuidForm.STRING : context.uuidStorage().isNative(context.type()) ? UuidForm.NATIVE : UuidForm.BINARY;
+
+        UuidForm current;
+        try (Statement statement = context.connection().createStatement(); ResultSet rs = statement.executeQuery("SELECT uuid FROM " + members + " WHERE 1 = 0")) {
+            current = UuidForm.of(rs.getMetaData());
+        }
+
+        if (current == target) {
+            // Also indexes the table of a swap that stopped right after dropping the backup
+            indexMemberTowns(context, members);
+            return;
+        }
+
+        DataSourceType type = context.type();
+        boolean mysql = type == DataSourceType.MYSQL || type == DataSourceType.MARIADB;
+
+        context.execute("CREATE TABLE " + newMembers + " ("
+                + "uuid ${uuid} not null, "
+                + "version bigint default 0 not null, "
+                + "town bigint, "
+                + "name varchar(255), "
+                + "role " + (type == DataSourceType.POSTGRESQL ? "smallint" : "tinyint") + " check (role between 0 and 2), "
+                + "deposit " + (mysql ? "bit" : "boolean") + " not null, "
+                + "withdraw " + (mysql ? "bit" : "boolean") + " not null, "
+                + "primary key (uuid), "
+                + "foreign key (town) references ${prefix}towns (id))"
+                + (mysql ? " engine=InnoDB" : ""));
+
+        try (Statement select = context.connection().createStatement();
+             ResultSet rs = select.executeQuery("SELECT uuid, version, town, name, role, deposit, withdraw FROM " + members);
+             PreparedStatement insert = context.connection().prepareStatement("INSERT INTO " + newMembers + " (uuid, version, town, name, role, deposit, withdraw) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            while (rs.next()) {
+                target.write(insert, 1, current.read(rs, 1));
+                insert.setLong(2, rs.getLong(2));
+
+                long town = rs.getLong(3);
+                if (rs.wasNull()) insert.setNull(3, Types.BIGINT);
+                else insert.setLong(3, town);
+
+                insert.setString(4, rs.getString(4));
+
+                int role = rs.getInt(5);
+                if (rs.wasNull()) insert.setNull(5, Types.SMALLINT);
+                else insert.setInt(5, role);
+
+                insert.setBoolean(6, rs.getBoolean(6));
+                insert.setBoolean(7, rs.getBoolean(7));
+                insert.addBatch();
+            }
+
+            insert.executeBatch();
+        }
+
+        context.execute("ALTER TABLE " + members + " RENAME TO " + backupMembers);
+        context.execute("ALTER TABLE " + newMembers + " RENAME TO " + members);
+        // Dropped before indexing the new table, since some databases name indexes per schema and the backup still holds the old index
+        context.execute("DROP TABLE " + backupMembers);
+        indexMemberTowns(context, members);
+    }
+
+    private static void indexMemberTowns(MigrationContext context, String members) throws SQLException {
+        if (!context.hasIndex(members, "town")) {
+            context.execute("CREATE INDEX " + context.table("ix_town_members_town") + " ON " + members + " (town)");
+        }
+    }
+
+    /**
+     * Finish or undo a conversion of the member UUIDs that stopped halfway, see {@link #convertMemberUuids(MigrationContext)}.
+     */
+    private static void resumeMemberSwap(MigrationContext context, String members, String newMembers, String backupMembers) throws SQLException {
+        if (context.hasTable(backupMembers)) {
+            if (!context.hasTable(members)) {
+                // Stopped between the two renames: the new table is complete, since it's only renamed once filled
+                if (context.hasTable(newMembers)) {
+                    Text.warning("Resuming the conversion of the town member UUIDs that stopped before completing");
+                    context.execute("ALTER TABLE " + newMembers + " RENAME TO " + members);
+                } else {
+                    Text.warning("Restoring the town members from " + backupMembers + ", left by a conversion of their UUIDs that stopped before completing");
+                    context.execute("ALTER TABLE " + backupMembers + " RENAME TO " + members);
+                    return;
+                }
+            }
+
+            // The new table has taken the place of the old one, which is only left to drop
+            context.execute("DROP TABLE " + backupMembers);
+        }
+
+        // Stopped while filling the new table, which may be incomplete: the old one is untouched, and the conversion starts over
+        if (context.hasTable(newMembers)) context.execute("DROP TABLE " + newMembers);
+    }
+
+    private record TownName(long id, String name) {
+    }
+
+    /**
+     * How a UUID column stores its values.
+     */
+    private enum UuidForm {
+        BINARY,
+        NATIVE,
+        STRING;
+
+        static UuidForm of(ResultSetMetaData metaData) throws SQLException {
+            if (metaData.getColumnTypeName(1).toLowerCase(Locale.ROOT).startsWith("uuid")) return NATIVE;
+
+            return switch (metaData.getColumnType(1)) {
+                case Types.BINARY, Types.VARBINARY, Types.LONGVARBINARY, Types.BLOB -> BINARY;
+                case Types.CHAR, Types.VARCHAR, Types.LONGVARCHAR, Types.NCHAR, Types.NVARCHAR, Types.CLOB -> STRING;
+                default -> throw new SQLException("Unsupported UUID column type " + metaData.getColumnTypeName(1));
+            };
+        }
+
+        UUID read(ResultSet rs, int index) throws SQLException {
+            switch (this) {
+                case BINARY -> {
+                    byte[] bytes = rs.getBytes(index);
+                    if (bytes == null) return null;
+
+                    // Hibernate stores the most significant bits first
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    return new UUID(buffer.getLong(), buffer.getLong());
+                }
+                case NATIVE -> {
+                    // PostgreSQL and H2 return a UUID, MariaDB its text form
+                    Object value = rs.getObject(index);
+                    if (value == null) return null;
+                    return value instanceof UUID uuid ? uuid : UUID.fromString(value.toString().strip());
+                }
+                default -> {
+                    String value = rs.getString(index);
+                    return value == null ? null : UUID.fromString(value.strip());
+                }
+            }
+        }
+
+        void write(PreparedStatement statement, int index, UUID uuid) throws SQLException {
+            switch (this) {
+                case BINARY -> statement.setBytes(index, ByteBuffer.allocate(16)
+                        .putLong(uuid.getMostSignificantBits())
+                        .putLong(uuid.getLeastSignificantBits())
+                        .array());
+                case NATIVE -> statement.setObject(index, uuid);
+                default -> statement.setString(index, uuid.toString());
+            }
+        }
+    }
+}
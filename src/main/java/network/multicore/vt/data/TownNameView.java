@@ -0,0 +1,10 @@
+package network.multicore.vt.data;
+
+/**
+ * Read-only projection of a town for name listings, such as tab completions.
+ *
+ * @param id   The id of the town.
+ * @param name The name of the town.
+ */
+public record TownNameView(long id, String name) {
+}
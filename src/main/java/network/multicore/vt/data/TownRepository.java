@@ -1,20 +1,53 @@
 package network.multicore.vt.data;
 
+import com.google.common.base.Preconditions;
 import jakarta.persistence.EntityManager;
-import network.multicore.vt.persistence.entity.EntityRepository;
+import network.multicore.vt.persistence.entity.*;
+import network.multicore.vt.utils.Text;
 import org.bukkit.entity.Player;
+import org.hibernate.Hibernate;
+import org.jetbrains.annotations.NotNull;
 
+import java.util.List;
 import java.util.Optional;
+import java.util.OptionalDouble;
 import java.util.UUID;
 
-public class TownRepository extends EntityRepository<Town, Long> {
+public class TownRepository extends EntityRepository<Town, Long> implements TownStore {
+    private static final Sort NAME_SORT = Sort.by("name");
+    private static final Sort BALANCE_SORT = Sort.by(Sort.Order.desc("balance"), Sort.Order.asc("id"));
+    // Matches the normalized name against a LIKE pattern, where \ escapes the wildcards typed by the player
+    private static final Specification<Town> NAME_PREFIX = Specification.cacheable((root, query, builder) ->
+            builder.like(root.<String>get("normalizedName"), builder.parameter(String.class, "prefix"), '\\'));
 
     public TownRepository(EntityManager entityManager, Class<Town> entityClass) {
         super(entityManager, entityClass);
     }
 
     public Optional<Town> findByMember(UUID uuid) {
-        return entityManager.createQuery("SELECT t FROM Town t JOIN t.members m WHERE m.uuid = :uuid", Town.class)
+        return findByMember(uuid, TownFetchPlan.FULL);
+    }
+
+    public Optional<Town> findByMember(UUID uuid, @NotNull TownFetchPlan plan) {
+        return findByMember(entityManager, uuid, plan);
+    }
+
+    /**
+     * Find the town of a player for display only, on a read replica if any. The town may be detached and may lag behind the primary,
+     * so it must not be modified or saved.
+     *
+     * @param uuid The UUID of the player.
+     * @param plan The associations to load.
+     * @return The town, if found.
+     */
+    public Optional<Town> findByMemberReadOnly(UUID uuid, @NotNull TownFetchPlan plan) {
+        return readOnly(readEntityManager -> findByMember(readEntityManager, uuid, plan));
+    }
+
+    private Optional<Town> findByMember(EntityManager entityManager, UUID uuid, TownFetchPlan plan) {
+        Preconditions.checkNotNull(plan, "plan");
+
+        return withEntityGraph(entityManager.createNamedQuery(Town.FIND_BY_MEMBER, Town.class), plan.getEntityGraph())
                 .setParameter("uuid", uuid)
                 .getResultList()
                 .stream()
@@ -25,11 +58,226 @@ public class TownRepository extends EntityRepository<Town, Long> {
         return findByMember(player.getUniqueId());
     }
 
+    public Optional<Town> findByMember(Player player, @NotNull TownFetchPlan plan) {
+        return findByMember(player.getUniqueId(), plan);
+    }
+
     public Optional<Town> findByName(String name) {
-        return entityManager.createQuery("SELECT t FROM Town t WHERE t.name = :name", Town.class)
-                .setParameter("name", name)
+        return findByName(name, TownFetchPlan.FULL);
+    }
+
+    /**
+     * Find a town by name, ignoring the case.
+     *
+     * @param name The name of the town.
+     * @param plan The associations to load.
+     * @return The town, if found.
+     */
+    public Optional<Town> findByName(@NotNull String name, @NotNull TownFetchPlan plan) {
+        return findByName(entityManager, name, plan);
+    }
+
+    /**
+     * Find a town by name, ignoring the case, for display only, on a read replica if any.
+     * The town may be detached and may lag behind the primary, so it must not be modified or saved.
+     *
+     * @param name The name of the town.
+     * @param plan The associations to load.
+     * @return The town, if found.
+     */
+    public Optional<Town> findByNameReadOnly(@NotNull String name, @NotNull TownFetchPlan plan) {
+        return readOnly(readEntityManager -> findByName(readEntityManager, name, plan));
+    }
+
+    private Optional<Town> findByName(EntityManager entityManager, String name, TownFetchPlan plan) {
+        Preconditions.checkNotNull(name, "name");
+        Preconditions.checkNotNull(plan, "plan");
+
+        return withEntityGraph(entityManager.createNamedQuery(Town.FIND_BY_NAME, Town.class), plan.getEntityGraph())
+                .setParameter("name", Town.normalizeName(name))
                 .getResultList()
                 .stream()
                 .findFirst();
     }
+
+    /**
+     * Check if a town has the given name, ignoring the case.
+     *
+     * @param name The name.
+     * @return true if the name is taken.
+     */
+    public boolean existsByName(@NotNull String name) {
+        Preconditions.checkNotNull(name, "name");
+
+        return !entityManager.createNamedQuery(Town.FIND_ID_BY_NAME, Long.class)
+                .setParameter("name", Town.normalizeName(name))
+                .setMaxResults(1)
+                .getResultList()
+                .isEmpty();
+    }
+
+    public Optional<Town> findById(@NotNull Long id, @NotNull TownFetchPlan plan) {
+        Preconditions.checkNotNull(plan, "plan");
+
+        return findById(id, plan.getEntityGraph());
+    }
+
+    public List<Town> findAll(@NotNull TownFetchPlan plan) {
+        Preconditions.checkNotNull(plan, "plan");
+
+        return findAll(null, Sort.unsorted(), plan.getEntityGraph());
+    }
+
+    /**
+     * Load the associations of a plan that have not been loaded yet, so that the town can still be used once detached.
+     * Does nothing if the town is not managed.
+     *
+     * @param town The town.
+     * @param plan The associations to load.
+     * @return The town.
+     */
+    public Town initialize(@NotNull Town town, @NotNull TownFetchPlan plan) {
+        Preconditions.checkNotNull(town, "town");
+        Preconditions.checkNotNull(plan, "plan");
+
+        if (!entityManager.contains(town)) return town;
+
+        if (plan.includesMembers()) Hibernate.initialize(town.getMembers());
+        if (plan.includesHome()) Hibernate.initialize(town.getHome());
+        return town;
+    }
+
+    /**
+     * Get the id and name of the towns whose name starts with the given prefix, ignoring the case, without loading the towns.
+     * Read from a replica if any.
+     *
+     * @param prefix The prefix, such as what has been typed so far for a tab completion.
+     * @param limit  The maximum number of towns.
+     * @return The names of the towns, sorted by name.
+     */
+    public List<TownNameView> findNamesByPrefix(@NotNull String prefix, int limit) {
+        Preconditions.checkNotNull(prefix, "prefix");
+        Preconditions.checkArgument(limit > 0, "Limit must be greater than 0");
+
+        return readOnly(readEntityManager -> getProjectionQuery(readEntityManager, NAME_PREFIX, NAME_SORT, TownNameView.class, "id", "name")
+                .setParameter("prefix", escapeLike(Town.normalizeName(prefix)) + "%")
+                .setMaxResults(limit)
+                .getResultList());
+    }
+
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    /**
+     * Get the richest towns, without loading the towns. Read from a replica if any.
+     *
+     * @param size The maximum number of towns.
+     * @return The towns, by balance.
+     */
+    public List<TownBalanceView> findTopBalances(int size) {
+        Preconditions.checkArgument(size > 0, "Size must be greater than 0");
+
+        return readOnly(readEntityManager -> getProjectionQuery(readEntityManager, null, BALANCE_SORT, TownBalanceView.class, "id", "name", "balance")
+                .setMaxResults(size)
+                .getResultList());
+    }
+
+    /**
+     * Get the roster of a town, without loading the town or its members. Read from a replica if any.
+     *
+     * @param townName The name of the town.
+     * @return The members of the town, or an empty list if the town doesn't exist.
+     */
+    public List<TownMemberView> findMembers(@NotNull String townName) {
+        Preconditions.checkNotNull(townName, "townName");
+
+        return readOnly(readEntityManager -> readEntityManager.createNamedQuery(TownMember.FIND_VIEWS_BY_TOWN_NAME, TownMemberView.class)
+                .setParameter("name", Town.normalizeName(townName))
+                .getResultList());
+    }
+
+    /**
+     * Get the position of a town in the balance top: one plus the number of towns with a strictly higher balance,
+     * so that towns with the same balance share the same position.
+     * The balance is the one in the database, not the one of the given instance. Read from a replica if any.
+     *
+     * @param town The town.
+     * @return The position of the town, starting from 1.
+     */
+    public long getBalanceRank(@NotNull Town town) {
+        Preconditions.checkNotNull(town, "town");
+
+        return readOnly(readEntityManager -> readEntityManager.createNamedQuery(Town.BALANCE_RANK, Long.class)
+                .setParameter("id", town.getId())
+                .getSingleResult()) + 1;
+    }
+
+    /**
+     * Atomically add money to the balance of a town in the database and patch the given instance with the new balance.
+     *
+     * @param town   The town.
+     * @param amount The amount to deposit.
+     * @return The new balance, or empty if the town doesn't exist.
+     * @throws EntityUpdateException With {@link EntityUpdateException.Reason#FAILURE} if the balance can't be updated.
+     */
+    public OptionalDouble deposit(@NotNull Town town, double amount) {
+        Preconditions.checkNotNull(town, "town");
+        Preconditions.checkArgument(amount > 0, "Amount must be greater than 0");
+
+        return updateBalance(town, Town.DEPOSIT, amount);
+    }
+
+    /**
+     * Atomically withdraw money from the balance of a town in the database, only if the town has enough money,
+     * and patch the given instance with the new balance.
+     *
+     * @param town   The town.
+     * @param amount The amount to withdraw.
+     * @return The new balance, or empty if the town doesn't exist or doesn't have enough money.
+     * @throws EntityUpdateException With {@link EntityUpdateException.Reason#FAILURE} if the balance can't be updated.
+     */
+    public OptionalDouble withdraw(@NotNull Town town, double amount) {
+        Preconditions.checkNotNull(town, "town");
+        Preconditions.checkArgument(amount > 0, "Amount must be greater than 0");
+
+        return updateBalance(town, Town.WITHDRAW, amount);
+    }
+
+    private OptionalDouble updateBalance(Town town, String queryName, double amount) {
+        Object[] result;
+
+        try {
+            result = inTransaction(() -> {
+                int updated = entityManager.createNamedQuery(queryName)
+                        .setParameter("amount", amount)
+                        .setParameter("id", town.getId())
+                        .executeUpdate();
+
+                // Nothing has been written, so a surrounding unit of work can still be committed
+                if (updated == 0) return null;
+
+                return entityManager.createNamedQuery(Town.BALANCE, Object[].class)
+                        .setParameter("id", town.getId())
+                        .getSingleResult();
+            });
+        } catch (RuntimeException e) {
+            // Unlike a missing town or a lack of money, the caller must not report it as such. Within a unit of work, it can only be rolled back
+            Text.severe("Cannot update the balance of town " + town.getName() + ": " + e.getMessage());
+            throw new EntityUpdateException(EntityUpdateException.Reason.FAILURE, null, e);
+        }
+
+        if (result == null) return OptionalDouble.empty();
+
+        double balance = (Double) result[0];
+        long version = (Long) result[1];
+
+        // The bulk update bypasses the persistence context: detach the instance so that
+        // patching its balance doesn't make Hibernate write the whole row again on the next flush
+        if (entityManager.contains(town)) entityManager.detach(initialize(town, TownFetchPlan.FULL));
+        town.setBalance(balance);
+        town.setVersion(version);
+
+        return OptionalDouble.of(balance);
+    }
 }
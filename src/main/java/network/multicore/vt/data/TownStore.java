@@ -0,0 +1,165 @@
+package network.multicore.vt.data;
+
+import network.multicore.vt.persistence.entity.EntityUpdateException;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * The operations of the plugin on the stored towns, implemented by the {@link TownRepository database} and the {@link LogTownRepository log} storages.
+ * Only the failures expected during play are reported by the result: a save returns null on a constraint violation,
+ * and a deposit or a withdrawal returns empty when the town doesn't exist or doesn't have enough money.
+ * Every other failure throws: an {@link EntityUpdateException} for the updates and the balance changes,
+ * and a {@link RuntimeException} for the saves and the deletes.
+ */
+public interface TownStore {
+
+    Optional<Town> findById(@NotNull Long id);
+
+    Optional<Town> findById(@NotNull Long id, @NotNull TownFetchPlan plan);
+
+    List<Town> findAll(@NotNull TownFetchPlan plan);
+
+    Optional<Town> findByMember(UUID uuid);
+
+    Optional<Town> findByMember(UUID uuid, @NotNull TownFetchPlan plan);
+
+    Optional<Town> findByMember(Player player);
+
+    Optional<Town> findByMember(Player player, @NotNull TownFetchPlan plan);
+
+    /**
+     * Find the town of a player for display only. The town must not be modified or saved.
+     *
+     * @param uuid The UUID of the player.
+     * @param plan The associations to load.
+     * @return The town, if found.
+     */
+    Optional<Town> findByMemberReadOnly(UUID uuid, @NotNull TownFetchPlan plan);
+
+    Optional<Town> findByName(String name);
+
+    /**
+     * Find a town by name, ignoring the case.
+     *
+     * @param name The name of the town.
+     * @param plan The associations to load.
+     * @return The town, if found.
+     */
+    Optional<Town> findByName(@NotNull String name, @NotNull TownFetchPlan plan);
+
+    /**
+     * Find a town by name, ignoring the case, for display only. The town must not be modified or saved.
+     *
+     * @param name The name of the town.
+     * @param plan The associations to load.
+     * @return The town, if found.
+     */
+    Optional<Town> findByNameReadOnly(@NotNull String name, @NotNull TownFetchPlan plan);
+
+    boolean existsByName(@NotNull String name);
+
+    /**
+     * Load the associations of a plan that have not been loaded yet, so that the town can still be used once detached.
+     *
+     * @param town The town.
+     * @param plan The associations to load.
+     * @return The town.
+     */
+    Town initialize(@NotNull Town town, @NotNull TownFetchPlan plan);
+
+    /**
+     * Get the names of the towns whose name starts with the given prefix, ignoring the case.
+     *
+     * @param prefix The prefix.
+     * @param limit  The maximum number of towns.
+     * @return The names of the towns, sorted by name.
+     */
+    List<TownNameView> findNamesByPrefix(@NotNull String prefix, int limit);
+
+    List<TownBalanceView> findTopBalances(int size);
+
+    List<TownMemberView> findMembers(@NotNull String townName);
+
+    long getBalanceRank(@NotNull Town town);
+
+    /**
+     * Atomically add money to the balance of a town and patch the given instance with the new balance.
+     *
+     * @param town   The town.
+     * @param amount The amount to deposit.
+     * @return The new balance, or empty if the town doesn't exist.
+     * @throws EntityUpdateException With {@link EntityUpdateException.Reason#FAILURE} if the balance can't be updated.
+     */
+    OptionalDouble deposit(@NotNull Town town, double amount);
+
+    /**
+     * Atomically withdraw money from the balance of a town, only if it has enough money, and patch the given instance with the new balance.
+     *
+     * @param town   The town.
+     * @param amount The amount to withdraw.
+     * @return The new balance, or empty if the town doesn't exist or doesn't have enough money.
+     * @throws EntityUpdateException With {@link EntityUpdateException.Reason#FAILURE} if the balance can't be updated.
+     */
+    OptionalDouble withdraw(@NotNull Town town, double amount);
+
+    /**
+     * Store a new or modified town.
+     *
+     * @param town The town.
+     * @return The stored town, or null if it violates a unique constraint: its name is taken, or one of its members is in another town.
+     * @throws RuntimeException If it can't be stored for any other reason.
+     */
+    <S extends Town> S save(@NotNull S town);
+
+    /**
+     * Apply a change to a town and store it.
+     *
+     * @param town     The town.
+     * @param mutation The change.
+     * @return The stored town.
+     * @throws EntityUpdateException If the change can't be stored.
+     */
+    Town update(@NotNull Town town, @NotNull Consumer<Town> mutation);
+
+    /**
+     * Apply a change to a town and store it, if the precondition holds for the town as currently stored.
+     * The change may be applied again to a fresh instance if the town has been modified concurrently.
+     * If it can't be stored, the given instance must be replaced with {@link EntityUpdateException#getCurrent()}.
+     *
+     * @param town         The town.
+     * @param precondition The condition for the change to apply, such as the checks made before calling this method.
+     * @param mutation     The change.
+     * @return The stored town.
+     * @throws EntityUpdateException If the precondition doesn't hold or the change can't be stored.
+     */
+    Town update(@NotNull Town town, @NotNull Predicate<? super Town> precondition, @NotNull Consumer<Town> mutation);
+
+    /**
+     * Delete a town, along with its members and home.
+     *
+     * @param town The town.
+     * @throws RuntimeException If the town can't be deleted.
+     */
+    void delete(@NotNull Town town);
+
+    /**
+     * Run several operations as a single unit of work, such as the steps of a town deletion or a bulk edit.
+     * The database storage runs them in one transaction, the log storage writes them as a single record:
+     * either way, they are discarded as a whole if the work throws, and the towns read within it must then be read again.
+     *
+     * @param work The work.
+     * @param <R>  The type of the result.
+     * @return The result of the work.
+     */
+    <R> R inTransaction(@NotNull Supplier<R> work);
+
+    void inTransaction(@NotNull Runnable work);
+}
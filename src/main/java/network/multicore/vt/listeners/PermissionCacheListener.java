@@ -0,0 +1,29 @@
+package network.multicore.vt.listeners;
+
+import network.multicore.vt.utils.PermissionCache;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+public class PermissionCacheListener implements Listener {
+    private final PermissionCache permissionCache = PermissionCache.get();
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onJoin(PlayerJoinEvent e) {
+        permissionCache.load(e.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldChange(PlayerChangedWorldEvent e) {
+        // Permissions may depend on the world context
+        permissionCache.load(e.getPlayer());
+    }
+
+    @EventHandler
+    public void onQuit(PlayerQuitEvent e) {
+        permissionCache.unload(e.getPlayer());
+    }
+}
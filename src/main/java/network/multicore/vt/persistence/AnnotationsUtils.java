@@ -3,12 +3,26 @@ package network.multicore.vt.persistence;
 import com.google.common.base.Preconditions;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
+import jakarta.persistence.Version;
+import org.hibernate.proxy.HibernateProxy;
 import org.jetbrains.annotations.NotNull;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.lang.reflect.Field;
 import java.util.Locale;
 
 public class AnnotationsUtils {
+    /**
+     * Entity metadata, resolved once per class the first time it is needed.
+     * Field access goes through VarHandles, so that reading ids doesn't require any reflection or accessibility toggling.
+     */
+    private static final ClassValue<EntityMetadata> METADATA = new ClassValue<>() {
+        @Override
+        protected EntityMetadata computeValue(@NotNull Class<?> type) {
+            return EntityMetadata.resolve(type);
+        }
+    };
 
     private AnnotationsUtils() {
         throw new IllegalStateException("Utility class");
@@ -19,47 +33,109 @@ public class AnnotationsUtils {
             return false;
         }
 
-        return classToEvaluate.isAnnotationPresent(Entity.class);
+        return METADATA.get(classToEvaluate).entity();
     }
 
     public static String getEntityName(@NotNull Class<?> classToEvaluate) {
         Preconditions.checkNotNull(classToEvaluate, "classToEvaluate");
 
-        if (!isEntity(classToEvaluate)) {
+        EntityMetadata metadata = METADATA.get(classToEvaluate);
+        if (!metadata.entity()) {
             throw new IllegalArgumentException("Class must be annotated with @Entity");
         }
 
-        Entity entity = classToEvaluate.getAnnotation(Entity.class);
-        if (entity.name() != null && !entity.name().isBlank()) {
-            return entity.name();
-        } else {
-            return classToEvaluate.getSimpleName().toLowerCase(Locale.US);
+        return metadata.name();
+    }
+
+    public static String getIdAttributeName(@NotNull Class<?> classToEvaluate) {
+        Preconditions.checkNotNull(classToEvaluate, "classToEvaluate");
+
+        String idName = METADATA.get(classToEvaluate).idName();
+        if (idName == null) {
+            throw new IllegalArgumentException("Entity must have an @Id field");
         }
+
+        return idName;
     }
 
     @SuppressWarnings("unchecked")
     public static <T, ID> ID getEntityId(@NotNull T entity) {
         Preconditions.checkNotNull(entity, "entity");
 
-        Field[] fields = entity.getClass().getDeclaredFields();
-
-        for (Field field : fields) {
-            if (field.isAnnotationPresent(Id.class)) {
-                try {
-                    if (field.canAccess(entity)) {
-                        return (ID) field.get(entity);
-                    } else {
-                        field.setAccessible(true);
-                        ID id = (ID) field.get(entity);
-                        field.setAccessible(false);
-                        return id;
+        // The fields of an uninitialized proxy are never populated, its lazy initializer holds the id without loading the entity
+        if (entity instanceof HibernateProxy proxy) return (ID) proxy.getHibernateLazyInitializer().getIdentifier();
+
+        VarHandle id = METADATA.get(entity.getClass()).id();
+        if (id == null) {
+            throw new IllegalArgumentException("Entity must have an @Id field");
+        }
+
+        return (ID) id.get(entity);
+    }
+
+    /**
+     * Check if an entity has never been persisted, judging only from its own state.
+     * That is the case when its id is null or 0 (not generated yet), or when it has a non-primitive @Version field that is still null.
+     * Entities with an assigned id and a primitive version can't be told apart and are not considered new.
+     * A Hibernate proxy always stands for a persisted entity, and is never new.
+     *
+     * @param entity The entity.
+     * @return true if the entity is new.
+     */
+    public static <T> boolean isNew(@NotNull T entity) {
+        Preconditions.checkNotNull(entity, "entity");
+
+        if (entity instanceof HibernateProxy) return false;
+
+        Object id = getEntityId(entity);
+        if (id == null || (id instanceof Number number && number.longValue() == 0)) {
+            return true;
+        }
+
+        VarHandle version = METADATA.get(entity.getClass()).version();
+        if (version == null || version.varType().isPrimitive()) {
+            return false;
+        }
+
+        return version.get(entity) == null;
+    }
+
+    private record EntityMetadata(boolean entity, String name, String idName, VarHandle id, VarHandle version) {
+
+        static EntityMetadata resolve(Class<?> type) {
+            Entity entity = type.getAnnotation(Entity.class);
+            String name = null;
+
+            if (entity != null) {
+                name = entity.name() != null && !entity.name().isBlank() ? entity.name() : type.getSimpleName().toLowerCase(Locale.US);
+            }
+
+            String idName = null;
+            VarHandle id = null;
+            VarHandle version = null;
+
+            // Walk up the hierarchy so that subclasses resolve the fields of the mapped class. Proxies are handled by the callers,
+            // since their own copies of these fields are never populated
+            for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+                for (Field field : current.getDeclaredFields()) {
+                    if (id == null && field.isAnnotationPresent(Id.class)) {
+                        idName = field.getName();
+                        id = toVarHandle(field);
+                    } else if (version == null && field.isAnnotationPresent(Version.class)) {
+                        version = toVarHandle(field);
                     }
-                } catch (IllegalAccessException e) {
-                    throw new IllegalArgumentException(e);
                 }
             }
+
+            return new EntityMetadata(entity != null, name, idName, id, version);
         }
 
-        throw new IllegalArgumentException("Entity must have an @Id field");
+        private static VarHandle toVarHandle(Field field) {
+            try {
+                return MethodHandles.privateLookupIn(field.getDeclaringClass(), MethodHandles.lookup()).unreflectVarHandle(field);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
     }
 }
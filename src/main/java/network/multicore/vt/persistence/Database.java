@@ -5,34 +5,52 @@ import jakarta.persistence.EntityManager;
 import jakarta.persistence.EntityManagerFactory;
 import jakarta.persistence.spi.PersistenceProvider;
 import network.multicore.vt.persistence.datasource.DataSourceProvider;
+import network.multicore.vt.persistence.datasource.RoutingDataSource;
 import network.multicore.vt.persistence.entity.EntityRepository;
 import network.multicore.vt.persistence.entity.entities.Entities;
+import org.hibernate.SessionFactory;
 import org.hibernate.integrator.spi.Integrator;
 import org.hibernate.jpa.HibernatePersistenceProvider;
 import org.hibernate.jpa.boot.spi.IntegratorProvider;
+import org.hibernate.stat.Statistics;
 import org.jetbrains.annotations.NotNull;
 
+import javax.sql.DataSource;
 import java.io.Closeable;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Properties;
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Supplier;
 
 public class Database implements Closeable {
+    public static final int DEFAULT_JDBC_BATCH_SIZE = 50;
     private static final PersistenceProvider PERSISTENCE_PROVIDER = new HibernatePersistenceProvider();
     private final EntityManagerFactory emf;
     private final EntityManager em;
+    private final DataSource dataSource;
+    private final SecondLevelCache secondLevelCache;
 
-    private Database(String persistenceUnitName, DataSourceProvider<?> dataSourceProvider, Entities entities, Properties properties, Map<String, Object> configuration) {
+    private Database(String persistenceUnitName, DataSourceProvider<?> dataSourceProvider, Entities entities, Properties properties, Map<String, Object> configuration, SecondLevelCache secondLevelCache) {
+        this.dataSource = dataSourceProvider.getDataSource();
+        this.secondLevelCache = secondLevelCache;
         ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
         Thread.currentThread().setContextClassLoader(Database.class.getClassLoader());
-        this.emf = PERSISTENCE_PROVIDER.createContainerEntityManagerFactory(
-                new PersistenceUnitInfoImpl(persistenceUnitName, entities.getEntityClassNames(), properties).setNonJtaDataSource(dataSourceProvider.getDataSource()),
-                configuration
-        );
+
+        try {
+            this.emf = PERSISTENCE_PROVIDER.createContainerEntityManagerFactory(
+                    new PersistenceUnitInfoImpl(persistenceUnitName, entities.getEntityClassNames(), properties).setNonJtaDataSource(dataSourceProvider.getDataSource()),
+                    configuration
+            );
+        } catch (RuntimeException e) {
+            if (secondLevelCache != null) secondLevelCache.close();
+            closeDataSource();
+            throw e;
+        } finally {
+            Thread.currentThread().setContextClassLoader(classLoader);
+        }
+
         this.em = emf.createEntityManager();
-        Thread.currentThread().setContextClassLoader(classLoader);
     }
 
     public <T, R extends EntityRepository<T, ?>> R createRepository(@NotNull Class<R> repositoryClass, @NotNull Class<T> entityClass) {
@@ -41,16 +59,86 @@ public class Database implements Closeable {
         Preconditions.checkArgument(AnnotationsUtils.isEntity(entityClass), "Entity class must be annotated with @Entity");
 
         try {
-            return repositoryClass.getConstructor(EntityManager.class, Class.class).newInstance(em, entityClass);
+            R repository = repositoryClass.getConstructor(EntityManager.class, Class.class).newInstance(em, entityClass);
+            repository.setReplicaReads(hasReplicas());
+            return repository;
         } catch (NoSuchMethodException | InvocationTargetException | InstantiationException | IllegalAccessException e) {
             throw new IllegalArgumentException(e);
         }
     }
 
+    /**
+     * Run several repository operations as a single unit of work, in one transaction committed once the work is done.
+     * The repositories created by this database join it instead of committing each operation on its own,
+     * so that the work is either applied as a whole or not at all. Nested calls join the outer one.
+     * <p>
+     * A failed repository operation throws, unless it reports the failure by its result, such as a save returning null
+     * on a constraint violation. Either way, the transaction can then only be rolled back.
+     *
+     * @param work The work.
+     * @param <R>  The type of the result.
+     * @return The result of the work.
+     * @throws jakarta.persistence.RollbackException If part of the work has failed or the transaction can't be committed.
+     *                                               Any exception thrown by the work is rethrown after the rollback.
+     */
+    public <R> R inTransaction(@NotNull Supplier<R> work) {
+        return TransactionUtils.inTransaction(em, work);
+    }
+
+    /**
+     * Run several repository operations as a single unit of work. See {@link #inTransaction(Supplier)}.
+     *
+     * @param work The work.
+     */
+    public void inTransaction(@NotNull Runnable work) {
+        Preconditions.checkNotNull(work, "work");
+
+        TransactionUtils.inTransaction(em, () -> {
+            work.run();
+            return null;
+        });
+    }
+
+    /**
+     * Get the Hibernate statistics, including the hits, misses and puts of the second-level cache regions.
+     * They are only collected if enabled with {@link Builder#statistics(boolean)}.
+     *
+     * @return The statistics.
+     */
+    public Statistics getStatistics() {
+        return emf.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    /**
+     * Check if read-only work is sent to read replicas, which requires a {@link RoutingDataSource} with at least one replica.
+     *
+     * @return true if the database has read replicas.
+     */
+    public boolean hasReplicas() {
+        return dataSource instanceof RoutingDataSource routing && routing.hasReplicas();
+    }
+
+    public boolean isSecondLevelCacheEnabled() {
+        return secondLevelCache != null;
+    }
+
     @Override
     public void close() throws IllegalStateException {
         if (em != null) em.close();
         if (emf != null) emf.close();
+        if (secondLevelCache != null) secondLevelCache.close();
+        closeDataSource();
+    }
+
+    private void closeDataSource() {
+        // Hibernate doesn't close the data sources it is given, so connection pools would stay open across reloads
+        if (dataSource instanceof Closeable pool) {
+            try {
+                pool.close();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
     }
 
     public static class Builder {
@@ -61,6 +149,10 @@ public class Database implements Closeable {
         private Properties properties = new Properties();
         private Integrator integrator;
         private Map<String, Object> configuration = new HashMap<>();
+        private SecondLevelCache.RegionSettings cacheDefaults;
+        private final Map<String, SecondLevelCache.RegionSettings> cacheRegions = new HashMap<>();
+        private boolean queryCache;
+        private UuidStorage uuidStorage;
 
         public Builder persistenceUnitName(@NotNull String persistenceUnitName) {
             Preconditions.checkNotNull(persistenceUnitName, "persistenceUnitName");
@@ -127,6 +219,75 @@ public class Database implements Closeable {
             return withProperty("hibernate.show_sql", showSql);
         }
 
+        /**
+         * Set how many statements Hibernate groups in a single JDBC batch. Defaults to {@value Database#DEFAULT_JDBC_BATCH_SIZE}.
+         * Inserts of entities with identity ids can't be batched.
+         *
+         * @param batchSize The batch size, or 1 to disable batching.
+         * @return The builder.
+         */
+        public Builder jdbcBatchSize(int batchSize) {
+            Preconditions.checkArgument(batchSize > 0, "Batch size must be greater than 0");
+
+            return withProperty("hibernate.jdbc.batch_size", batchSize);
+        }
+
+        public Builder statistics(boolean statistics) {
+            return withProperty("hibernate.generate_statistics", statistics);
+        }
+
+        /**
+         * Enable the second-level cache for the entities and collections annotated with {@link org.hibernate.annotations.Cache}.
+         * Requires hibernate-jcache and the Caffeine JCache provider on the classpath.
+         *
+         * @param maximumSize The default maximum number of entries of a region, or 0 for no limit.
+         * @param timeToLive  The default time to live of the entries, or zero to keep them until evicted.
+         * @return The builder.
+         */
+        public Builder secondLevelCache(long maximumSize, @NotNull Duration timeToLive) {
+            this.cacheDefaults = new SecondLevelCache.RegionSettings(maximumSize, timeToLive);
+            return this;
+        }
+
+        /**
+         * Override the limits of a single second-level cache region.
+         *
+         * @param region      The name of the region: the entity class name, or the class name followed by the collection field name.
+         * @param maximumSize The maximum number of entries, or 0 for no limit.
+         * @param timeToLive  The time to live of the entries, or zero to keep them until evicted.
+         * @return The builder.
+         */
+        public Builder cacheRegion(@NotNull String region, long maximumSize, @NotNull Duration timeToLive) {
+            Preconditions.checkNotNull(region, "region");
+
+            this.cacheRegions.put(region, new SecondLevelCache.RegionSettings(maximumSize, timeToLive));
+            return this;
+        }
+
+        /**
+         * Cache the results of the queries marked as cacheable. Only effective along with the second-level cache.
+         *
+         * @param queryCache Whether to enable the query cache.
+         * @return The builder.
+         */
+        public Builder queryCache(boolean queryCache) {
+            this.queryCache = queryCache;
+            return this;
+        }
+
+        /**
+         * Set how UUIDs are bound, which must match the column types. Defaults to the mapping of the Hibernate dialect.
+         *
+         * @param uuidStorage How UUID columns are stored.
+         * @return The builder.
+         */
+        public Builder uuidStorage(@NotNull UuidStorage uuidStorage) {
+            Preconditions.checkNotNull(uuidStorage, "uuidStorage");
+
+            this.uuidStorage = uuidStorage;
+            return this;
+        }
+
         public Builder integrator(Integrator integrator) {
             this.integrator = integrator;
             return this;
@@ -159,6 +320,11 @@ public class Database implements Closeable {
             if (!properties.containsKey("hibernate.hbm2ddl.auto")) {
                 properties.put("hibernate.hbm2ddl.auto", HibernateHbm2DdlAutoMode.VALIDATE.getValue());
             }
+            // Without a batch size, Hibernate sends every statement on its own and the drivers have nothing to rewrite
+            if (!properties.containsKey("hibernate.jdbc.batch_size")) {
+                properties.put("hibernate.jdbc.batch_size", DEFAULT_JDBC_BATCH_SIZE);
+            }
+            properties.put("hibernate.order_updates", Boolean.TRUE.toString());
             if (tablesPrefix != null) {
                 properties.put("hibernate.globally_quoted_identifiers", Boolean.TRUE.toString());
                 properties.put("hibernate.physical_naming_strategy", PrefixNamingStrategy.class.getName());
@@ -167,10 +333,35 @@ public class Database implements Closeable {
                 properties.put("hibernate.physical_naming_strategy", NamingStrategy.class.getName());
             }
 
+            if (uuidStorage != null) {
+                properties.put("hibernate.type.preferred_uuid_jdbc_type", uuidStorage.getJdbcType(dataSourceProvider.getType()));
+            }
+
             if (integrator != null && !configuration.containsKey("hibernate.integrator_provider")) {
                 properties.put("hibernate.integrator_provider", (IntegratorProvider) () -> Collections.singletonList(integrator));
             }
 
+            SecondLevelCache secondLevelCache = null;
+            if (cacheDefaults != null) {
+                List<Class<?>> entityClasses = new ArrayList<>();
+                for (String className : entities.getEntityClassNames()) {
+                    try {
+                        entityClasses.add(Class.forName(className, false, Database.class.getClassLoader()));
+                    } catch (ClassNotFoundException e) {
+                        throw new IllegalArgumentException(e);
+                    }
+                }
+
+                secondLevelCache = new SecondLevelCache(persistenceUnitName, entityClasses, cacheDefaults, cacheRegions, queryCache);
+                properties.put("hibernate.cache.use_second_level_cache", Boolean.TRUE.toString());
+                properties.put("hibernate.cache.use_query_cache", Boolean.toString(queryCache));
+                properties.put("hibernate.cache.region.factory_class", "jcache");
+                properties.put("hibernate.javax.cache.cache_manager", secondLevelCache.getCacheManager());
+                properties.put("hibernate.javax.cache.missing_cache_strategy", "create-warn");
+            } else {
+                properties.put("hibernate.cache.use_second_level_cache", Boolean.FALSE.toString());
+            }
+
             // properties.put("hibernate.show_sql", true);
             // properties.put("hibernate.format_sql", true);
             // properties.put("hibernate.use_sql_comments", true);
@@ -180,7 +371,8 @@ public class Database implements Closeable {
                     dataSourceProvider,
                     entities,
                     properties,
-                    configuration
+                    configuration,
+                    secondLevelCache
             );
         }
     }
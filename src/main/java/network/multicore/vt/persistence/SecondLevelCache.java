@@ -0,0 +1,95 @@
+package network.multicore.vt.persistence;
+
+import com.github.benmanes.caffeine.jcache.configuration.CaffeineConfiguration;
+import com.github.benmanes.caffeine.jcache.spi.CaffeineCachingProvider;
+import com.google.common.base.Preconditions;
+import org.hibernate.annotations.Cache;
+import org.jetbrains.annotations.NotNull;
+
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.spi.CachingProvider;
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * In-process JCache (Caffeine) cache manager backing the Hibernate second-level cache.
+ * Every region is created up front with its own size limit and time to live,
+ * since Hibernate would otherwise create the missing ones without any limit.
+ */
+public class SecondLevelCache implements Closeable {
+    public static final String QUERY_RESULTS_REGION = "default-query-results-region";
+    public static final String UPDATE_TIMESTAMPS_REGION = "default-update-timestamps-region";
+    private final CacheManager cacheManager;
+    private final Set<String> regions = new LinkedHashSet<>();
+
+    SecondLevelCache(@NotNull String name, @NotNull Collection<Class<?>> entityClasses, @NotNull RegionSettings defaults, @NotNull Map<String, RegionSettings> overrides, boolean queryCache) {
+        Preconditions.checkNotNull(name, "name");
+        Preconditions.checkNotNull(entityClasses, "entityClasses");
+        Preconditions.checkNotNull(defaults, "defaults");
+        Preconditions.checkNotNull(overrides, "overrides");
+
+        ClassLoader classLoader = SecondLevelCache.class.getClassLoader();
+        CachingProvider provider = Caching.getCachingProvider(CaffeineCachingProvider.class.getName(), classLoader);
+        // A URI per database, so that the caches of a database that is being replaced are not shared with the new one
+        this.cacheManager = provider.getCacheManager(URI.create("vanillatowns:" + name + ":" + UUID.randomUUID()), classLoader);
+
+        for (Class<?> entityClass : entityClasses) {
+            Cache entityCache = entityClass.getAnnotation(Cache.class);
+            if (entityCache != null) regions.add(entityCache.region().isEmpty() ? entityClass.getName() : entityCache.region());
+
+            for (Field field : entityClass.getDeclaredFields()) {
+                Cache collectionCache = field.getAnnotation(Cache.class);
+                if (collectionCache != null) regions.add(collectionCache.region().isEmpty() ? entityClass.getName() + "." + field.getName() : collectionCache.region());
+            }
+        }
+
+        if (queryCache) regions.add(QUERY_RESULTS_REGION);
+
+        for (String region : regions) {
+            createCache(region, overrides.getOrDefault(region, defaults));
+        }
+
+        // Query results are validated against these timestamps: evicting them would serve stale results
+        if (queryCache) createCache(UPDATE_TIMESTAMPS_REGION, new RegionSettings(0, Duration.ZERO));
+    }
+
+    public CacheManager getCacheManager() {
+        return cacheManager;
+    }
+
+    public Set<String> getRegions() {
+        return Collections.unmodifiableSet(regions);
+    }
+
+    private void createCache(String region, RegionSettings settings) {
+        CaffeineConfiguration<Object, Object> configuration = new CaffeineConfiguration<>();
+        if (settings.maximumSize() > 0) configuration.setMaximumSize(OptionalLong.of(settings.maximumSize()));
+        if (!settings.timeToLive().isZero()) configuration.setExpireAfterWrite(OptionalLong.of(settings.timeToLive().toNanos()));
+
+        cacheManager.createCache(region, configuration);
+    }
+
+    @Override
+    public void close() {
+        cacheManager.close();
+    }
+
+    /**
+     * Limits of a cache region.
+     *
+     * @param maximumSize The maximum number of entries, or 0 for no limit.
+     * @param timeToLive  How long entries are kept after being written, or zero to keep them until evicted.
+     */
+    public record RegionSettings(long maximumSize, @NotNull Duration timeToLive) {
+
+        public RegionSettings {
+            Preconditions.checkArgument(maximumSize >= 0, "Maximum size must not be negative");
+            Preconditions.checkNotNull(timeToLive, "timeToLive");
+            Preconditions.checkArgument(!timeToLive.isNegative(), "Time to live must not be negative");
+        }
+    }
+}
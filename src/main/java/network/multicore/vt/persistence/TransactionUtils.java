@@ -0,0 +1,88 @@
+package network.multicore.vt.persistence;
+
+import com.google.common.base.Preconditions;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityTransaction;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+public class TransactionUtils {
+    // How deep the current thread is in the units of work of each entity manager. The transaction of an entity manager shared
+    // between threads may be active because of another thread, whose unit of work must not be joined
+    private static final ThreadLocal<Map<EntityManager, Integer>> DEPTHS = ThreadLocal.withInitial(IdentityHashMap::new);
+
+    private TransactionUtils() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * Run some work as a unit of work of the entity manager.
+     * If the current thread is already running one, the work joins it: it is committed or rolled back along with the rest of the surrounding work,
+     * and a failure marks it as rollback-only, so that it can't be committed even if the failure is caught by the surrounding work.
+     * Otherwise, a transaction is begun, committed once the work is done, and rolled back if it throws.
+     * A rollback also clears the entity manager, whose managed entities still hold the changes that have been rolled back.
+     *
+     * @param entityManager The entity manager.
+     * @param work          The work.
+     * @param <R>           The type of the result.
+     * @return The result of the work.
+     * @throws jakarta.persistence.RollbackException If the transaction has been marked as rollback-only or can't be committed.
+     */
+    public static <R> R inTransaction(@NotNull EntityManager entityManager, @NotNull Supplier<R> work) {
+        Preconditions.checkNotNull(entityManager, "entityManager");
+        Preconditions.checkNotNull(work, "work");
+
+        Map<EntityManager, Integer> depths = DEPTHS.get();
+        int depth = depths.getOrDefault(entityManager, 0);
+        EntityTransaction transaction = entityManager.getTransaction();
+
+        if (depth > 0) {
+            depths.put(entityManager, depth + 1);
+
+            try {
+                return work.get();
+            } catch (RuntimeException | Error e) {
+                if (transaction.isActive()) transaction.setRollbackOnly();
+                throw e;
+            } finally {
+                depths.put(entityManager, depth);
+            }
+        }
+
+        transaction.begin();
+        depths.put(entityManager, 1);
+
+        try {
+            R result = work.get();
+            // Fails with a RollbackException if part of the work has failed
+            transaction.commit();
+            return result;
+        } catch (RuntimeException | Error e) {
+            if (transaction.isActive()) transaction.rollback();
+            entityManager.clear();
+            throw e;
+        } finally {
+            depths.remove(entityManager);
+            if (depths.isEmpty()) DEPTHS.remove();
+        }
+    }
+
+    /**
+     * Check if the current thread is running a unit of work of the entity manager, see {@link #inTransaction(EntityManager, Supplier)}.
+     *
+     * @param entityManager The entity manager.
+     * @return true if the work of the current thread joins a surrounding unit of work.
+     */
+    public static boolean isInTransaction(@NotNull EntityManager entityManager) {
+        Preconditions.checkNotNull(entityManager, "entityManager");
+
+        Map<EntityManager, Integer> depths = DEPTHS.get();
+        boolean joined = depths.containsKey(entityManager);
+        if (depths.isEmpty()) DEPTHS.remove();
+
+        return joined;
+    }
+}
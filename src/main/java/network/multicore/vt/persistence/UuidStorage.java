@@ -0,0 +1,64 @@
+package network.multicore.vt.persistence;
+
+import com.google.common.base.Preconditions;
+import network.multicore.vt.persistence.datasource.DataSourceType;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * How UUID columns are stored.
+ */
+public enum UuidStorage {
+    /**
+     * 16 bytes: binary(16) on MySQL and MariaDB, a blob on SQLite and the native uuid type on PostgreSQL and H2.
+     */
+    BINARY,
+    /**
+     * The 36 characters text form, as char(36).
+     */
+    STRING;
+
+    /**
+     * Get the column type used by this storage on a database.
+     *
+     * @param type The database type.
+     * @return The column type, as written in DDL statements.
+     */
+    public String getColumnType(@NotNull DataSourceType type) {
+        Preconditions.checkNotNull(type, "type");
+
+        if (this == STRING) return "char(36)";
+
+        return switch (type) {
+            case POSTGRESQL, H2, H2_MEMORY -> "uuid";
+            case MYSQL, MARIADB -> "binary(16)";
+            case SQLITE -> "blob";
+        };
+    }
+
+    /**
+     * Get the JDBC type Hibernate must bind UUIDs with on a database, as expected by <code>hibernate.type.preferred_uuid_jdbc_type</code>.
+     *
+     * @param type The database type.
+     * @return The name of the JDBC type.
+     */
+    public String getJdbcType(@NotNull DataSourceType type) {
+        Preconditions.checkNotNull(type, "type");
+
+        if (this == STRING) return "CHAR";
+
+        return switch (type) {
+            case POSTGRESQL, H2, H2_MEMORY -> "UUID";
+            case MYSQL, MARIADB, SQLITE -> "BINARY";
+        };
+    }
+
+    /**
+     * Check if the column type of this storage on a database is a native uuid type.
+     *
+     * @param type The database type.
+     * @return true if UUIDs are stored with the native type.
+     */
+    public boolean isNative(@NotNull DataSourceType type) {
+        return getColumnType(type).equals("uuid");
+    }
+}
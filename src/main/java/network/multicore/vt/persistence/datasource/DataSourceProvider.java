@@ -13,6 +13,8 @@ import org.sqlite.SQLiteDataSource;
 import javax.sql.DataSource;
 import java.io.File;
 import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class DataSourceProvider<D extends DataSource> {
@@ -20,25 +22,27 @@ public class DataSourceProvider<D extends DataSource> {
     public static final int DEF_POSTGRESQL_PORT = 5432;
 
     private final D dataSource;
-    private final String driver;
-    private final String dialect;
+    private final DataSourceType type;
 
-    private DataSourceProvider(D dataSource, String driver, String dialect) {
+    private DataSourceProvider(D dataSource, DataSourceType type) {
         this.dataSource = dataSource;
-        this.driver = driver;
-        this.dialect = dialect;
+        this.type = type;
     }
 
     public D getDataSource() {
         return dataSource;
     }
 
+    public DataSourceType getType() {
+        return type;
+    }
+
     public String getDriver() {
-        return driver;
+        return type.getDriver();
     }
 
     public String getDialect() {
-        return dialect;
+        return type.getDialect();
     }
 
     public static DataSourceProvider<MysqlDataSource> newMysqlDataSourceProvider(@NotNull String host, int port, @NotNull String database, @NotNull String user, String password, Map<String, String> properties) {
@@ -67,7 +71,7 @@ public class DataSourceProvider<D extends DataSource> {
         dataSource.setUser(user);
         dataSource.setPassword(password);
 
-        return new DataSourceProvider<>(dataSource, type.getDriver(), type.getDialect());
+        return new DataSourceProvider<>(dataSource, type);
     }
 
     public static DataSourceProvider<MysqlDataSource> newMysqlDataSourceProvider(@NotNull String host, @NotNull String database, @NotNull String user, String password, Map<String, String> properties) {
@@ -89,7 +93,7 @@ public class DataSourceProvider<D extends DataSource> {
         DataSourceProvider<MysqlDataSource> dataSourceProvider = newMysqlDataSourceProvider(host, port, database, user, password, properties);
 
         config.setDataSource(dataSourceProvider.getDataSource());
-        return new DataSourceProvider<>(new HikariDataSource(config), dataSourceProvider.getDriver(), dataSourceProvider.getDialect());
+        return new DataSourceProvider<>(new HikariDataSource(config), dataSourceProvider.getType());
     }
 
     public static DataSourceProvider<HikariDataSource> newMysqlHikariDataSourceProvider(@NotNull String host, @NotNull String database, @NotNull String user, String password, Map<String, String> properties, HikariConfig config) {
@@ -135,7 +139,7 @@ public class DataSourceProvider<D extends DataSource> {
             throw new IllegalArgumentException(e);
         }
 
-        return new DataSourceProvider<>(dataSource, type.getDriver(), type.getDialect());
+        return new DataSourceProvider<>(dataSource, type);
     }
 
     public static DataSourceProvider<MariaDbDataSource> newMariaDbDataSourceProvider(@NotNull String host, @NotNull String database, @NotNull String user, String password, Map<String, String> properties) {
@@ -157,7 +161,7 @@ public class DataSourceProvider<D extends DataSource> {
         DataSourceProvider<MariaDbDataSource> dataSourceProvider = newMariaDbDataSourceProvider(host, port, database, user, password, properties);
 
         config.setDataSource(dataSourceProvider.getDataSource());
-        return new DataSourceProvider<>(new HikariDataSource(config), dataSourceProvider.getDriver(), dataSourceProvider.getDialect());
+        return new DataSourceProvider<>(new HikariDataSource(config), dataSourceProvider.getType());
     }
 
     public static DataSourceProvider<HikariDataSource> newMariaDbHikariDataSourceProvider(@NotNull String host, @NotNull String database, @NotNull String user, String password, Map<String, String> properties, HikariConfig config) {
@@ -192,7 +196,7 @@ public class DataSourceProvider<D extends DataSource> {
 
         dataSource.setUrl(url);
 
-        return new DataSourceProvider<>(dataSource, type.getDriver(), type.getDialect());
+        return new DataSourceProvider<>(dataSource, type);
     }
 
     public static DataSourceProvider<SQLiteDataSource> newSQLiteDataSourceProvider(@NotNull File database) {
@@ -206,7 +210,7 @@ public class DataSourceProvider<D extends DataSource> {
         DataSourceProvider<SQLiteDataSource> dataSourceProvider = newSQLiteDataSourceProvider(database, properties);
 
         config.setDataSource(dataSourceProvider.getDataSource());
-        return new DataSourceProvider<>(new HikariDataSource(config), dataSourceProvider.getDriver(), dataSourceProvider.getDialect());
+        return new DataSourceProvider<>(new HikariDataSource(config), dataSourceProvider.getType());
     }
 
     public static DataSourceProvider<HikariDataSource> newSQLiteHikariDataSourceProvider(@NotNull File database, HikariConfig config) {
@@ -240,7 +244,7 @@ public class DataSourceProvider<D extends DataSource> {
         dataSource.setUser(user);
         dataSource.setPassword(password);
 
-        return new DataSourceProvider<>(dataSource, type.getDriver(), type.getDialect());
+        return new DataSourceProvider<>(dataSource, type);
     }
 
     public static DataSourceProvider<PGSimpleDataSource> newPostgreSqlDataSourceProvider(@NotNull String host, @NotNull String database, @NotNull String user, String password, Map<String, String> properties) {
@@ -262,7 +266,7 @@ public class DataSourceProvider<D extends DataSource> {
         DataSourceProvider<PGSimpleDataSource> dataSourceProvider = newPostgreSqlDataSourceProvider(host, port, database, user, password, properties);
 
         config.setDataSource(dataSourceProvider.getDataSource());
-        return new DataSourceProvider<>(new HikariDataSource(config), dataSourceProvider.getDriver(), dataSourceProvider.getDialect());
+        return new DataSourceProvider<>(new HikariDataSource(config), dataSourceProvider.getType());
     }
 
     public static DataSourceProvider<HikariDataSource> newPostgreSqlHikariDataSourceProvider(@NotNull String host, @NotNull String database, @NotNull String user, String password, Map<String, String> properties, HikariConfig config) {
@@ -289,15 +293,15 @@ public class DataSourceProvider<D extends DataSource> {
 
         String url = String.format(type.getUrl(), file.getAbsolutePath());
         if (properties != null && !properties.isEmpty()) {
+            // H2 settings are separated by semicolons, not passed as a query string
             StringBuilder sb = new StringBuilder(url);
-            sb.append("?");
-            properties.forEach((k, v) -> sb.append(k).append("=").append(v).append("&"));
+            properties.forEach((k, v) -> sb.append(";").append(k).append("=").append(v));
             url = sb.toString();
         }
 
         dataSource.setURL(url);
 
-        return new DataSourceProvider<>(dataSource, type.getDriver(), type.getDialect());
+        return new DataSourceProvider<>(dataSource, type);
     }
 
     public static DataSourceProvider<JdbcDataSource> newH2DataSourceProvider(@NotNull File file) {
@@ -311,13 +315,136 @@ public class DataSourceProvider<D extends DataSource> {
         DataSourceProvider<JdbcDataSource> dataSourceProvider = newH2DataSourceProvider(database, properties);
 
         config.setDataSource(dataSourceProvider.getDataSource());
-        return new DataSourceProvider<>(new HikariDataSource(config), dataSourceProvider.getDriver(), dataSourceProvider.getDialect());
+        return new DataSourceProvider<>(new HikariDataSource(config), dataSourceProvider.getType());
     }
 
     public static DataSourceProvider<HikariDataSource> newH2HikariDataSourceProvider(@NotNull File database, HikariConfig config) {
         return newH2HikariDataSourceProvider(database, null, config);
     }
 
+    /**
+     * Create an in-memory H2 database. It only lives while at least one connection is open, see {@link H2Snapshots}.
+     *
+     * @param name       The name of the database, unique within the JVM: providers with the same name share the same database.
+     * @param properties The H2 settings.
+     * @return The data source provider.
+     */
+    public static DataSourceProvider<JdbcDataSource> newH2MemoryDataSourceProvider(@NotNull String name, Map<String, String> properties) {
+        Preconditions.checkNotNull(name, "name");
+        Preconditions.checkArgument(!name.isBlank(), "Name cannot be empty");
+
+        DataSourceType type = DataSourceType.H2_MEMORY;
+
+        JdbcDataSource dataSource = new JdbcDataSource();
+
+        String url = String.format(type.getUrl(), name);
+        if (properties != null && !properties.isEmpty()) {
+            StringBuilder sb = new StringBuilder(url);
+            properties.forEach((k, v) -> sb.append(";").append(k).append("=").append(v));
+            url = sb.toString();
+        }
+
+        dataSource.setURL(url);
+
+        return new DataSourceProvider<>(dataSource, type);
+    }
+
+    public static DataSourceProvider<JdbcDataSource> newH2MemoryDataSourceProvider(@NotNull String name) {
+        return newH2MemoryDataSourceProvider(name, null);
+    }
+
+    public static DataSourceProvider<HikariDataSource> newH2MemoryHikariDataSourceProvider(@NotNull String name, Map<String, String> properties, HikariConfig config) {
+        Preconditions.checkNotNull(config, "config");
+
+        DataSourceProvider<JdbcDataSource> dataSourceProvider = newH2MemoryDataSourceProvider(name, properties);
+
+        config.setDataSource(dataSourceProvider.getDataSource());
+        return new DataSourceProvider<>(new HikariDataSource(config), dataSourceProvider.getType());
+    }
+
+    /**
+     * Route the connections between a primary database and its read replicas, see {@link RoutingDataSource}.
+     * The replicas must be of the same type as the primary, and are closed along with it.
+     *
+     * @param primary   The primary database, which receives the writes.
+     * @param replicas  The replicas, which receive the read-only work. May be empty.
+     * @param selection How a replica is picked.
+     * @return The data source provider.
+     */
+    public static DataSourceProvider<RoutingDataSource> newRoutingDataSourceProvider(@NotNull DataSourceProvider<?> primary, @NotNull List<? extends DataSourceProvider<?>> replicas, @NotNull RoutingDataSource.Selection selection) {
+        Preconditions.checkNotNull(primary, "primary");
+        Preconditions.checkNotNull(replicas, "replicas");
+        Preconditions.checkNotNull(selection, "selection");
+
+        for (DataSourceProvider<?> replica : replicas) {
+            Preconditions.checkNotNull(replica, "replica");
+            Preconditions.checkArgument(replica.getType() == primary.getType(), "Replicas must be of the same type as the primary");
+        }
+
+        RoutingDataSource dataSource = new RoutingDataSource(primary.getDataSource(), replicas.stream().map(DataSourceProvider::getDataSource).toList(), selection);
+        return new DataSourceProvider<>(dataSource, primary.getType());
+    }
+
+    /**
+     * Create the settings of a file-based H2 database, to be passed to the H2 providers.
+     *
+     * @param cacheSize  The size of the MVStore page cache, in KB.
+     * @param closeDelay How long the database stays open after its last connection is closed, in seconds, or -1 to keep it open
+     *                   until the JVM exits. Without a pool, a delay avoids reopening the database file at every transaction.
+     * @return The settings.
+     */
+    public static Map<String, String> createH2Properties(int cacheSize, int closeDelay) {
+        Preconditions.checkArgument(cacheSize > 0, "Cache size must be greater than 0");
+        Preconditions.checkArgument(closeDelay >= -1, "Close delay must be -1 or greater");
+
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("CACHE_SIZE", Integer.toString(cacheSize));
+        properties.put("DB_CLOSE_DELAY", Integer.toString(closeDelay));
+        return properties;
+    }
+
+    /**
+     * Create the settings of a SQLite database, to be passed to the SQLite providers.
+     * The database is switched to WAL journaling, so that readers don't block the writer and the other way around,
+     * and is only synced at checkpoints (synchronous=NORMAL), which is safe with WAL.
+     * SQLite still allows a single writer at a time: the other connections wait up to the busy timeout for the write lock.
+     *
+     * @param mmapSize    The size of the memory-mapped I/O, in bytes, or 0 to disable it.
+     * @param busyTimeout How long a connection waits for the write lock, in milliseconds.
+     * @return The settings.
+     */
+    public static Map<String, String> createSQLiteProperties(long mmapSize, int busyTimeout) {
+        Preconditions.checkArgument(mmapSize >= 0, "Mmap size must not be negative");
+        Preconditions.checkArgument(busyTimeout >= 0, "Busy timeout must not be negative");
+
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("journal_mode", "WAL");
+        properties.put("synchronous", "NORMAL");
+        properties.put("busy_timeout", Integer.toString(busyTimeout));
+        properties.put("mmap_size", Long.toString(mmapSize));
+        return properties;
+    }
+
+    /**
+     * Configure a pool of connections to an embedded database. Embedded connections are cheap and never go stale,
+     * so the pool keeps a single idle connection, which also keeps H2 from closing the database between transactions.
+     *
+     * @param poolName        The name of the pool.
+     * @param maximumPoolSize The maximum number of connections.
+     * @param config          The pool configuration.
+     * @return The pool configuration.
+     */
+    public static HikariConfig createEmbeddedHikariConfig(@NotNull String poolName, int maximumPoolSize, @NotNull HikariConfig config) {
+        Preconditions.checkArgument(maximumPoolSize > 0, "Maximum pool size must be greater than 0");
+
+        createHikariConfig(poolName, config);
+        config.setMaximumPoolSize(maximumPoolSize);
+        config.setMinimumIdle(1);
+        config.setMaxLifetime(0);
+        config.setIdleTimeout(0);
+        return config;
+    }
+
     public static HikariConfig createHikariConfig(@NotNull String poolName, @NotNull HikariConfig config) {
         Preconditions.checkNotNull(poolName, "poolName");
         Preconditions.checkArgument(!poolName.isBlank(), "Pool name cannot be empty");
@@ -1,21 +1,50 @@
 package network.multicore.vt.persistence.datasource;
 
+import java.util.Map;
+
 public enum DataSourceType {
-    MYSQL("com.mysql.ci.jdbc.Driver", "jdbc:mysql://%s:%d/%s", "org.hibernate.dialect.MySQLDialect"),
-    MARIADB("org.mariadb.jdbc.Driver", "jdbc:mariadb://%s:%d/%s", "org.hibernate.dialect.MariaDBDialect"),
-    SQLITE("org.sqlite.JDBC", "jdbc:sqlite:%s", "org.hibernate.dialect.SQLiteDialect"),
-    POSTGRESQL("org.postgresql.Driver", "jdbc:postgresql://%s:%d/%s", "org.hibernate.dialect.PostgreSQLDialect"),
-    H2("org.h2.Driver", "jdbc:h2:%s", "org.hibernate.dialect.H2Dialect"),
-    H2_MEMORY("org.h2.Driver", "jdbc:h2:mem:%s", "org.hibernate.dialect.H2Dialect");
+    MYSQL("com.mysql.ci.jdbc.Driver", "jdbc:mysql://%s:%d/%s", "org.hibernate.dialect.MySQLDialect", Map.of(
+            // Client and server side statement caches, so that Hibernate's statements are only parsed once per connection
+            "cachePrepStmts", "true",
+            "useServerPrepStmts", "true",
+            "prepStmtCacheSize", "250",
+            "prepStmtCacheSqlLimit", "2048",
+            // Send JDBC batches as multi-row statements instead of one round-trip per row
+            "rewriteBatchedStatements", "true",
+            // Skip the round-trips that only read back session state the driver already knows
+            "useLocalSessionState", "true",
+            "elideSetAutoCommits", "true",
+            "cacheServerConfiguration", "true",
+            "cacheResultSetMetadata", "true"
+    )),
+    MARIADB("org.mariadb.jdbc.Driver", "jdbc:mariadb://%s:%d/%s", "org.hibernate.dialect.MariaDBDialect", Map.of(
+            "useServerPrepStmts", "true",
+            "cachePrepStmts", "true",
+            "prepStmtCacheSize", "250",
+            // Send JDBC batches with the bulk protocol instead of one round-trip per row
+            "useBulkStmts", "true"
+    )),
+    SQLITE("org.sqlite.JDBC", "jdbc:sqlite:%s", "org.hibernate.dialect.SQLiteDialect", Map.of()),
+    POSTGRESQL("org.postgresql.Driver", "jdbc:postgresql://%s:%d/%s", "org.hibernate.dialect.PostgreSQLDialect", Map.of(
+            // Send batched inserts as multi-row statements
+            "reWriteBatchedInserts", "true",
+            // Switch to server side prepared statements on the third execution, and keep more of them per connection
+            "prepareThreshold", "3",
+            "preparedStatementCacheQueries", "512"
+    )),
+    H2("org.h2.Driver", "jdbc:h2:%s", "org.hibernate.dialect.H2Dialect", Map.of()),
+    H2_MEMORY("org.h2.Driver", "jdbc:h2:mem:%s", "org.hibernate.dialect.H2Dialect", Map.of());
 
     private final String driver;
     private final String url;
     private final String dialect;
+    private final Map<String, String> defaultProperties;
 
-    DataSourceType(String driver, String url, String dialect) {
+    DataSourceType(String driver, String url, String dialect, Map<String, String> defaultProperties) {
         this.driver = driver;
         this.url = url;
         this.dialect = dialect;
+        this.defaultProperties = defaultProperties;
     }
 
     public String getDriver() {
@@ -29,4 +58,15 @@ public enum DataSourceType {
     public String getDialect() {
         return dialect;
     }
+
+    /**
+     * Get the driver properties tuned for performance, to be passed to the {@link DataSourceProvider} methods.
+     * Embedded databases are tuned through {@link DataSourceProvider#createH2Properties(int, int)} and
+     * {@link DataSourceProvider#createSQLiteProperties(long, int)} instead.
+     *
+     * @return The properties.
+     */
+    public Map<String, String> getDefaultProperties() {
+        return defaultProperties;
+    }
 }
@@ -0,0 +1,93 @@
+package network.multicore.vt.persistence.datasource;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Persists an in-memory H2 database to a gzipped SQL script, written with <code>SCRIPT TO</code> and read back with <code>RUNSCRIPT FROM</code>.
+ * A connection is kept open for as long as this instance, so that the database isn't dropped when the pool closes its connections.
+ * Closing it releases that connection, without writing a snapshot.
+ */
+public class H2Snapshots implements Closeable {
+    private final File file;
+    private final Connection connection;
+
+    /**
+     * @param dataSource The in-memory database. Should not be a pool, since the connection is never given back.
+     * @param file       The snapshot file.
+     * @throws SQLException If the database can't be opened.
+     */
+    public H2Snapshots(@NotNull DataSource dataSource, @NotNull File file) throws SQLException {
+        Preconditions.checkNotNull(dataSource, "dataSource");
+        Preconditions.checkNotNull(file, "file");
+
+        this.file = file;
+        this.connection = dataSource.getConnection();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Load the snapshot, if any, into the database, which must be empty.
+     *
+     * @return true if a snapshot has been loaded.
+     * @throws SQLException If the snapshot can't be read.
+     */
+    public synchronized boolean restore() throws SQLException {
+        if (!file.isFile()) return false;
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("RUNSCRIPT FROM " + quote(file.getAbsolutePath()) + " COMPRESSION GZIP");
+        }
+
+        return true;
+    }
+
+    /**
+     * Write a snapshot of the database. It is written to a temporary file first, which then replaces the previous snapshot,
+     * so that a crash while writing leaves the previous one intact. Can be called from any thread.
+     *
+     * @throws SQLException If the database can't be scripted.
+     * @throws IOException  If the snapshot file can't be replaced.
+     */
+    public synchronized void snapshot() throws SQLException, IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        Path temporary = Files.createTempFile(directory.toPath(), file.getName(), ".tmp");
+
+        try {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("SCRIPT TO " + quote(temporary.toString()) + " COMPRESSION GZIP");
+            }
+
+            Files.move(temporary, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String quote(String path) {
+        return "'" + path.replace("'", "''") + "'";
+    }
+}
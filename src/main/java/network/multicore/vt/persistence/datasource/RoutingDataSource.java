@@ -0,0 +1,235 @@
+package network.multicore.vt.persistence.datasource;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A data source that hands out connections to a primary database or to one of its read replicas.
+ * Connections are taken from a replica only while the current thread runs {@link #readOnly(Supplier)},
+ * so that the work must acquire its connection inside of it (with Hibernate, by beginning a transaction).
+ * Everything else, including the schema migrations, uses the primary.
+ * <p>
+ * When a replica can't hand out a connection, the next one is tried, and then the primary.
+ * The failure is logged at most once a minute for each replica.
+ */
+public class RoutingDataSource implements DataSource, Closeable {
+    private static final Logger LOGGER = Logger.getLogger(RoutingDataSource.class.getName());
+    private static final long WARNING_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+    private static final ThreadLocal<Boolean> READ_ONLY = ThreadLocal.withInitial(() -> false);
+    private final DataSource primary;
+    private final List<DataSource> replicas;
+    private final Selection selection;
+    private final AtomicInteger[] activeConnections;
+    private final AtomicLong[] lastWarnings;
+    private final AtomicLong next = new AtomicLong();
+
+    public RoutingDataSource(@NotNull DataSource primary, @NotNull List<? extends DataSource> replicas, @NotNull Selection selection) {
+        Preconditions.checkNotNull(primary, "primary");
+        Preconditions.checkNotNull(replicas, "replicas");
+        Preconditions.checkNotNull(selection, "selection");
+
+        this.primary = primary;
+        this.replicas = List.copyOf(replicas);
+        this.selection = selection;
+        this.activeConnections = new AtomicInteger[this.replicas.size()];
+        this.lastWarnings = new AtomicLong[this.replicas.size()];
+
+        for (int i = 0; i < activeConnections.length; i++) {
+            activeConnections[i] = new AtomicInteger();
+            lastWarnings[i] = new AtomicLong(System.nanoTime() - WARNING_INTERVAL);
+        }
+    }
+
+    /**
+     * Run some work with the connections acquired by the current thread taken from a replica.
+     * Nested calls run as part of the outer one.
+     *
+     * @param work The work, which must not write.
+     * @param <R>  The type of the result.
+     * @return The result of the work.
+     */
+    public static <R> R readOnly(@NotNull Supplier<R> work) {
+        Preconditions.checkNotNull(work, "work");
+
+        if (READ_ONLY.get()) return work.get();
+
+        READ_ONLY.set(true);
+
+        try {
+            return work.get();
+        } finally {
+            READ_ONLY.remove();
+        }
+    }
+
+    public DataSource getPrimary() {
+        return primary;
+    }
+
+    public List<DataSource> getReplicas() {
+        return replicas;
+    }
+
+    public boolean hasReplicas() {
+        return !replicas.isEmpty();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (!READ_ONLY.get() || replicas.isEmpty()) return primary.getConnection();
+
+        int first = selectReplica();
+
+        for (int i = 0; i < replicas.size(); i++) {
+            int replica = (first + i) % replicas.size();
+
+            try {
+                return track(replicas.get(replica).getConnection(), replica);
+            } catch (SQLException e) {
+                warn(replica, e);
+            }
+        }
+
+        return primary.getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return primary.getConnection(username, password);
+    }
+
+    private int selectReplica() {
+        if (selection == Selection.ROUND_ROBIN) return (int) (next.getAndIncrement() % replicas.size());
+
+        // Start from a rotating index, so that ties don't always go to the first replica
+        int offset = (int) (next.getAndIncrement() % replicas.size());
+        int best = offset;
+
+        for (int i = 1; i < replicas.size(); i++) {
+            int replica = (offset + i) % replicas.size();
+            if (activeConnections[replica].get() < activeConnections[best].get()) best = replica;
+        }
+
+        return best;
+    }
+
+    private void warn(int replica, SQLException e) {
+        AtomicLong last = lastWarnings[replica];
+        long previous = last.get();
+        long now = System.nanoTime();
+
+        // Only the thread that moves the timestamp logs, so that a replica going down doesn't flood the console
+        if (now - previous < WARNING_INTERVAL || !last.compareAndSet(previous, now)) return;
+
+        LOGGER.log(Level.WARNING, "Cannot get a connection from replica " + (replica + 1) + ", falling back: " + e.getMessage());
+    }
+
+    private Connection track(Connection connection, int replica) {
+        if (selection != Selection.LEAST_CONNECTIONS) return connection;
+
+        AtomicInteger active = activeConnections[replica];
+        AtomicBoolean closed = new AtomicBoolean();
+        active.incrementAndGet();
+
+        InvocationHandler handler = (proxy, method, args) -> switch (method.getName()) {
+            case "equals" -> proxy == args[0];
+            case "hashCode" -> System.identityHashCode(proxy);
+            default -> {
+                if (method.getName().equals("close") && closed.compareAndSet(false, true)) active.decrementAndGet();
+
+                try {
+                    yield method.invoke(connection, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        };
+
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, handler);
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+
+        for (DataSource dataSource : replicas) {
+            try {
+                if (dataSource instanceof Closeable closeable) closeable.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        if (primary instanceof Closeable closeable) closeable.close();
+        if (failure != null) throw failure;
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return primary.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        primary.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        primary.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return primary.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return primary.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) return iface.cast(this);
+        return primary.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || primary.isWrapperFor(iface);
+    }
+
+    /**
+     * How a replica is picked for each connection.
+     */
+    public enum Selection {
+        /**
+         * The replicas in turn.
+         */
+        ROUND_ROBIN,
+        /**
+         * The replica with the fewest connections handed out by this data source and not closed yet.
+         */
+        LEAST_CONNECTIONS
+    }
+}
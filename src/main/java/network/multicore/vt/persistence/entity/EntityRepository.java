@@ -1,44 +1,81 @@
 package network.multicore.vt.persistence.entity;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
+import com.google.common.primitives.Primitives;
+import jakarta.persistence.CacheStoreMode;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.NoResultException;
+import jakarta.persistence.OptimisticLockException;
 import jakarta.persistence.Query;
+import jakarta.persistence.Tuple;
 import jakarta.persistence.TypedQuery;
 import jakarta.persistence.criteria.*;
+import jakarta.persistence.metamodel.EntityType;
+import jakarta.persistence.metamodel.SingularAttribute;
 import network.multicore.vt.persistence.AnnotationsUtils;
+import network.multicore.vt.persistence.TransactionUtils;
+import network.multicore.vt.persistence.datasource.RoutingDataSource;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.StaleStateException;
+import org.hibernate.exception.ConstraintViolationException;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public abstract class EntityRepository<T, ID> {
     private static final String DELETE_ALL_QUERY = "delete from %s x";
     private static final String COUNT_QUERY = "select count(x) from %s x";
+    private static final int CRITERIA_CACHE_SIZE = 256;
+    private static final String KEYSET_PARAMETER = "keyset";
+    protected static final String FETCH_GRAPH_HINT = "jakarta.persistence.fetchgraph";
+    public static final int DEFAULT_BATCH_SIZE = 500;
 
     protected final EntityManager entityManager;
     protected final Class<T> entityClass;
     protected final String entityName;
+    protected final String idAttributeName;
+    private final LongAdder optimisticLockConflicts = new LongAdder();
+    /**
+     * Criteria queries built from the same cacheable specification and sort are reused instead of being built again,
+     * so that Hibernate can also reuse their interpretation. Other specifications get a new query on every call.
+     *
+     * @see Specification#cacheable(Specification)
+     */
+    private final Cache<CriteriaKey, CriteriaQuery<?>> criteriaCache = CacheBuilder.newBuilder()
+            .maximumSize(CRITERIA_CACHE_SIZE)
+            .build();
+    private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private boolean replicaReads;
+    private volatile List<Reference> references;
 
     public EntityRepository(EntityManager entityManager, Class<T> entityClass) {
         this.entityManager = entityManager;
         this.entityClass = entityClass;
         this.entityName = AnnotationsUtils.getEntityName(entityClass);
+        this.idAttributeName = AnnotationsUtils.getIdAttributeName(entityClass);
     }
 
     public void deleteById(@NotNull ID id) {
         Preconditions.checkNotNull(id, "idl");
 
-        entityManager.getTransaction().begin();
-
-        try {
-            findById(id).ifPresent(this::delete);
-            entityManager.getTransaction().commit();
-        } catch (Exception ignored) {
-            entityManager.getTransaction().rollback();
-        }
+        inTransaction(() -> findById(id).ifPresent(this::delete));
     }
 
     public void delete(@NotNull T entity) {
@@ -49,74 +86,147 @@ public abstract class EntityRepository<T, ID> {
 
         if (existing == null) return;
 
-        entityManager.getTransaction().begin();
-
-        try {
-            entityManager.remove(entityManager.contains(entity) ? entity : entityManager.merge(entity));
-            entityManager.getTransaction().commit();
-        } catch (Exception ignored) {
-            entityManager.getTransaction().rollback();
-        }
+        inTransaction(() -> entityManager.remove(entityManager.contains(entity) ? entity : entityManager.merge(entity)));
     }
 
+    /**
+     * Delete the entities one by one, cascading to their associations, in a single transaction.
+     *
+     * @param entities The entities to delete.
+     */
     public void deleteAll(@NotNull Iterable<T> entities) {
         Preconditions.checkNotNull(entities, "entities");
 
-        for (T entity : entities) {
-            delete(entity);
+        if (!entities.iterator().hasNext()) {
+            return;
         }
+
+        inTransaction(() -> {
+            for (T entity : entities) {
+                entityManager.remove(entityManager.contains(entity) ? entity : entityManager.merge(entity));
+            }
+        });
     }
 
+    /**
+     * Delete the entities with bulk {@code DELETE ... WHERE id IN (...)} statements, one per chunk of {@link #getBatchSize()} ids,
+     * in a single transaction.
+     * Bulk deletes bypass cascades and lifecycle callbacks: associations that reference the entities must be deleted first.
+     *
+     * @param entities The entities to delete.
+     */
     public void deleteAllInBatch(@NotNull Iterable<T> entities) {
         Preconditions.checkNotNull(entities, "entities");
 
-        if (!entities.iterator().hasNext()) {
-            return;
+        List<ID> ids = new ArrayList<>();
+        for (T entity : entities) {
+            ids.add(AnnotationsUtils.getEntityId(entity));
         }
 
-        // TODO This is not in batch
-        while (entities.iterator().hasNext()) {
-            entityManager.remove(entities.iterator().next());
+        if (ids.isEmpty()) return;
+
+        deleteInBatch(ids);
+        for (T entity : entities) {
+            if (entityManager.contains(entity)) entityManager.detach(entity);
         }
     }
 
+    /**
+     * Delete every entity with bulk deletes in a single transaction, without loading them:
+     * the rows of the other entities that reference them are deleted first, such as the members of the towns,
+     * then the entities themselves.
+     * Since the deleted entities can't be told apart in the persistence context, it is cleared afterward.
+     */
     public void deleteAll() {
-        List<T> entities = findAll();
-        deleteAll(entities);
+        inTransaction(() -> {
+            for (Reference reference : getReferences()) {
+                deleteReferencing(reference.entityClass(), reference.attribute());
+            }
+
+            entityManager.createQuery(String.format(DELETE_ALL_QUERY, entityName)).executeUpdate();
+        });
+
+        entityManager.clear();
     }
 
     public void deleteAllById(@NotNull Iterable<ID> ids) {
         Preconditions.checkNotNull(ids, "ids");
 
-        for (ID id : ids) {
-            deleteById(id);
-        }
+        deleteAll(findAllById(ids));
     }
 
+    /**
+     * Delete the entities with the given ids with bulk {@code DELETE ... WHERE id IN (...)} statements,
+     * one per chunk of {@link #getBatchSize()} ids, in a single transaction.
+     * Bulk deletes bypass cascades and lifecycle callbacks: associations that reference the entities must be deleted first.
+     * Since the deleted entities can't be told apart in the persistence context, it is cleared afterward.
+     *
+     * @param ids The ids of the entities to delete.
+     */
     public void deleteAllByIdInBatch(@NotNull Iterable<ID> ids) {
         Preconditions.checkNotNull(ids, "ids");
 
-        if (!ids.iterator().hasNext()) {
-            return;
-        }
+        if (!ids.iterator().hasNext()) return;
 
-        // TODO This is not in batch
-        while (ids.iterator().hasNext()) {
-            deleteById(ids.iterator().next());
-        }
+        deleteInBatch(ids);
+        entityManager.clear();
+    }
+
+    private void deleteInBatch(Iterable<ID> ids) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+
+        inTransaction(() -> {
+            for (List<ID> chunk : Iterables.partition(ids, batchSize)) {
+                CriteriaDelete<T> delete = builder.createCriteriaDelete(entityClass);
+                delete.where(delete.from(entityClass).get(idAttributeName).in(chunk));
+
+                entityManager.createQuery(delete).executeUpdate();
+            }
+        });
     }
 
+    /**
+     * Delete every entity with a single bulk delete.
+     * Bulk deletes bypass cascades and lifecycle callbacks: associations that reference the entities must be deleted first,
+     * see {@link #deleteAll()}.
+     */
     public void deleteAllInBatch() {
         Query query = entityManager.createQuery(String.format(DELETE_ALL_QUERY, entityName));
 
-        entityManager.getTransaction().begin();
+        inTransaction(query::executeUpdate);
+    }
 
-        try {
-            query.executeUpdate();
-            entityManager.getTransaction().commit();
-        } catch (Exception ignored) {
-            entityManager.getTransaction().rollback();
+    // Deletes the rows of an entity that reference any entity of this repository
+    private <C> void deleteReferencing(Class<C> referencingClass, String attribute) {
+        CriteriaDelete<C> delete = entityManager.getCriteriaBuilder().createCriteriaDelete(referencingClass);
+        delete.where(delete.from(referencingClass).get(attribute).isNotNull());
+
+        entityManager.createQuery(delete).executeUpdate();
+    }
+
+    /**
+     * Get the associations of the other entities that reference this entity with a foreign key, such as the town of a member.
+     *
+     * @return The referencing entities and attributes.
+     */
+    private List<Reference> getReferences() {
+        if (references == null) {
+            List<Reference> found = new ArrayList<>();
+
+            for (EntityType<?> type : entityManager.getMetamodel().getEntities()) {
+                if (type.getJavaType().equals(entityClass)) continue;
+
+                for (SingularAttribute<?, ?> attribute : type.getSingularAttributes()) {
+                    if (attribute.isAssociation() && attribute.getJavaType().equals(entityClass)) {
+                        found.add(new Reference(type.getJavaType(), attribute.getName()));
+                    }
+                }
+            }
+
+            references = List.copyOf(found);
         }
+
+        return references;
     }
 
     public Optional<T> findById(@NotNull ID id) {
@@ -125,6 +235,20 @@ public abstract class EntityRepository<T, ID> {
         return Optional.ofNullable(entityManager.find(entityClass, id));
     }
 
+    /**
+     * Find an entity by id, fetching the associations of a named entity graph.
+     *
+     * @param id          The id.
+     * @param entityGraph The name of the entity graph, or null to use the fetch types of the mapping.
+     * @return The entity, or empty if it doesn't exist.
+     */
+    public Optional<T> findById(@NotNull ID id, String entityGraph) {
+        Preconditions.checkNotNull(id, "id");
+
+        if (entityGraph == null) return findById(id);
+        return Optional.ofNullable(entityManager.find(entityClass, id, Map.of(FETCH_GRAPH_HINT, entityManager.getEntityGraph(entityGraph))));
+    }
+
     public boolean existsById(@NotNull ID id) {
         Preconditions.checkNotNull(id, "ids");
 
@@ -142,9 +266,16 @@ public abstract class EntityRepository<T, ID> {
     public List<T> findAllById(@NotNull Iterable<ID> ids) {
         Preconditions.checkNotNull(ids, "ids");
 
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
         List<T> entities = new ArrayList<>();
-        for (ID id : ids) {
-            findById(id).ifPresent(entities::add);
+
+        // One IN query per chunk, to stay below the bind parameter limit of the database
+        for (List<ID> chunk : Iterables.partition(ids, batchSize)) {
+            CriteriaQuery<T> query = builder.createQuery(entityClass);
+            Root<T> root = query.from(entityClass);
+            query.select(root).where(root.get(idAttributeName).in(chunk));
+
+            entities.addAll(entityManager.createQuery(query).getResultList());
         }
 
         return entities;
@@ -155,8 +286,19 @@ public abstract class EntityRepository<T, ID> {
     }
 
     public Optional<T> findOne(Specification<T> spec) {
+        return findOne(spec, Map.of());
+    }
+
+    /**
+     * Find the only entity matching a specification, binding the parameters declared by the specification.
+     *
+     * @param spec       The specification.
+     * @param parameters The values of the named parameters of the specification.
+     * @return The entity, or empty if none matches.
+     */
+    public Optional<T> findOne(Specification<T> spec, @NotNull Map<String, ?> parameters) {
         try {
-            return Optional.of(getQuery(spec, Sort.unsorted()).setMaxResults(2).getSingleResult());
+            return Optional.of(getQuery(spec, Sort.unsorted(), parameters).setMaxResults(2).getSingleResult());
         } catch (NoResultException ignored) {
             return Optional.empty();
         }
@@ -170,14 +312,200 @@ public abstract class EntityRepository<T, ID> {
         return getQuery(spec, sort).getResultList();
     }
 
+    /**
+     * Find the entities matching a specification as read-only projections, built with a constructor expression.
+     * Only the given attributes are selected and no entity is instantiated or managed by the persistence context.
+     *
+     * @param spec       The specification.
+     * @param sort       The sort.
+     * @param projection The projection type, usually a record, with a constructor matching the attributes.
+     * @param attributes The attributes passed to the constructor, in order. Nested attributes are separated by dots.
+     * @return The projections of the matching entities.
+     */
+    public <R> List<R> findAllProjected(Specification<T> spec, Sort sort, @NotNull Class<R> projection, @NotNull String... attributes) {
+        return getProjectionQuery(spec, sort, projection, attributes).getResultList();
+    }
+
+    /**
+     * Find the entities matching a specification, fetching the associations of a named entity graph.
+     *
+     * @param spec        The specification.
+     * @param sort        The sort.
+     * @param entityGraph The name of the entity graph, or null to use the fetch types of the mapping.
+     * @return The matching entities.
+     */
+    public List<T> findAll(Specification<T> spec, Sort sort, String entityGraph) {
+        return withEntityGraph(getQuery(spec, sort), entityGraph).getResultList();
+    }
+
+    /**
+     * Find the entities matching a specification, binding the parameters declared by the specification.
+     *
+     * @param spec       The specification.
+     * @param sort       The sort.
+     * @param parameters The values of the named parameters of the specification.
+     * @return The matching entities.
+     */
+    public List<T> findAll(Specification<T> spec, Sort sort, @NotNull Map<String, ?> parameters) {
+        return getQuery(spec, sort, parameters).getResultList();
+    }
+
+    public Stream<T> stream(Specification<T> spec, @NotNull Sort sort) {
+        return stream(spec, sort, batchSize);
+    }
+
+    /**
+     * Stream the entities matching a specification, for bulk jobs that would otherwise need to load every entity at once.
+     * Rows are read through a forward-only cursor, {@code fetchSize} rows at a time, by a separate read-only persistence context
+     * that is cleared every {@code fetchSize} entities, so memory usage doesn't depend on the number of entities.
+     * The streamed entities are detached copies, not the instances managed by this repository.
+     * The stream holds a database connection and must be closed, for example with try-with-resources.
+     *
+     * @param spec      The specification.
+     * @param sort      The sort.
+     * @param fetchSize The number of rows fetched per round-trip.
+     * @return The stream of entities.
+     */
+    @SuppressWarnings("unchecked")
+    public Stream<T> stream(Specification<T> spec, @NotNull Sort sort, int fetchSize) {
+        Preconditions.checkNotNull(sort, "sort");
+        Preconditions.checkArgument(fetchSize > 0, "Fetch size must be greater than 0");
+
+        CriteriaQuery<T> criteriaQuery = getCriteriaQuery(spec, entityClass, sort);
+        EntityManager streamEntityManager = entityManager.getEntityManagerFactory().createEntityManager();
+        ScrollableResults<T> results;
+
+        try {
+            // Some drivers, like PostgreSQL, only honour the fetch size inside a transaction
+            streamEntityManager.getTransaction().begin();
+
+            results = streamEntityManager.createQuery(criteriaQuery)
+                    .unwrap(org.hibernate.query.Query.class)
+                    .setReadOnly(true)
+                    .setFetchSize(fetchSize)
+                    .scroll(ScrollMode.FORWARD_ONLY);
+        } catch (RuntimeException e) {
+            if (streamEntityManager.getTransaction().isActive()) streamEntityManager.getTransaction().rollback();
+            streamEntityManager.close();
+            throw e;
+        }
+
+        Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            private int read;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                if (!results.next()) return false;
+
+                action.accept(results.get());
+                if (++read % fetchSize == 0) streamEntityManager.clear();
+                return true;
+            }
+        };
+
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            try {
+                results.close();
+            } finally {
+                if (streamEntityManager.getTransaction().isActive()) streamEntityManager.getTransaction().rollback();
+                streamEntityManager.close();
+            }
+        });
+    }
+
+    public Slice<T> findSlice(Specification<T> spec, @NotNull PageRequest request) {
+        return findSlice(spec, request, Map.of());
+    }
+
+    /**
+     * Find a slice of the entities matching a specification using keyset pagination.
+     * Instead of skipping rows with an offset, the query seeks past the sort values of the last element of the previous slice,
+     * so reading a deep slice costs the same as reading the first one.
+     * The sort properties must not be null.
+     *
+     * @param spec       The specification.
+     * @param request    The request, from {@link PageRequest#of(int, Sort)} or {@link Slice#next()}.
+     * @param parameters The values of the named parameters of the specification.
+     * @return The slice.
+     */
+    public Slice<T> findSlice(Specification<T> spec, @NotNull PageRequest request, @NotNull Map<String, ?> parameters) {
+        Preconditions.checkNotNull(request, "request");
+
+        Sort sort = withIdTieBreaker(request.sort());
+        boolean seek = !request.isFirst();
+
+        CriteriaQuery<Tuple> criteriaQuery = cachedCriteria(seek ? QueryKind.KEYSET_NEXT : QueryKind.KEYSET_FIRST, Tuple.class, spec, sort,
+                () -> getKeysetQuery(spec, sort, seek));
+        TypedQuery<Tuple> query = bind(entityManager.createQuery(criteriaQuery), parameters);
+
+        int keys = (int) sort.get().count();
+
+        if (seek) {
+            List<Object> values = request.keyset().values();
+            Preconditions.checkArgument(values.size() == keys, "Keyset doesn't match the sort of the request");
+
+            for (int i = 0; i < keys; i++) {
+                query.setParameter(KEYSET_PARAMETER + i, values.get(i));
+            }
+        }
+
+        List<Tuple> rows = query.setMaxResults(request.size() + 1).getResultList();
+        boolean hasNext = rows.size() > request.size();
+        if (hasNext) rows = rows.subList(0, request.size());
+
+        List<T> content = new ArrayList<>(rows.size());
+        for (Tuple row : rows) {
+            content.add(row.get(0, entityClass));
+        }
+
+        Keyset nextKeyset = null;
+        if (hasNext) {
+            Tuple last = rows.get(rows.size() - 1);
+            List<Object> values = new ArrayList<>(keys);
+
+            for (int i = 1; i <= keys; i++) {
+                Object value = last.get(i);
+                if (value == null) throw new IllegalStateException("Keyset pagination doesn't support null sort values");
+                values.add(value);
+            }
+
+            nextKeyset = new Keyset(values);
+        }
+
+        return new Slice<>(content, request, nextKeyset);
+    }
+
+    public Page<T> findPage(Specification<T> spec, @NotNull PageRequest request) {
+        return findPage(spec, request, Map.of());
+    }
+
+    /**
+     * Same as {@link #findSlice(Specification, PageRequest, Map)}, but also count the matching entities.
+     *
+     * @param spec       The specification.
+     * @param request    The request, from {@link PageRequest#of(int, Sort)} or {@link Slice#next()}.
+     * @param parameters The values of the named parameters of the specification.
+     * @return The page.
+     */
+    public Page<T> findPage(Specification<T> spec, @NotNull PageRequest request, @NotNull Map<String, ?> parameters) {
+        return new Page<>(findSlice(spec, request, parameters), count(spec, parameters));
+    }
+
     public boolean exists(Specification<T> spec) {
-        CriteriaQuery<Integer> criteriaQuery = entityManager.getCriteriaBuilder()
-                .createQuery(Integer.class)
-                .select(entityManager.getCriteriaBuilder().literal(1));
+        return exists(spec, Map.of());
+    }
+
+    public boolean exists(Specification<T> spec, @NotNull Map<String, ?> parameters) {
+        CriteriaQuery<Integer> criteriaQuery = cachedCriteria(QueryKind.EXISTS, Integer.class, spec, Sort.unsorted(), () -> {
+            CriteriaQuery<Integer> query = entityManager.getCriteriaBuilder()
+                    .createQuery(Integer.class)
+                    .select(entityManager.getCriteriaBuilder().literal(1));
 
-        applySpecificationToCriteria(spec, entityClass, criteriaQuery);
+            applySpecificationToCriteria(spec, entityClass, query);
+            return query;
+        });
 
-        TypedQuery<Integer> typedQuery = entityManager.createQuery(criteriaQuery);
+        TypedQuery<Integer> typedQuery = bind(entityManager.createQuery(criteriaQuery), parameters);
         return typedQuery.setMaxResults(1).getResultList().size() == 1;
     }
 
@@ -193,7 +521,7 @@ public abstract class EntityRepository<T, ID> {
             }
         }
 
-        return entityManager.createQuery(delete).executeUpdate();
+        return inTransaction(() -> entityManager.createQuery(delete).executeUpdate());
     }
 
     public long count() {
@@ -202,20 +530,31 @@ public abstract class EntityRepository<T, ID> {
     }
 
     public long count(Specification<T> spec) {
-        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
-        CriteriaQuery<Long> criteriaQuery = builder.createQuery(Long.class);
+        return count(spec, Map.of());
+    }
 
-        Root<T> root = applySpecificationToCriteria(spec, entityClass, criteriaQuery);
+    public long count(Specification<T> spec, @NotNull Map<String, ?> parameters) {
+        return count(entityManager, spec, parameters);
+    }
 
-        if (criteriaQuery.isDistinct()) {
-            criteriaQuery.select(builder.countDistinct(root));
-        } else {
-            criteriaQuery.select(builder.count(root));
-        }
+    protected long count(@NotNull EntityManager entityManager, Specification<T> spec, @NotNull Map<String, ?> parameters) {
+        CriteriaQuery<Long> criteriaQuery = cachedCriteria(QueryKind.COUNT, Long.class, spec, Sort.unsorted(), () -> {
+            CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+            CriteriaQuery<Long> query = builder.createQuery(Long.class);
+
+            Root<T> root = applySpecificationToCriteria(spec, entityClass, query);
+
+            if (query.isDistinct()) {
+                query.select(builder.countDistinct(root));
+            } else {
+                query.select(builder.count(root));
+            }
 
-        criteriaQuery.orderBy(Collections.emptyList());
+            query.orderBy(Collections.emptyList());
+            return query;
+        });
 
-        TypedQuery<Long> typedQuery = entityManager.createQuery(criteriaQuery);
+        TypedQuery<Long> typedQuery = bind(entityManager.createQuery(criteriaQuery), parameters);
 
         List<Long> totals = typedQuery.getResultList();
         long total = 0;
@@ -227,27 +566,239 @@ public abstract class EntityRepository<T, ID> {
         return total;
     }
 
+    /**
+     * Save a new or modified entity.
+     * If it can't be saved, the changes held by the persistence context are discarded and the entity must be read again.
+     *
+     * @param entity The entity.
+     * @param <S>    The type of the entity.
+     * @return The saved entity, or null if it violates a constraint of the database, such as a unique name.
+     * @throws RuntimeException If it can't be saved for any other reason, such as the database being unreachable.
+     */
     public <S extends T> S save(@NotNull S entity) {
         Preconditions.checkNotNull(entity, "entity");
 
+        try {
+            return doSave(entity);
+        } catch (RuntimeException e) {
+            // The rollback of the transaction has cleared the persistence context, unless it's owned by a surrounding unit of work
+            if (isOptimisticLockFailure(e)) onOptimisticLockConflict();
+            if (isConstraintViolation(e)) return null;
+            throw e;
+        }
+    }
+
+    /**
+     * Apply a mutation to an entity and save it. See {@link #update(Object, java.util.function.Predicate, Consumer)}.
+     *
+     * @param entity   The entity to update.
+     * @param mutation The mutation to apply. It may be called more than once, each time on a different instance.
+     * @return The saved entity.
+     * @throws EntityUpdateException If the mutation can't be saved.
+     */
+    public T update(@NotNull T entity, @NotNull Consumer<T> mutation) {
+        return update(entity, e -> true, mutation);
+    }
+
+    /**
+     * Apply a mutation to an entity and save it, if the precondition holds.
+     * If the entity has been modified concurrently, it is read again from the database, the precondition is checked again
+     * and the mutation is applied again to the fresh entity, up to the number of attempts of the {@link RetryPolicy}.
+     * <p>
+     * If the mutation can't be saved, the changes held by the persistence context are discarded and the entity is read again:
+     * the given instance must then be replaced with {@link EntityUpdateException#getCurrent()}.
+     * Within a unit of work, the exception is thrown right away, as the transaction can only be rolled back.
+     *
+     * @param entity       The entity to update.
+     * @param precondition The condition for the mutation to apply, such as the checks made before calling this method.
+     * @param mutation     The mutation to apply. It may be called more than once, each time on a different instance.
+     * @return The saved entity.
+     * @throws EntityUpdateException If the precondition doesn't hold or the mutation can't be saved.
+     */
+    public T update(@NotNull T entity, @NotNull java.util.function.Predicate<? super T> precondition, @NotNull Consumer<T> mutation) {
+        Preconditions.checkNotNull(entity, "entity");
+        Preconditions.checkNotNull(precondition, "precondition");
+        Preconditions.checkNotNull(mutation, "mutation");
+
         ID id = AnnotationsUtils.getEntityId(entity);
+        T current = entity;
 
-        entityManager.getTransaction().begin();
+        for (int attempt = 1; ; attempt++) {
+            if (!precondition.test(current)) throw new EntityUpdateException(EntityUpdateException.Reason.PRECONDITION_FAILED, current, null);
 
-        try {
-            if (id != null && findById(id).isPresent()) {
-                S result = entityManager.merge(entity);
-                entityManager.getTransaction().commit();
-                return result;
-            } else {
+            mutation.accept(current);
+
+            try {
+                return doSave(current);
+            } catch (RuntimeException e) {
+                boolean conflict = isOptimisticLockFailure(e);
+                if (conflict) onOptimisticLockConflict();
+
+                EntityUpdateException.Reason reason;
+                if (conflict) reason = EntityUpdateException.Reason.CONFLICT;
+                else if (isConstraintViolation(e)) reason = EntityUpdateException.Reason.CONSTRAINT_VIOLATION;
+                else reason = EntityUpdateException.Reason.FAILURE;
+
+                // A surrounding unit of work can only be rolled back now, it is up to its owner to run it again
+                if (TransactionUtils.isInTransaction(entityManager)) throw new EntityUpdateException(reason, null, e);
+
+                // Otherwise the mutated instance would be written by the next transaction
+                entityManager.clear();
+
+                T fresh;
+                try {
+                    fresh = entityManager.find(entityClass, id);
+                } catch (RuntimeException readFailure) {
+                    e.addSuppressed(readFailure);
+                    throw new EntityUpdateException(EntityUpdateException.Reason.FAILURE, null, e);
+                }
+
+                if (fresh == null) throw new EntityUpdateException(EntityUpdateException.Reason.NOT_FOUND, null, e);
+                if (!conflict || attempt >= retryPolicy.maxAttempts()) throw new EntityUpdateException(reason, fresh, e);
+
+                current = fresh;
+            }
+        }
+    }
+
+    /**
+     * Get the number of optimistic lock conflicts detected while saving entities of this repository.
+     *
+     * @return The number of conflicts.
+     */
+    public long getOptimisticLockConflicts() {
+        return optimisticLockConflicts.sum();
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the maximum number of ids bound to a single IN statement by the batch methods.
+     *
+     * @param batchSize The batch size.
+     */
+    public void setBatchSize(int batchSize) {
+        Preconditions.checkArgument(batchSize > 0, "Batch size must be greater than 0");
+
+        this.batchSize = batchSize;
+    }
+
+    public boolean isReplicaReads() {
+        return replicaReads;
+    }
+
+    /**
+     * Send the work of {@link #readOnly(Function)} to the read replicas. Only effective if the data source is a {@link RoutingDataSource}.
+     *
+     * @param replicaReads Whether to read from the replicas.
+     */
+    public void setReplicaReads(boolean replicaReads) {
+        this.replicaReads = replicaReads;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public void setRetryPolicy(@NotNull RetryPolicy retryPolicy) {
+        Preconditions.checkNotNull(retryPolicy, "retryPolicy");
+
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Run some work in the transaction of the surrounding unit of work, see {@link network.multicore.vt.persistence.Database#inTransaction(Supplier)},
+     * or in a transaction of its own if there is none. The operations of this repository are built on it.
+     *
+     * @param work The work.
+     * @param <R>  The type of the result.
+     * @return The result of the work.
+     * @throws jakarta.persistence.RollbackException If part of the work has failed or the transaction can't be committed.
+     */
+    public <R> R inTransaction(@NotNull Supplier<R> work) {
+        return TransactionUtils.inTransaction(entityManager, work);
+    }
+
+    public void inTransaction(@NotNull Runnable work) {
+        Preconditions.checkNotNull(work, "work");
+
+        inTransaction(() -> {
+            work.run();
+            return null;
+        });
+    }
+
+    private <S extends T> S doSave(S entity) {
+        return inTransaction(() -> {
+            // Decide from the entity state alone: probing the database first would cost a SELECT on every save
+            if (entityManager.contains(entity)) {
+                return entity;
+            } else if (AnnotationsUtils.isNew(entity)) {
                 entityManager.persist(entity);
-                entityManager.getTransaction().commit();
                 return entity;
+            } else {
+                // Merge also inserts entities with an assigned id that don't exist yet
+                return entityManager.merge(entity);
             }
-        } catch (Exception ignored) {
-            entityManager.getTransaction().rollback();
-            return null;
+        });
+    }
+
+    /**
+     * Run read-only work, such as lookups only meant to be displayed, on a read replica when {@link #isReplicaReads() enabled}.
+     * The work then gets its own short-lived entity manager, so that rows read from a replica, which may lag behind the primary,
+     * never end up in the shared persistence context: the entities it returns are detached, and only the associations
+     * it has loaded can be used. They are not stored in the second-level cache either.
+     * Otherwise, the work runs on the shared entity manager.
+     *
+     * @param work The work, given the entity manager to use.
+     * @param <R>  The type of the result.
+     * @return The result of the work.
+     */
+    protected <R> R readOnly(@NotNull Function<EntityManager, R> work) {
+        Preconditions.checkNotNull(work, "work");
+
+        if (!replicaReads) return work.apply(entityManager);
+
+        return RoutingDataSource.readOnly(() -> {
+            EntityManager readEntityManager = entityManager.getEntityManagerFactory().createEntityManager();
+
+            try {
+                readEntityManager.setProperty("jakarta.persistence.cache.storeMode", CacheStoreMode.BYPASS);
+                // The connection is acquired when the transaction begins, so it is taken from a replica
+                readEntityManager.getTransaction().begin();
+                R result = work.apply(readEntityManager);
+                readEntityManager.getTransaction().commit();
+                return result;
+            } finally {
+                if (readEntityManager.getTransaction().isActive()) readEntityManager.getTransaction().rollback();
+                readEntityManager.close();
+            }
+        });
+    }
+
+    private void onOptimisticLockConflict() {
+        optimisticLockConflicts.increment();
+        // The persistence context and the second-level cache hold the stale state, drop it so that the entity is read again
+        entityManager.clear();
+        entityManager.getEntityManagerFactory().getCache().evict(entityClass);
+    }
+
+    protected static boolean isConstraintViolation(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConstraintViolationException) return true;
+        }
+
+        return false;
+    }
+
+    private static boolean isOptimisticLockFailure(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OptimisticLockException || cause instanceof StaleStateException) return true;
         }
+
+        return false;
     }
 
     public <S extends T> List<S> saveAll(@NotNull Iterable<S> entities) {
@@ -262,23 +813,162 @@ public abstract class EntityRepository<T, ID> {
     }
 
     protected <S extends T> TypedQuery<S> getQuery(Specification<S> spec, Class<S> entityClass, Sort sort) {
-        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
-        CriteriaQuery<S> query = builder.createQuery(entityClass);
+        return entityManager.createQuery(getCriteriaQuery(spec, entityClass, sort));
+    }
 
-        Root<S> root = applySpecificationToCriteria(spec, entityClass, query);
-        query.select(root);
+    private <S extends T> CriteriaQuery<S> getCriteriaQuery(Specification<S> spec, Class<S> entityClass, Sort sort) {
+        Preconditions.checkNotNull(sort, "sort");
 
-        if (sort.isSorted()) {
-            query.orderBy(toOrders(sort, root, builder));
-        }
+        return cachedCriteria(QueryKind.SELECT, entityClass, spec, sort, () -> {
+            CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+            CriteriaQuery<S> query = builder.createQuery(entityClass);
 
-        return entityManager.createQuery(query);
+            Root<S> root = applySpecificationToCriteria(spec, entityClass, query);
+            query.select(root);
+
+            if (sort.isSorted()) {
+                query.orderBy(toOrders(sort, root, builder));
+            }
+
+            return query;
+        });
     }
 
     protected TypedQuery<T> getQuery(Specification<T> spec, Sort sort) {
         return getQuery(spec, entityClass, sort);
     }
 
+    protected TypedQuery<T> getQuery(Specification<T> spec, Sort sort, @NotNull Map<String, ?> parameters) {
+        return bind(getQuery(spec, entityClass, sort), parameters);
+    }
+
+    protected <R> TypedQuery<R> getProjectionQuery(Specification<T> spec, @NotNull Sort sort, @NotNull Class<R> projection, @NotNull String... attributes) {
+        return getProjectionQuery(entityManager, spec, sort, projection, attributes);
+    }
+
+    protected <R> TypedQuery<R> getProjectionQuery(@NotNull EntityManager entityManager, Specification<T> spec, @NotNull Sort sort, @NotNull Class<R> projection, @NotNull String... attributes) {
+        Preconditions.checkNotNull(sort, "sort");
+        Preconditions.checkNotNull(projection, "projection");
+        Preconditions.checkNotNull(attributes, "attributes");
+        Preconditions.checkArgument(attributes.length > 0, "Attributes must not be empty");
+
+        CriteriaQuery<R> criteriaQuery = cachedCriteria(QueryKind.PROJECTION, projection, List.of(attributes), spec, sort, () -> {
+            CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+            CriteriaQuery<R> query = builder.createQuery(projection);
+
+            Root<T> root = applySpecificationToCriteria(spec, entityClass, query);
+
+            Selection<?>[] selections = new Selection<?>[attributes.length];
+            for (int i = 0; i < attributes.length; i++) {
+                selections[i] = getPath(attributes[i], root);
+            }
+
+            query.select(builder.construct(projection, selections));
+
+            if (sort.isSorted()) {
+                query.orderBy(toOrders(sort, root, builder));
+            }
+
+            return query;
+        });
+
+        return entityManager.createQuery(criteriaQuery);
+    }
+
+    protected <R> TypedQuery<R> withEntityGraph(@NotNull TypedQuery<R> query, String entityGraph) {
+        Preconditions.checkNotNull(query, "query");
+
+        if (entityGraph == null) return query;
+        return query.setHint(FETCH_GRAPH_HINT, entityManager.getEntityGraph(entityGraph));
+    }
+
+    private Sort withIdTieBreaker(Sort sort) {
+        if (sort.getOrderFor(idAttributeName) != null) return sort;
+        return sort.and(Sort.by(Sort.Order.asc(idAttributeName)));
+    }
+
+    private CriteriaQuery<Tuple> getKeysetQuery(Specification<T> spec, Sort sort, boolean seek) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Tuple> query = builder.createTupleQuery();
+
+        Root<T> root = applySpecificationToCriteria(spec, entityClass, query);
+
+        // Select the sort values along with the entity, so that the keyset of the last row can be read without reflection
+        List<Selection<?>> selections = new ArrayList<>();
+        List<Expression<?>> keys = new ArrayList<>();
+        selections.add(root);
+
+        for (Sort.Order order : sort) {
+            Expression<?> key = toSortExpression(order, root, builder);
+            keys.add(key);
+            selections.add(key);
+        }
+
+        query.multiselect(selections);
+        query.orderBy(toOrders(sort, root, builder));
+
+        if (seek) {
+            Predicate seekPredicate = toKeysetPredicate(sort, keys, builder);
+            query.where(query.getRestriction() == null ? seekPredicate : builder.and(query.getRestriction(), seekPredicate));
+        }
+
+        return query;
+    }
+
+    /**
+     * Build {@code (k0 > v0) or (k0 = v0 and k1 > v1) or ...}, with {@code <} for descending keys.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Predicate toKeysetPredicate(Sort sort, List<Expression<?>> keys, CriteriaBuilder builder) {
+        List<Sort.Order> orders = sort.get().toList();
+        List<ParameterExpression<?>> values = new ArrayList<>(keys.size());
+
+        for (int i = 0; i < keys.size(); i++) {
+            values.add(builder.parameter(Primitives.wrap(keys.get(i).getJavaType()), KEYSET_PARAMETER + i));
+        }
+
+        List<Predicate> alternatives = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            List<Predicate> conjunction = new ArrayList<>(i + 1);
+
+            for (int j = 0; j < i; j++) {
+                conjunction.add(builder.equal(keys.get(j), values.get(j)));
+            }
+
+            Expression key = keys.get(i);
+            Expression value = values.get(i);
+            conjunction.add(orders.get(i).isAscending() ? builder.greaterThan(key, value) : builder.lessThan(key, value));
+
+            alternatives.add(builder.and(conjunction.toArray(new Predicate[0])));
+        }
+
+        return builder.or(alternatives.toArray(new Predicate[0]));
+    }
+
+    private <R> CriteriaQuery<R> cachedCriteria(QueryKind kind, Class<?> resultClass, Specification<?> spec, Sort sort, Supplier<CriteriaQuery<R>> factory) {
+        return cachedCriteria(kind, resultClass, List.of(), spec, sort, factory);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> CriteriaQuery<R> cachedCriteria(QueryKind kind, Class<?> resultClass, List<String> attributes, Specification<?> spec, Sort sort,
+                                                Supplier<CriteriaQuery<R>> factory) {
+        if (spec == null || !spec.isCacheable()) {
+            return factory.get();
+        }
+
+        return (CriteriaQuery<R>) criteriaCache.asMap().computeIfAbsent(new CriteriaKey(kind, resultClass, attributes, spec, sort), key -> factory.get());
+    }
+
+    private static <R> TypedQuery<R> bind(TypedQuery<R> query, @NotNull Map<String, ?> parameters) {
+        Preconditions.checkNotNull(parameters, "parameters");
+
+        for (Map.Entry<String, ?> parameter : parameters.entrySet()) {
+            query.setParameter(parameter.getKey(), parameter.getValue());
+        }
+
+        return query;
+    }
+
     private <S, U extends T> Root<U> applySpecificationToCriteria(Specification<U> spec, @NotNull Class<U> entityClass, @NotNull CriteriaQuery<S> query) {
         Preconditions.checkNotNull(entityClass, "entityClass");
         Preconditions.checkNotNull(query, "query");
@@ -315,15 +1005,20 @@ public abstract class EntityRepository<T, ID> {
         return orders;
     }
 
-    @SuppressWarnings("unchecked")
     private Order toJpaOrder(Sort.Order order, From<?, ?> from, CriteriaBuilder builder) {
+        Expression<?> expression = toSortExpression(order, from, builder);
+
+        return order.isAscending() ? builder.asc(expression) : builder.desc(expression);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Expression<?> toSortExpression(Sort.Order order, From<?, ?> from, CriteriaBuilder builder) {
         Path<?> propertyPath = getPath(order.getProperty(), from);
 
         if (order.isIgnoreCase() && propertyPath.getJavaType() == String.class) {
-            Expression<String> lower = builder.lower((Expression<String>) propertyPath);
-            return order.isAscending() ? builder.asc(lower) : builder.desc(lower);
+            return builder.lower((Expression<String>) propertyPath);
         } else {
-            return order.isAscending() ? builder.asc(propertyPath) : builder.desc(propertyPath);
+            return propertyPath;
         }
     }
 
@@ -337,4 +1032,19 @@ public abstract class EntityRepository<T, ID> {
 
         return path;
     }
+
+    private enum QueryKind {
+        SELECT,
+        COUNT,
+        EXISTS,
+        KEYSET_FIRST,
+        KEYSET_NEXT,
+        PROJECTION
+    }
+
+    private record CriteriaKey(QueryKind kind, Class<?> resultClass, List<String> attributes, Specification<?> spec, Sort sort) {
+    }
+
+    private record Reference(Class<?> entityClass, String attribute) {
+    }
 }
@@ -0,0 +1,70 @@
+package network.multicore.vt.persistence.entity;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Thrown when a change to an entity can't be saved, see {@link EntityRepository#update(Object, java.util.function.Predicate, java.util.function.Consumer)}.
+ * The instance the change was applied to must not be used anymore, since it may hold the change that hasn't been saved:
+ * {@link #getCurrent()} gives the entity as currently stored instead.
+ */
+public class EntityUpdateException extends RuntimeException {
+    private final Reason reason;
+    private final transient Object current;
+
+    public EntityUpdateException(@NotNull Reason reason, @Nullable Object current, @Nullable Throwable cause) {
+        super(Preconditions.checkNotNull(reason, "reason").getMessage(), cause);
+
+        this.reason = reason;
+        this.current = current;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * Get the entity as currently stored, read again after the failure.
+     *
+     * @param <T> The type of the entity.
+     * @return The entity, or null if it doesn't exist anymore or couldn't be read, as within a unit of work that can only be rolled back.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> @Nullable T getCurrent() {
+        return (T) current;
+    }
+
+    public enum Reason {
+        /**
+         * The entity doesn't exist anymore.
+         */
+        NOT_FOUND("Entity not found"),
+        /**
+         * The precondition of the change doesn't hold for the stored entity, which has been modified since it was read.
+         */
+        PRECONDITION_FAILED("Precondition not met"),
+        /**
+         * The entity kept being modified concurrently, and the attempts of the {@link RetryPolicy} are exhausted.
+         */
+        CONFLICT("Concurrent modification"),
+        /**
+         * The change violates a constraint of the storage, such as a unique name.
+         */
+        CONSTRAINT_VIOLATION("Constraint violation"),
+        /**
+         * Any other failure, such as the storage being unreachable.
+         */
+        FAILURE("Update failed");
+
+        private final String message;
+
+        Reason(String message) {
+            this.message = message;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package network.multicore.vt.persistence.entity;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Position of the last element of a slice: the values of its sort properties, followed by its id.
+ * The next slice is read by seeking past these values instead of skipping rows with an offset.
+ *
+ * @param values The values of the sort properties.
+ */
+public record Keyset(@NotNull List<Object> values) {
+
+    public Keyset {
+        Preconditions.checkNotNull(values, "values");
+
+        values = List.copyOf(values);
+    }
+}
@@ -0,0 +1,27 @@
+package network.multicore.vt.persistence.entity;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A slice of a keyset-paginated query, along with the total number of matching elements.
+ * Counting costs an extra query: prefer {@link Slice} when the total is not needed.
+ *
+ * @param <T> The type of the elements.
+ */
+public class Page<T> extends Slice<T> {
+    private final long totalElements;
+
+    Page(@NotNull Slice<T> slice, long totalElements) {
+        super(slice.getContent(), slice.getRequest(), slice.nextKeyset);
+
+        this.totalElements = totalElements;
+    }
+
+    public long getTotalElements() {
+        return totalElements;
+    }
+
+    public int getTotalPages() {
+        return (int) ((totalElements + getRequest().size() - 1) / getRequest().size());
+    }
+}
@@ -0,0 +1,40 @@
+package network.multicore.vt.persistence.entity;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Request for a slice of a keyset-paginated query.
+ * The first request has no keyset, the following ones are obtained with {@link Slice#next()}.
+ *
+ * @param page   The number of the page, starting from 0.
+ * @param size   The maximum number of elements of the page.
+ * @param sort   The sort. The id is always appended as the last sort property, so that the order is total.
+ * @param keyset The position of the last element of the previous page, or null for the first page.
+ */
+public record PageRequest(int page, int size, @NotNull Sort sort, @Nullable Keyset keyset) {
+
+    public PageRequest {
+        Preconditions.checkArgument(page >= 0, "Page must not be negative");
+        Preconditions.checkArgument(size > 0, "Size must be greater than 0");
+        Preconditions.checkNotNull(sort, "sort");
+        Preconditions.checkArgument(page == 0 || keyset != null, "Only the first page can be requested without a keyset");
+    }
+
+    public static PageRequest of(int size, @NotNull Sort sort) {
+        return new PageRequest(0, size, sort, null);
+    }
+
+    public static PageRequest of(int size) {
+        return of(size, Sort.unsorted());
+    }
+
+    public boolean isFirst() {
+        return keyset == null;
+    }
+
+    PageRequest next(@NotNull Keyset keyset) {
+        return new PageRequest(page + 1, size, sort, keyset);
+    }
+}
@@ -0,0 +1,18 @@
+package network.multicore.vt.persistence.entity;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * How many times {@link EntityRepository#update(Object, java.util.function.Consumer)} tries to apply a mutation
+ * when the entity is concurrently modified by someone else.
+ *
+ * @param maxAttempts The maximum number of attempts, including the first one.
+ */
+public record RetryPolicy(int maxAttempts) {
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3);
+    public static final RetryPolicy NONE = new RetryPolicy(1);
+
+    public RetryPolicy {
+        Preconditions.checkArgument(maxAttempts > 0, "Max attempts must be greater than 0");
+    }
+}
@@ -0,0 +1,65 @@
+package network.multicore.vt.persistence.entity;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A page of a keyset-paginated query, without the total number of elements.
+ *
+ * @param <T> The type of the elements.
+ */
+public class Slice<T> implements Iterable<T> {
+    private final List<T> content;
+    private final PageRequest request;
+    final Keyset nextKeyset;
+
+    Slice(@NotNull List<T> content, @NotNull PageRequest request, Keyset nextKeyset) {
+        Preconditions.checkNotNull(content, "content");
+        Preconditions.checkNotNull(request, "request");
+
+        this.content = List.copyOf(content);
+        this.request = request;
+        this.nextKeyset = nextKeyset;
+    }
+
+    public List<T> getContent() {
+        return content;
+    }
+
+    public PageRequest getRequest() {
+        return request;
+    }
+
+    public int getNumber() {
+        return request.page();
+    }
+
+    public boolean isEmpty() {
+        return content.isEmpty();
+    }
+
+    public boolean hasNext() {
+        return nextKeyset != null;
+    }
+
+    /**
+     * Get the request for the slice after this one.
+     *
+     * @return The request for the next slice.
+     * @throws IllegalStateException if this is the last slice.
+     */
+    public PageRequest next() throws IllegalStateException {
+        Preconditions.checkState(hasNext(), "This is the last slice");
+
+        return request.next(nextKeyset);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<T> iterator() {
+        return content.iterator();
+    }
+}
@@ -13,6 +13,14 @@ import java.util.stream.StreamSupport;
 public interface Specification<T> {
     Predicate toPredicate(@NotNull Root<T> root, @NotNull CriteriaQuery<?> query, @NotNull CriteriaBuilder criteriaBuilder);
 
+    /**
+     * @return Whether the repositories may cache the queries built from this specification
+     * @see #cacheable(Specification)
+     */
+    default boolean isCacheable() {
+        return false;
+    }
+
     default Specification<T> and(@NotNull Specification<T> other) {
         Preconditions.checkNotNull(other, "other");
 
@@ -25,6 +33,19 @@ public interface Specification<T> {
         return SpecificationComposer.composed(this, other, CriteriaBuilder::or);
     }
 
+    /**
+     * Mark a specification whose predicate never changes, such as a constant, so that the repositories build its queries once
+     * and reuse them. The values that change between calls must be bound as parameters instead of being captured.
+     *
+     * @param spec The specification to mark
+     * @return A specification with the same predicate, whose queries are cached
+     */
+    static <T> Specification<T> cacheable(@NotNull Specification<T> spec) {
+        Preconditions.checkNotNull(spec, "spec");
+
+        return SpecificationComposer.cacheable(spec);
+    }
+
     static <T> Specification<T> not(Specification<T> spec) {
         return spec == null ?
                 (root, query, builder) -> null :
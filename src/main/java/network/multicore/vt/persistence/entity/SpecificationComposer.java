@@ -1,7 +1,10 @@
 package network.multicore.vt.persistence.entity;
 
 import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
 import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import org.jetbrains.annotations.NotNull;
 
 import java.io.Serializable;
 
@@ -24,7 +27,24 @@ public class SpecificationComposer {
         };
     }
 
+    static <T> Specification<T> cacheable(Specification<T> spec) {
+        return spec.isCacheable() ? spec : new Cacheable<>(spec);
+    }
+
     interface Combiner extends Serializable {
         Predicate combine(CriteriaBuilder builder, Predicate left, Predicate right);
     }
+
+    private record Cacheable<T>(Specification<T> spec) implements Specification<T> {
+
+        @Override
+        public Predicate toPredicate(@NotNull Root<T> root, @NotNull CriteriaQuery<?> query, @NotNull CriteriaBuilder criteriaBuilder) {
+            return spec.toPredicate(root, query, criteriaBuilder);
+        }
+
+        @Override
+        public boolean isCacheable() {
+            return true;
+        }
+    }
 }
@@ -0,0 +1,78 @@
+package network.multicore.vt.persistence.entity.entities;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entities listed in the index generated at compile time by the EntityIndexProcessor annotation processor,
+ * which is only used by the build and not shipped with the plugin.
+ */
+public class IndexedEntities implements Entities {
+    /**
+     * The index resource, one binary class name per line. Must match the one written by EntityIndexProcessor.
+     */
+    public static final String INDEX_RESOURCE = "META-INF/jpa-entities.idx";
+    private final List<String> entities = new ArrayList<>();
+
+    public IndexedEntities(@NotNull ClassLoader classLoader, @NotNull String... packages) {
+        Preconditions.checkNotNull(classLoader, "classLoader");
+        Preconditions.checkNotNull(packages, "packages");
+
+        try (InputStream is = classLoader.getResourceAsStream(INDEX_RESOURCE)) {
+            if (is == null) throw new IllegalStateException("Entity index " + INDEX_RESOURCE + " not found");
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String entity = line.trim();
+                if (entity.isEmpty()) continue;
+                if (packages.length == 0 || Arrays.stream(packages).anyMatch(pkg -> entity.startsWith(pkg + "."))) entities.add(entity);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public IndexedEntities(@NotNull String... packages) {
+        this(Thread.currentThread().getContextClassLoader(), packages);
+    }
+
+    public static boolean isAvailable(@NotNull ClassLoader classLoader) {
+        Preconditions.checkNotNull(classLoader, "classLoader");
+
+        return classLoader.getResource(INDEX_RESOURCE) != null;
+    }
+
+    /**
+     * Get the entities from the compile time index or, if the index is missing, by scanning the packages with {@link PackageEntities}.
+     * The fallback requires Reflections to be on the classpath.
+     *
+     * @param classLoader The class loader to read the index from.
+     * @param packages    The packages containing the entities.
+     * @return The entities.
+     */
+    public static Entities indexedOrScanned(@NotNull ClassLoader classLoader, @NotNull String... packages) {
+        if (isAvailable(classLoader)) return new IndexedEntities(classLoader, packages);
+
+        try {
+            return new PackageEntities(classLoader, packages);
+        } catch (NoClassDefFoundError e) {
+            throw new IllegalStateException("Entity index " + INDEX_RESOURCE + " not found and Reflections is not available");
+        }
+    }
+
+    @Override
+    public List<String> getEntityClassNames() {
+        return List.copyOf(entities);
+    }
+}
@@ -0,0 +1,284 @@
+package network.multicore.vt.persistence.log;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+
+/**
+ * A file of records that are only ever appended, written through a memory mapping so that an append costs no system call.
+ * Each record is prefixed by its length and a checksum: reading stops at the first record that is missing or torn,
+ * so a crash can only lose the records that were being written. Mapped writes survive a crash of the server,
+ * but not of the operating system unless {@link #force()} has been called since.
+ * <p>
+ * The log is {@link #rewrite(Iterable) rewritten} to drop the records that are no longer needed. Every rewrite creates a new generation
+ * of the file, named <code>name.generation.log</code>, which is only used once complete. Older generations are deleted.
+ * <p>
+ * Not limited to any record format: the owner decides what the records contain. A log holds at most 2 GB.
+ */
+public class AppendOnlyLog implements Closeable {
+    private static final int MAGIC = 0x56544c47; // VTLG
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int INITIAL_CAPACITY = 1 << 20;
+    private final Path directory;
+    private final String name;
+    private final int formatVersion;
+    private final Pattern fileNamePattern;
+    private long generation;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int position;
+    private long records;
+
+    /**
+     * @param directory     The directory of the log files.
+     * @param name          The name of the log.
+     * @param formatVersion The version of the record format, checked when the log is opened.
+     */
+    public AppendOnlyLog(@NotNull File directory, @NotNull String name, int formatVersion) {
+        Preconditions.checkNotNull(directory, "directory");
+        Preconditions.checkNotNull(name, "name");
+        Preconditions.checkArgument(!name.isBlank(), "Name cannot be empty");
+
+        this.directory = directory.toPath();
+        this.name = name;
+        this.formatVersion = formatVersion;
+        this.fileNamePattern = Pattern.compile(Pattern.quote(name) + "\\.(\\d+)\\.log");
+    }
+
+    /**
+     * Open the log, creating it if needed, and read its records in order.
+     *
+     * @param reader Receives each record, as a read-only buffer that is only valid during the call.
+     * @throws IOException If the log can't be opened or has been written with another format version.
+     */
+    public synchronized void open(@NotNull Consumer<ByteBuffer> reader) throws IOException {
+        Preconditions.checkNotNull(reader, "reader");
+        Preconditions.checkState(channel == null, "Log already open");
+
+        Files.createDirectories(directory);
+        generation = 0;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, name + ".*")) {
+            for (Path file : files) {
+                Matcher matcher = fileNamePattern.matcher(file.getFileName().toString());
+                if (matcher.matches()) generation = Math.max(generation, Long.parseLong(matcher.group(1)));
+            }
+        }
+
+        if (generation == 0) {
+            generation = 1;
+            writeGeneration(generation, List.of());
+        }
+
+        map(getFile(generation));
+        deleteOtherGenerations();
+
+        if (buffer.getInt(0) != MAGIC) throw new IOException("Not a log file: " + getFile(generation));
+        if (buffer.getInt(4) != formatVersion) throw new IOException("Unsupported log format version " + buffer.getInt(4));
+
+        position = HEADER_SIZE;
+        records = 0;
+        CRC32C crc = new CRC32C();
+
+        while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > buffer.capacity()) break;
+
+            ByteBuffer record = buffer.slice(position + RECORD_HEADER_SIZE, length).asReadOnlyBuffer();
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) break;
+
+            reader.accept(record);
+            position += RECORD_HEADER_SIZE + length;
+            records++;
+        }
+
+        // Clear what is left of a torn record, so that the next appends can't be followed by a part of it
+        if (position + 4 <= buffer.capacity() && buffer.getInt(position) != 0) {
+            for (int i = position; i < buffer.capacity(); i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param record The content of the record, not empty.
+     * @throws IOException If the file can't be grown.
+     */
+    public synchronized void append(@NotNull byte[] record) throws IOException {
+        Preconditions.checkNotNull(record, "record");
+        Preconditions.checkArgument(record.length > 0, "Record must not be empty");
+        Preconditions.checkState(channel != null, "Log not open");
+
+        long end = (long) position + RECORD_HEADER_SIZE + record.length;
+        if (end > buffer.capacity()) grow(end);
+
+        CRC32C crc = new CRC32C();
+        crc.update(record);
+
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.put(position + RECORD_HEADER_SIZE, record);
+        // The length is written last: until then, the record ends the log
+        buffer.putInt(position, record.length);
+
+        position = (int) end;
+        records++;
+    }
+
+    /**
+     * Replace the content of the log with the given records, which must hold everything that is still needed.
+     * They are written to a new generation of the file, which replaces the current one once complete.
+     *
+     * @param newRecords The records.
+     * @throws IOException If the new generation can't be written. The current one is then kept.
+     */
+    public synchronized void rewrite(@NotNull Iterable<byte[]> newRecords) throws IOException {
+        Preconditions.checkNotNull(newRecords, "newRecords");
+        Preconditions.checkState(channel != null, "Log not open");
+
+        long count = writeGeneration(generation + 1, newRecords);
+        Path previous = getFile(generation);
+
+        buffer.force();
+        channel.close();
+        generation++;
+        map(getFile(generation));
+
+        // The mapping is larger than the written records
+        position = findEnd();
+        records = count;
+
+        try {
+            // Fails on Windows while the previous mapping hasn't been released, it is then deleted when the log is opened again
+            Files.deleteIfExists(previous);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Write the appended records to the disk.
+     */
+    public synchronized void force() {
+        if (buffer != null) buffer.force();
+    }
+
+    /**
+     * @return The number of bytes used by the records and the header.
+     */
+    public synchronized long size() {
+        return position;
+    }
+
+    /**
+     * @return The number of records in the log.
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null) return;
+
+        buffer.force();
+        buffer = null;
+        channel.close();
+        channel = null;
+    }
+
+    private long writeGeneration(long generation, Iterable<byte[]> newRecords) throws IOException {
+        Path file = getFile(generation);
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        long count = 0;
+
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(formatVersion).flip();
+            while (header.hasRemaining()) out.write(header);
+
+            CRC32C crc = new CRC32C();
+            for (byte[] record : newRecords) {
+                crc.reset();
+                crc.update(record);
+
+                ByteBuffer entry = ByteBuffer.allocate(RECORD_HEADER_SIZE + record.length)
+                        .putInt(record.length)
+                        .putInt((int) crc.getValue())
+                        .put(record)
+                        .flip();
+                while (entry.hasRemaining()) out.write(entry);
+                count++;
+            }
+
+            out.force(true);
+        }
+
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    private void map(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long capacity = Math.max(channel.size(), INITIAL_CAPACITY);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void grow(long end) throws IOException {
+        long capacity = Math.max((long) buffer.capacity() * 2, end);
+        if (capacity > Integer.MAX_VALUE) {
+            if (end > Integer.MAX_VALUE) throw new IOException("Log " + name + " is full");
+            capacity = Integer.MAX_VALUE;
+        }
+
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private int findEnd() {
+        int end = HEADER_SIZE;
+
+        while (end + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(end);
+            if (length <= 0) break;
+            end += RECORD_HEADER_SIZE + length;
+        }
+
+        return end;
+    }
+
+    private void deleteOtherGenerations() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, name + ".*")) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                Matcher matcher = fileNamePattern.matcher(fileName);
+                boolean stale = matcher.matches() ? Long.parseLong(matcher.group(1)) != generation : fileName.endsWith(".log.tmp");
+
+                if (stale) Files.deleteIfExists(file);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private Path getFile(long generation) {
+        return directory.resolve(name + "." + generation + ".log");
+    }
+}
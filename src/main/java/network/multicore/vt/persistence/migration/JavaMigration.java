@@ -0,0 +1,72 @@
+package network.multicore.vt.persistence.migration;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.SQLException;
+
+/**
+ * A migration written in Java, for changes that depend on the current state of the database
+ * or that can't be expressed in SQL portably.
+ */
+public class JavaMigration implements Migration {
+    private final int version;
+    private final String description;
+    private final Step step;
+    private final boolean repeatable;
+
+    private JavaMigration(int version, String description, Step step, boolean repeatable) {
+        Preconditions.checkNotNull(description, "description");
+        Preconditions.checkNotNull(step, "step");
+
+        this.version = version;
+        this.description = description;
+        this.step = step;
+        this.repeatable = repeatable;
+    }
+
+    public JavaMigration(int version, @NotNull String description, @NotNull Step step) {
+        this(version, description, step, false);
+
+        Preconditions.checkArgument(version > 0, "Version must be greater than 0");
+    }
+
+    /**
+     * Create a migration that runs at every migration. The step must do nothing if the schema is already up to date.
+     *
+     * @param description The description of the migration.
+     * @param step        The step.
+     * @return The migration.
+     */
+    public static JavaMigration repeatable(@NotNull String description, @NotNull Step step) {
+        return new JavaMigration(0, description, step, true);
+    }
+
+    @Override
+    public int getVersion() {
+        return version;
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public void migrate(@NotNull MigrationContext context) throws SQLException {
+        Preconditions.checkNotNull(context, "context");
+
+        step.migrate(context);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return repeatable;
+    }
+
+    @FunctionalInterface
+    public interface Step {
+
+        void migrate(@NotNull MigrationContext context) throws SQLException;
+    }
+}
@@ -0,0 +1,32 @@
+package network.multicore.vt.persistence.migration;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.SQLException;
+
+/**
+ * A versioned schema change, applied once by the {@link SchemaMigrator} and then recorded in the schema version table.
+ * Repeatable migrations instead run at every migration, after the versioned ones, to bring the schema in line with settings
+ * that can change at any time. They must check the current state first and do nothing when it is already right.
+ */
+public interface Migration {
+
+    /**
+     * @return The version of the schema after this migration. Versions must be unique and greater than 0, except for repeatable migrations.
+     */
+    int getVersion();
+
+    String getDescription();
+
+    /**
+     * Apply the migration. It runs in a transaction, which is committed along with the schema version record.
+     *
+     * @param context The context of the migration.
+     * @throws SQLException If the migration fails.
+     */
+    void migrate(@NotNull MigrationContext context) throws SQLException;
+
+    default boolean isRepeatable() {
+        return false;
+    }
+}
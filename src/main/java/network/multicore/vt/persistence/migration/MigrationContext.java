@@ -0,0 +1,144 @@
+package network.multicore.vt.persistence.migration;
+
+import com.google.common.base.Preconditions;
+import network.multicore.vt.persistence.UuidStorage;
+import network.multicore.vt.persistence.datasource.DataSourceType;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * What a {@link Migration} is applied with: the connection of its transaction, the database type
+ * and the placeholders that are replaced in the SQL statements, written as <code>${name}</code>.
+ *
+ * @param connection   The connection.
+ * @param type         The database type.
+ * @param uuidStorage  How UUID columns are stored.
+ * @param placeholders The placeholders: <code>prefix</code> (the tables prefix) and <code>uuid</code> (the UUID column type).
+ */
+public record MigrationContext(@NotNull Connection connection, @NotNull DataSourceType type, @NotNull UuidStorage uuidStorage, @NotNull Map<String, String> placeholders) {
+
+    public MigrationContext {
+        Preconditions.checkNotNull(connection, "connection");
+        Preconditions.checkNotNull(type, "type");
+        Preconditions.checkNotNull(uuidStorage, "uuidStorage");
+        Preconditions.checkNotNull(placeholders, "placeholders");
+
+        placeholders = Map.copyOf(placeholders);
+    }
+
+    /**
+     * Execute a statement after replacing its placeholders.
+     *
+     * @param sql The statement.
+     * @throws SQLException If the statement fails.
+     */
+    public void execute(@NotNull String sql) throws SQLException {
+        Preconditions.checkNotNull(sql, "sql");
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(resolve(sql));
+        }
+    }
+
+    /**
+     * Get the physical name of a table, including the tables prefix.
+     *
+     * @param name The name of the table.
+     * @return The physical name.
+     */
+    public String table(@NotNull String name) {
+        Preconditions.checkNotNull(name, "name");
+
+        return placeholders.getOrDefault("prefix", "") + name;
+    }
+
+    /**
+     * Check if a table exists.
+     *
+     * @param table The physical name of the table.
+     * @return true if the table exists.
+     * @throws SQLException If the metadata can't be read.
+     */
+    public boolean hasTable(@NotNull String table) throws SQLException {
+        Preconditions.checkNotNull(table, "table");
+
+        DatabaseMetaData metaData = connection.getMetaData();
+
+        try (ResultSet rs = metaData.getTables(connection.getCatalog(), connection.getSchema(), storedIdentifier(metaData, table), null)) {
+            return rs.next();
+        }
+    }
+
+    /**
+     * Check if a table has a column, ignoring the case the database stores identifiers in.
+     *
+     * @param table  The physical name of the table.
+     * @param column The name of the column.
+     * @return true if the column exists.
+     * @throws SQLException If the table doesn't exist.
+     */
+    public boolean hasColumn(@NotNull String table, @NotNull String column) throws SQLException {
+        Preconditions.checkNotNull(table, "table");
+        Preconditions.checkNotNull(column, "column");
+
+        // An empty result still describes the columns, which is portable and cheaper than DatabaseMetaData lookups
+        try (Statement statement = connection.createStatement(); ResultSet rs = statement.executeQuery("SELECT * FROM " + table + " WHERE 1 = 0")) {
+            ResultSetMetaData metaData = rs.getMetaData();
+
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                if (metaData.getColumnName(i).equalsIgnoreCase(column)) return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Check if a table has an index, including the ones backing primary keys, unique and foreign key constraints,
+     * whose first column is the given one. Such an index already serves the lookups on that column.
+     *
+     * @param table  The physical name of the table.
+     * @param column The name of the column.
+     * @return true if the column is indexed.
+     * @throws SQLException If the metadata can't be read.
+     */
+    public boolean hasIndex(@NotNull String table, @NotNull String column) throws SQLException {
+        Preconditions.checkNotNull(table, "table");
+        Preconditions.checkNotNull(column, "column");
+
+        DatabaseMetaData metaData = connection.getMetaData();
+
+        try (ResultSet rs = metaData.getIndexInfo(connection.getCatalog(), connection.getSchema(), storedIdentifier(metaData, table), false, false)) {
+            while (rs.next()) {
+                if (rs.getShort("ORDINAL_POSITION") == 1 && column.equalsIgnoreCase(rs.getString("COLUMN_NAME"))) return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static String storedIdentifier(DatabaseMetaData metaData, String identifier) throws SQLException {
+        // Metadata lookups are case-sensitive, and unquoted identifiers are stored in the case of the database
+        if (metaData.storesUpperCaseIdentifiers()) return identifier.toUpperCase(Locale.ROOT);
+        if (metaData.storesLowerCaseIdentifiers()) return identifier.toLowerCase(Locale.ROOT);
+        return identifier;
+    }
+
+    String resolve(String sql) {
+        String resolved = sql;
+
+        for (Map.Entry<String, String> placeholder : placeholders.entrySet()) {
+            resolved = resolved.replace("${" + placeholder.getKey() + "}", placeholder.getValue());
+        }
+
+        return resolved;
+    }
+}
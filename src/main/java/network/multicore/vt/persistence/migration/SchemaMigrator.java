@@ -0,0 +1,282 @@
+package network.multicore.vt.persistence.migration;
+
+import com.google.common.base.Preconditions;
+import network.multicore.vt.persistence.UuidStorage;
+import network.multicore.vt.persistence.datasource.DataSourceType;
+import org.jetbrains.annotations.NotNull;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Applies the pending {@link Migration}s of a database, in version order, and records each of them in a schema version table.
+ * Only the migrations newer than the recorded version are applied, so starting on an up-to-date database costs a single query
+ * instead of the full metadata introspection of hbm2ddl update. Repeatable migrations then run every time.
+ * <p>
+ * Each migration runs in its own transaction. Databases that commit DDL statements implicitly (MySQL, MariaDB)
+ * can't roll back a failed migration, so its statements should be safe to run again.
+ * <p>
+ * Servers sharing a database would otherwise apply the same migrations at the same time when started together:
+ * a migration run holds a lock row in the schema lock table, which the other servers wait for before reading the schema version.
+ * A lock left behind by a server that crashed while migrating is taken over once it is older than {@link #DEFAULT_LOCK_EXPIRY}.
+ */
+public class SchemaMigrator {
+    public static final String SCHEMA_VERSION_TABLE = "schema_version";
+    public static final String SCHEMA_LOCK_TABLE = "schema_lock";
+    public static final Duration DEFAULT_LOCK_EXPIRY = Duration.ofMinutes(10);
+    private static final int LOCK_ID = 1;
+    private static final long LOCK_POLL_MILLIS = 500;
+    private final DataSource dataSource;
+    private final DataSourceType type;
+    private final String tablesPrefix;
+    private final UuidStorage uuidStorage;
+    private Duration lockExpiry = DEFAULT_LOCK_EXPIRY;
+
+    public SchemaMigrator(@NotNull DataSource dataSource, @NotNull DataSourceType type, @NotNull String tablesPrefix, @NotNull UuidStorage uuidStorage) {
+        Preconditions.checkNotNull(dataSource, "dataSource");
+        Preconditions.checkNotNull(type, "type");
+        Preconditions.checkNotNull(tablesPrefix, "tablesPrefix");
+        Preconditions.checkNotNull(uuidStorage, "uuidStorage");
+
+        this.dataSource = dataSource;
+        this.type = type;
+        this.tablesPrefix = tablesPrefix;
+        this.uuidStorage = uuidStorage;
+    }
+
+    public SchemaMigrator(@NotNull DataSource dataSource, @NotNull DataSourceType type, @NotNull UuidStorage uuidStorage) {
+        this(dataSource, type, "", uuidStorage);
+    }
+
+    /**
+     * Set how old the lock of another migration run must be to be taken over. It must be longer than the longest migration.
+     *
+     * @param lockExpiry The age of the lock.
+     * @return This migrator.
+     */
+    public SchemaMigrator lockExpiry(@NotNull Duration lockExpiry) {
+        Preconditions.checkNotNull(lockExpiry, "lockExpiry");
+        Preconditions.checkArgument(!lockExpiry.isNegative() && !lockExpiry.isZero(), "Lock expiry must be positive");
+
+        this.lockExpiry = lockExpiry;
+        return this;
+    }
+
+    /**
+     * Apply the pending migrations.
+     *
+     * @param migrations The migrations, in any order.
+     * @return The versioned migrations that have been applied, in the order they have been applied.
+     * @throws IllegalStateException If a migration fails, or if the lock of another migration run can't be taken. The migrations applied before it stay applied.
+     */
+    public List<Migration> migrate(@NotNull Collection<? extends Migration> migrations) {
+        Preconditions.checkNotNull(migrations, "migrations");
+
+        List<Migration> sorted = new ArrayList<>(migrations.stream().filter(migration -> !migration.isRepeatable()).toList());
+        sorted.sort(Comparator.comparingInt(Migration::getVersion));
+
+        for (int i = 1; i < sorted.size(); i++) {
+            Preconditions.checkArgument(sorted.get(i).getVersion() != sorted.get(i - 1).getVersion(), "Duplicate migration version " + sorted.get(i).getVersion());
+        }
+
+        List<Migration> applied = new ArrayList<>();
+
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            // The lock row must be visible to the other servers as soon as it is written
+            connection.setAutoCommit(true);
+
+            try {
+                createSchemaVersionTable(connection);
+                createSchemaLockTable(connection);
+
+                String owner = acquireLock(connection);
+
+                try {
+                    // Read once the lock is held, another server may have applied migrations in the meantime
+                    int currentVersion = getCurrentVersion(connection);
+
+                    MigrationContext context = new MigrationContext(connection, type, uuidStorage, Map.of(
+                            "prefix", tablesPrefix,
+                            "uuid", uuidStorage.getColumnType(type)
+                    ));
+
+                    connection.setAutoCommit(false);
+
+                    try {
+                        for (Migration migration : sorted) {
+                            if (migration.getVersion() <= currentVersion) continue;
+
+                            apply(context, migration);
+                            applied.add(migration);
+                        }
+
+                        for (Migration migration : migrations) {
+                            if (migration.isRepeatable()) apply(context, migration);
+                        }
+                    } finally {
+                        connection.setAutoCommit(true);
+                    }
+                } finally {
+                    releaseLock(connection, owner);
+                }
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to migrate the database schema", e);
+        }
+
+        return applied;
+    }
+
+    /**
+     * Get the version of the database schema.
+     *
+     * @return The version of the last applied migration, or 0 if none has been applied.
+     */
+    public int getCurrentVersion() {
+        try (Connection connection = dataSource.getConnection()) {
+            createSchemaVersionTable(connection);
+            return getCurrentVersion(connection);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to read the database schema version", e);
+        }
+    }
+
+    private void apply(MigrationContext context, Migration migration) throws SQLException {
+        Connection connection = context.connection();
+        long start = System.nanoTime();
+
+        try {
+            migration.migrate(context);
+
+            if (migration.isRepeatable()) {
+                connection.commit();
+                return;
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement("INSERT INTO " + getSchemaVersionTable() + " (version, description, installed_on, execution_time) VALUES (?, ?, ?, ?)")) {
+                statement.setInt(1, migration.getVersion());
+                statement.setString(2, migration.getDescription());
+                statement.setTimestamp(3, Timestamp.from(Instant.now()));
+                statement.setLong(4, (System.nanoTime() - start) / 1_000_000);
+                statement.executeUpdate();
+            }
+
+            connection.commit();
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            String name = migration.isRepeatable() ? "Repeatable migration" : "Migration to version " + migration.getVersion();
+            throw new SQLException(name + " (" + migration.getDescription() + ") failed", e);
+        }
+    }
+
+    private void createSchemaVersionTable(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + getSchemaVersionTable() + " ("
+                    + "version integer not null, "
+                    + "description varchar(255) not null, "
+                    + "installed_on timestamp not null, "
+                    + "execution_time bigint not null, "
+                    + "primary key (version))");
+        }
+    }
+
+    private void createSchemaLockTable(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + getSchemaLockTable() + " ("
+                    + "id integer not null, "
+                    + "locked_by varchar(64) not null, "
+                    + "locked_at timestamp not null, "
+                    + "primary key (id))");
+        }
+    }
+
+    /**
+     * Take the lock row, waiting for the current holder to release it, or taking it over once it has expired.
+     *
+     * @return The owner written in the lock row, to release it.
+     */
+    private String acquireLock(Connection connection) throws SQLException {
+        String owner = UUID.randomUUID().toString();
+        // Waiting for longer than the expiry means that the lock is being taken over again and again
+        long deadline = System.nanoTime() + lockExpiry.multipliedBy(2).toNanos();
+
+        while (true) {
+            try (PreparedStatement statement = connection.prepareStatement("INSERT INTO " + getSchemaLockTable() + " (id, locked_by, locked_at) VALUES (?, ?, ?)")) {
+                statement.setInt(1, LOCK_ID);
+                statement.setString(2, owner);
+                statement.setTimestamp(3, Timestamp.from(Instant.now()));
+                statement.executeUpdate();
+                return owner;
+            } catch (SQLException e) {
+                // The primary key rejects the row while another run holds the lock, any other failure is rethrown
+                Lock holder = readLock(connection);
+                if (holder == null) throw e;
+
+                if (holder.lockedAt().plus(lockExpiry).isBefore(Instant.now())) {
+                    // Only the expired lock is deleted, not a lock taken over by another server in the meantime
+                    try (PreparedStatement statement = connection.prepareStatement("DELETE FROM " + getSchemaLockTable() + " WHERE id = ? AND locked_by = ?")) {
+                        statement.setInt(1, LOCK_ID);
+                        statement.setString(2, holder.owner());
+                        statement.executeUpdate();
+                    }
+                    continue;
+                }
+
+                if (System.nanoTime() > deadline) {
+                    throw new SQLException("Timed out waiting for the schema lock held by " + holder.owner() + " since " + holder.lockedAt()
+                            + ". Delete the row of " + getSchemaLockTable() + " if no server is migrating the database");
+                }
+            }
+
+            try {
+                Thread.sleep(LOCK_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for the schema lock", e);
+            }
+        }
+    }
+
+    private Lock readLock(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT locked_by, locked_at FROM " + getSchemaLockTable() + " WHERE id = ?")) {
+            statement.setInt(1, LOCK_ID);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? new Lock(rs.getString(1), rs.getTimestamp(2).toInstant()) : null;
+            }
+        }
+    }
+
+    private void releaseLock(Connection connection, String owner) {
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM " + getSchemaLockTable() + " WHERE id = ? AND locked_by = ?")) {
+            statement.setInt(1, LOCK_ID);
+            statement.setString(2, owner);
+            statement.executeUpdate();
+        } catch (SQLException ignored) {
+            // The connection is broken, the lock is taken over once expired
+        }
+    }
+
+    private int getCurrentVersion(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement(); ResultSet rs = statement.executeQuery("SELECT MAX(version) FROM " + getSchemaVersionTable())) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private String getSchemaVersionTable() {
+        return tablesPrefix + SCHEMA_VERSION_TABLE;
+    }
+
+    private String getSchemaLockTable() {
+        return tablesPrefix + SCHEMA_LOCK_TABLE;
+    }
+
+    private record Lock(String owner, Instant lockedAt) {
+    }
+}
@@ -0,0 +1,146 @@
+package network.multicore.vt.persistence.migration;
+
+import com.google.common.base.Preconditions;
+import network.multicore.vt.persistence.datasource.DataSourceType;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A migration written as a SQL script, with one version of the script per database type.
+ * Scripts are loaded from <code>migrations/&lt;type&gt;/&lt;script&gt;</code> on the classpath, where type is
+ * h2, mysql, mariadb, postgresql or sqlite. Statements are separated by semicolons, and comments are ignored,
+ * see {@link #parse(String)}.
+ */
+public class SqlMigration implements Migration {
+    private final int version;
+    private final String description;
+    private final String script;
+
+    public SqlMigration(int version, @NotNull String description, @NotNull String script) {
+        Preconditions.checkArgument(version > 0, "Version must be greater than 0");
+        Preconditions.checkNotNull(description, "description");
+        Preconditions.checkNotNull(script, "script");
+        Preconditions.checkArgument(!script.isBlank(), "Script cannot be empty");
+
+        this.version = version;
+        this.description = description;
+        this.script = script;
+    }
+
+    @Override
+    public int getVersion() {
+        return version;
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public void migrate(@NotNull MigrationContext context) throws SQLException {
+        Preconditions.checkNotNull(context, "context");
+
+        for (String statement : parse(load(context.type()))) {
+            context.execute(statement);
+        }
+    }
+
+    private String load(DataSourceType type) throws SQLException {
+        String path = "migrations/" + getScriptsDirectory(type) + "/" + script;
+
+        try (InputStream in = SqlMigration.class.getClassLoader().getResourceAsStream(path)) {
+            if (in == null) throw new SQLException("Migration script not found: " + path);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new SQLException("Failed to read migration script " + path, e);
+        }
+    }
+
+    /**
+     * Split a script into statements, on the semicolons that are outside of quotes and comments.
+     * Strings and quoted identifiers (single quotes, double quotes and backticks) are kept as they are, with a doubled quote
+     * standing for the quote itself. Line comments (<code>--</code>) and block comments are dropped,
+     * and whitespace outside of quotes is collapsed to single spaces.
+     *
+     * @param script The script.
+     * @return The statements, without their semicolons.
+     * @throws IllegalArgumentException If a quote or a block comment is not closed.
+     */
+    static List<String> parse(String script) {
+        List<String> statements = new ArrayList<>();
+        StringBuilder statement = new StringBuilder();
+        int length = script.length();
+        int i = 0;
+
+        while (i < length) {
+            char c = script.charAt(i);
+            char next = i + 1 < length ? script.charAt(i + 1) : 0;
+
+            if (c == '\'' || c == '"' || c == '`') {
+                int end = closingQuote(script, i);
+                statement.append(script, i, end + 1);
+                i = end + 1;
+            } else if (c == '-' && next == '-') {
+                int end = script.indexOf('\n', i);
+                i = end < 0 ? length : end;
+            } else if (c == '/' && next == '*') {
+                int end = script.indexOf("*/", i + 2);
+                if (end < 0) throw new IllegalArgumentException("Unterminated block comment at offset " + i);
+
+                appendSpace(statement);
+                i = end + 2;
+            } else if (c == ';') {
+                addStatement(statements, statement);
+                i++;
+            } else if (Character.isWhitespace(c)) {
+                appendSpace(statement);
+                i++;
+            } else {
+                statement.append(c);
+                i++;
+            }
+        }
+
+        addStatement(statements, statement);
+        return statements;
+    }
+
+    private static int closingQuote(String script, int start) {
+        char quote = script.charAt(start);
+
+        for (int i = start + 1; i < script.length(); i++) {
+            if (script.charAt(i) != quote) continue;
+            // A doubled quote is an escaped quote
+            if (i + 1 < script.length() && script.charAt(i + 1) == quote) {
+                i++;
+                continue;
+            }
+
+            return i;
+        }
+
+        throw new IllegalArgumentException("Unterminated quote at offset " + start);
+    }
+
+    private static void appendSpace(StringBuilder statement) {
+        if (!statement.isEmpty() && statement.charAt(statement.length() - 1) != ' ') statement.append(' ');
+    }
+
+    private static void addStatement(List<String> statements, StringBuilder statement) {
+        String trimmed = statement.toString().strip();
+        if (!trimmed.isEmpty()) statements.add(trimmed);
+        statement.setLength(0);
+    }
+
+    private static String getScriptsDirectory(DataSourceType type) {
+        return type == DataSourceType.H2_MEMORY ? "h2" : type.name().toLowerCase(Locale.ROOT);
+    }
+}
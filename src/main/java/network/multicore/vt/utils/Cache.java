@@ -2,23 +2,28 @@ package network.multicore.vt.utils;
 
 import network.multicore.vt.VanillaTowns;
 import network.multicore.vt.data.Town;
+import network.multicore.vt.data.TownFetchPlan;
 import network.multicore.vt.data.TownMember;
-import network.multicore.vt.data.TownRepository;
+import network.multicore.vt.data.TownStore;
+import network.multicore.vt.persistence.entity.EntityUpdateException;
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
 
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class Cache {
     private static Cache instance;
-    private final TownRepository townRepository;
+    private final VanillaTowns plugin;
     private final List<Town> towns = new CopyOnWriteArrayList<>();
 
     private Cache(VanillaTowns plugin) {
-        this.townRepository = plugin.townRepository();
+        this.plugin = plugin;
     }
 
     public static void init(VanillaTowns plugin) {
@@ -31,14 +36,20 @@ public class Cache {
     }
 
     public void loadTown(Player player) {
-        townRepository.findByMember(player.getUniqueId()).ifPresent(town -> {
+        plugin.townRepository().findByMember(player.getUniqueId()).ifPresent(town -> {
             TownMember member = town.getMember(player);
             if (!member.getName().equalsIgnoreCase(player.getName())) {
-                member.setName(player.getName());
-                town = townRepository.save(town);
+                try {
+                    town = plugin.townRepository().update(town, t -> t.getMember(player) != null, t -> t.getMember(player).setName(player.getName()));
+                } catch (EntityUpdateException e) {
+                    Text.severe("Cannot update the name of " + player.getName() + " in town " + town.getName() + ": " + e.getMessage());
+                    town = e.getCurrent();
+                    // The player has left the town in the meantime
+                    if (town == null || town.getMember(player) == null) return;
+                }
             }
 
-            towns.add(town);
+            addTown(town);
         });
     }
 
@@ -52,8 +63,20 @@ public class Cache {
         if (town.getMembers().stream().allMatch(member -> Bukkit.getPlayer(member.getUniqueId()) == null)) towns.remove(town);
     }
 
+    /**
+     * Drop every cached town and load again the towns of the online players.
+     * Used when the storage has been replaced and the cached entities belong to the old one.
+     */
+    public void reload() {
+        towns.clear();
+        Bukkit.getOnlinePlayers().forEach(player -> {
+            if (!isInTown(player)) loadTown(player);
+        });
+    }
+
     public void addTown(Town town) {
-        towns.add(town);
+        // Cached towns outlive the persistence context, make sure their members and home are loaded
+        towns.add(plugin.townRepository().initialize(town, TownFetchPlan.FULL));
     }
 
     public void removeTown(Town town) {
@@ -61,6 +84,8 @@ public class Cache {
     }
 
     public void updateTown(Town town) {
+        plugin.townRepository().initialize(town, TownFetchPlan.FULL);
+
         Town current = towns.stream()
                 .filter(t -> t.getId() == town.getId())
                 .findFirst()
@@ -73,6 +98,68 @@ public class Cache {
         }
     }
 
+    /**
+     * Apply a change to a town, see {@link network.multicore.vt.data.TownStore#update(Town, Predicate, Consumer)}, and cache the result.
+     * If the change can't be stored, the cached town is replaced with the town as currently stored, or dropped if it can't be read,
+     * so that the unsaved change is not kept in the cache.
+     *
+     * @param town         The cached town.
+     * @param precondition The condition for the change to apply.
+     * @param mutation     The change.
+     * @return The stored town.
+     * @throws EntityUpdateException If the precondition doesn't hold or the change can't be stored.
+     */
+    public Town update(@NotNull Town town, @NotNull Predicate<? super Town> precondition, @NotNull Consumer<Town> mutation) {
+        try {
+            Town updated = plugin.townRepository().update(town, precondition, mutation);
+            updateTown(updated);
+            return updated;
+        } catch (EntityUpdateException e) {
+            removeTown(town);
+
+            Town current = e.getCurrent();
+            if (current != null) addTown(current);
+
+            throw e;
+        }
+    }
+
+    /**
+     * Delete a town if the precondition holds for the town as currently stored, and drop it from the cache.
+     * The town is read again and deleted in a single unit of work, so that the balance returned is exactly the one deleted
+     * with it, even if the cached town is out of date.
+     * If it can't be deleted, the cached town is replaced with the town as currently stored, or dropped if it doesn't exist anymore.
+     *
+     * @param town         The cached town.
+     * @param precondition The condition for the deletion.
+     * @return The balance of the deleted town.
+     * @throws EntityUpdateException If the town doesn't exist anymore or the precondition doesn't hold.
+     * @throws RuntimeException      If the town can't be deleted.
+     */
+    public double delete(@NotNull Town town, @NotNull Predicate<? super Town> precondition) {
+        TownStore store = plugin.townRepository();
+
+        try {
+            double balance = store.inTransaction(() -> {
+                Town stored = store.findById(town.getId(), TownFetchPlan.FULL)
+                        .orElseThrow(() -> new EntityUpdateException(EntityUpdateException.Reason.NOT_FOUND, null, null));
+                if (!precondition.test(stored)) throw new EntityUpdateException(EntityUpdateException.Reason.PRECONDITION_FAILED, null, null);
+
+                store.delete(stored);
+                return stored.getBalance();
+            });
+
+            removeTown(town);
+            return balance;
+        } catch (EntityUpdateException e) {
+            removeTown(town);
+            // Read again, since the towns read within the unit of work can't be used after it has been rolled back
+            store.findById(town.getId(), TownFetchPlan.FULL).ifPresent(this::addTown);
+
+            throw e;
+        }
+    }
+
     public boolean isInTown(Player player) {
         return towns.stream().anyMatch(t -> t.getMember(player) != null);
     }
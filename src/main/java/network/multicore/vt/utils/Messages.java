@@ -12,7 +12,7 @@ import java.util.List;
 
 public class Messages {
     private static Messages instance;
-    private final Section messages;
+    private volatile Section messages;
 
     private Messages(VanillaTowns plugin) {
         this.messages = plugin.config().getSection("messages");
@@ -24,7 +24,9 @@ public class Messages {
     }
 
     public static void init(VanillaTowns plugin) {
-        instance = new Messages(plugin);
+        // Keep the same instance on reload, commands and listeners hold a reference to it
+        if (instance == null) instance = new Messages(plugin);
+        else instance.messages = plugin.config().getSection("messages");
     }
 
     public String get(String route) {
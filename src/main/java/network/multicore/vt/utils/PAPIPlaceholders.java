@@ -1,14 +1,12 @@
 package network.multicore.vt.utils;
 
-import dev.dejvokep.boostedyaml.YamlDocument;
 import me.clip.placeholderapi.expansion.PlaceholderExpansion;
 import network.multicore.vt.VanillaTowns;
 import network.multicore.vt.data.Town;
+import network.multicore.vt.data.TownFetchPlan;
 import network.multicore.vt.data.TownMember;
-import network.multicore.vt.data.TownRepository;
 import org.bukkit.Location;
 import org.bukkit.OfflinePlayer;
-import org.bukkit.plugin.Plugin;
 import org.jetbrains.annotations.NotNull;
 
 import java.text.DecimalFormat;
@@ -36,16 +34,12 @@ import java.util.Optional;
  * THE POSSIBILITY OF SUCH DAMAGE.
  */
 public class PAPIPlaceholders extends PlaceholderExpansion {
-    private final Plugin plugin;
+    private final VanillaTowns plugin;
     private final Cache cache = Cache.get();
     private final Messages messages = Messages.get();
-    private final YamlDocument config;
-    private final TownRepository townRepository;
 
     public PAPIPlaceholders(VanillaTowns plugin) {
         this.plugin = plugin;
-        this.config = plugin.config();
-        this.townRepository = plugin.townRepository();
     }
 
     @Override
@@ -74,39 +68,39 @@ public class PAPIPlaceholders extends PlaceholderExpansion {
         return switch (identifier) {
             case "town_name" -> {
                 Optional<Town> town = cache.getTown(player);
-                if (town.isEmpty()) town = townRepository.findByMember(player.getUniqueId());
+                if (town.isEmpty()) town = plugin.useTownStore(store -> store.findByMemberReadOnly(player.getUniqueId(), TownFetchPlan.FULL));
                 if (town.isPresent()) yield town.get().getName();
                 yield messages.get("no-town");
             }
             case "town_balance" -> {
                 Optional<Town> town = cache.getTown(player);
-                if (town.isEmpty()) town = townRepository.findByMember(player.getUniqueId());
+                if (town.isEmpty()) town = plugin.useTownStore(store -> store.findByMemberReadOnly(player.getUniqueId(), TownFetchPlan.FULL));
                 if (town.isPresent()) yield formatNumber(town.get().getBalance());
                 yield formatNumber(0);
             }
             case "town_role" -> {
                 Optional<Town> town = cache.getTown(player);
-                if (town.isEmpty()) town = townRepository.findByMember(player.getUniqueId());
+                if (town.isEmpty()) town = plugin.useTownStore(store -> store.findByMemberReadOnly(player.getUniqueId(), TownFetchPlan.FULL));
                 if (town.isEmpty()) yield "";
 
                 TownMember member = town.get().getMember(player.getUniqueId());
                 if (member == null) yield "";
 
-                yield config.getString("roles." + member.getRole().getName());
+                yield plugin.settings().roleName(member.getRole());
             }
             case "role_color" -> {
                 Optional<Town> town = cache.getTown(player);
-                if (town.isEmpty()) town = townRepository.findByMember(player.getUniqueId());
+                if (town.isEmpty()) town = plugin.useTownStore(store -> store.findByMemberReadOnly(player.getUniqueId(), TownFetchPlan.FULL));
                 if (town.isEmpty()) yield "";
 
                 TownMember member = town.get().getMember(player.getUniqueId());
                 if (member == null) yield "";
 
-                yield config.getString("colors." + member.getRole().getName());
+                yield plugin.settings().roleColor(member.getRole());
             }
             case "town_home_world" -> {
                 Optional<Town> town = cache.getTown(player);
-                if (town.isEmpty()) town = townRepository.findByMember(player.getUniqueId());
+                if (town.isEmpty()) town = plugin.useTownStore(store -> store.findByMemberReadOnly(player.getUniqueId(), TownFetchPlan.FULL));
                 if (town.isEmpty()) yield "";
                 if (town.get().getHome() == null) yield "";
 
@@ -116,7 +110,7 @@ public class PAPIPlaceholders extends PlaceholderExpansion {
             }
             case "town_home_x" -> {
                 Optional<Town> town = cache.getTown(player);
-                if (town.isEmpty()) town = townRepository.findByMember(player.getUniqueId());
+                if (town.isEmpty()) town = plugin.useTownStore(store -> store.findByMemberReadOnly(player.getUniqueId(), TownFetchPlan.FULL));
                 if (town.isEmpty()) yield "";
                 if (town.get().getHome() == null) yield "";
 
@@ -126,7 +120,7 @@ public class PAPIPlaceholders extends PlaceholderExpansion {
             }
             case "town_home_y" -> {
                 Optional<Town> town = cache.getTown(player);
-                if (town.isEmpty()) town = townRepository.findByMember(player.getUniqueId());
+                if (town.isEmpty()) town = plugin.useTownStore(store -> store.findByMemberReadOnly(player.getUniqueId(), TownFetchPlan.FULL));
                 if (town.isEmpty()) yield "";
                 if (town.get().getHome() == null) yield "";
 
@@ -136,7 +130,7 @@ public class PAPIPlaceholders extends PlaceholderExpansion {
             }
             case "town_home_z" -> {
                 Optional<Town> town = cache.getTown(player);
-                if (town.isEmpty()) town = townRepository.findByMember(player.getUniqueId());
+                if (town.isEmpty()) town = plugin.useTownStore(store -> store.findByMemberReadOnly(player.getUniqueId(), TownFetchPlan.FULL));
                 if (town.isEmpty()) yield "";
                 if (town.get().getHome() == null) yield "";
 
@@ -146,7 +140,7 @@ public class PAPIPlaceholders extends PlaceholderExpansion {
             }
             case "town_home_yaw" -> {
                 Optional<Town> town = cache.getTown(player);
-                if (town.isEmpty()) town = townRepository.findByMember(player.getUniqueId());
+                if (town.isEmpty()) town = plugin.useTownStore(store -> store.findByMemberReadOnly(player.getUniqueId(), TownFetchPlan.FULL));
                 if (town.isEmpty()) yield "";
                 if (town.get().getHome() == null) yield "";
 
@@ -156,7 +150,7 @@ public class PAPIPlaceholders extends PlaceholderExpansion {
             }
             case "town_home_pitch" -> {
                 Optional<Town> town = cache.getTown(player);
-                if (town.isEmpty()) town = townRepository.findByMember(player.getUniqueId());
+                if (town.isEmpty()) town = plugin.useTownStore(store -> store.findByMemberReadOnly(player.getUniqueId(), TownFetchPlan.FULL));
                 if (town.isEmpty()) yield "";
                 if (town.get().getHome() == null) yield "";
 
@@ -166,8 +160,8 @@ public class PAPIPlaceholders extends PlaceholderExpansion {
             }
             case "town_name_fancy" -> {
                 Optional<Town> town = cache.getTown(player);
-                if (town.isEmpty()) town = townRepository.findByMember(player.getUniqueId());
-                if (town.isPresent()) yield (config.getString("colors." + town.get().getMember(player.getUniqueId()).getRole().getName()) + town.get().getName() + "<reset> ");
+                if (town.isEmpty()) town = plugin.useTownStore(store -> store.findByMemberReadOnly(player.getUniqueId(), TownFetchPlan.FULL));
+                if (town.isPresent()) yield (plugin.settings().roleColor(town.get().getMember(player.getUniqueId()).getRole()) + town.get().getName() + "<reset> ");
                 yield messages.get("no-town");
             }
             default -> "";
@@ -0,0 +1,168 @@
+package network.multicore.vt.utils;
+
+import com.google.common.base.Preconditions;
+import network.multicore.vt.VanillaTowns;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the plugin permission nodes of every online player as a bitset, so that permission checks
+ * don't have to go through the permission plugin on every command, tab completion or chat message.
+ * Entries are computed on join and recomputed once they are older than the configured TTL.
+ */
+public class PermissionCache {
+    public static final String PLAYER = "vanillatowns.player";
+    public static final String STAFF = "vanillatowns.staff";
+    private static final String[] NODES = {
+            PLAYER,
+            STAFF,
+            "vanillatowns.town",
+            "vanillatowns.info",
+            "vanillatowns.info.others",
+            "vanillatowns.baltop",
+            "vanillatowns.create",
+            "vanillatowns.rename",
+            "vanillatowns.invite",
+            "vanillatowns.join",
+            "vanillatowns.kick",
+            "vanillatowns.give",
+            "vanillatowns.home",
+            "vanillatowns.home.edit",
+            "vanillatowns.balance",
+            "vanillatowns.balance.others",
+            "vanillatowns.deposit",
+            "vanillatowns.withdraw",
+            "vanillatowns.chat",
+            "vanillatowns.socialspy",
+            "vanillatowns.reload",
+            "vanillatowns.staff.info",
+            "vanillatowns.staff.invite",
+            "vanillatowns.staff.join",
+            "vanillatowns.staff.kick",
+            "vanillatowns.staff.rename",
+            "vanillatowns.staff.delete",
+            "vanillatowns.staff.roles",
+            "vanillatowns.staff.home",
+            "vanillatowns.staff.home.edit",
+            "vanillatowns.staff.instanttp",
+            "vanillatowns.staff.reload"
+    };
+    private static final Map<String, Long> MASKS = new HashMap<>();
+    private static final long PLAYER_MASK;
+    private static final long STAFF_MASK;
+    private static PermissionCache instance;
+    private final ConcurrentMap<UUID, Entry> entries = new ConcurrentHashMap<>();
+    private volatile long ttl;
+
+    static {
+        Preconditions.checkState(NODES.length <= Long.SIZE, "Too many permission nodes");
+
+        for (int i = 0; i < NODES.length; i++) {
+            MASKS.put(NODES[i], 1L << i);
+        }
+
+        PLAYER_MASK = MASKS.get(PLAYER);
+        STAFF_MASK = MASKS.get(STAFF);
+    }
+
+    private PermissionCache(VanillaTowns plugin) {
+        this.ttl = plugin.settings().permissionCacheTtl() * 1000;
+    }
+
+    public static void init(VanillaTowns plugin) {
+        if (instance == null) {
+            instance = new PermissionCache(plugin);
+        } else {
+            instance.ttl = plugin.settings().permissionCacheTtl() * 1000;
+            instance.invalidateAll();
+        }
+    }
+
+    public static PermissionCache get() {
+        if (instance == null) throw new IllegalStateException("PermissionCache has not been initialized");
+        return instance;
+    }
+
+    /**
+     * Check if the player has the permission or any of the player/staff permissions that inherit it.
+     *
+     * @param player     The player to check.
+     * @param permission The permission node.
+     * @return true if the player has the permission, the player permission or the staff permission.
+     */
+    public boolean hasPlayerPermission(@NotNull Player player, @NotNull String permission) {
+        return test(player, permission, PLAYER_MASK | STAFF_MASK);
+    }
+
+    /**
+     * Check if the player has the permission or the staff permission.
+     *
+     * @param player     The player to check.
+     * @param permission The permission node.
+     * @return true if the player has the permission or the staff permission.
+     */
+    public boolean hasStaffPermission(@NotNull Player player, @NotNull String permission) {
+        return test(player, permission, STAFF_MASK);
+    }
+
+    public void load(@NotNull Player player) {
+        Preconditions.checkNotNull(player, "player");
+
+        entries.put(player.getUniqueId(), compute(player));
+    }
+
+    public void unload(@NotNull Player player) {
+        Preconditions.checkNotNull(player, "player");
+
+        entries.remove(player.getUniqueId());
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    private boolean test(Player player, String permission, long inherited) {
+        Preconditions.checkNotNull(player, "player");
+        Preconditions.checkNotNull(permission, "permission");
+
+        long bits = bits(player);
+        Long mask = MASKS.get(permission);
+
+        if (mask == null) return (bits & inherited) != 0 || player.hasPermission(permission);
+        return (bits & (mask | inherited)) != 0;
+    }
+
+    private long bits(Player player) {
+        Entry entry = entries.get(player.getUniqueId());
+
+        if (entry == null || entry.isExpired()) {
+            entry = compute(player);
+            if (player.isOnline()) entries.put(player.getUniqueId(), entry);
+        }
+
+        return entry.bits();
+    }
+
+    private Entry compute(Player player) {
+        long bits = 0;
+
+        for (int i = 0; i < NODES.length; i++) {
+            if (player.hasPermission(NODES[i])) bits |= 1L << i;
+        }
+
+        return new Entry(bits, System.currentTimeMillis() + ttl);
+    }
+
+    private record Entry(long bits, long expiresAt) {
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package network.multicore.vt.utils;
+
+import com.google.common.base.Preconditions;
+import dev.dejvokep.boostedyaml.YamlDocument;
+import network.multicore.vt.data.TownRole;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Immutable typed view of config.yml.
+ * It is bound once when the config is loaded, so that hot paths read plain fields instead of walking the yaml tree.
+ */
+public record Settings(
+        Pattern townNamePattern,
+        double townCreationCost,
+        double townSethomeCost,
+        double townHomeTeleportCost,
+        int townHomeTeleportCooldown,
+        int townHomeTeleportCountdown,
+        Set<String> townHomeDimensionBlacklist,
+        long permissionCacheTtl,
+        boolean broadcastTownCreated,
+        boolean broadcastTownDeleted,
+        boolean broadcastTownRenamed,
+        boolean broadcastPlayerJoinedTown,
+        boolean broadcastPlayerLeftTown,
+        Map<TownRole, String> roleColors,
+        Map<TownRole, String> roleNames
+) {
+
+    public static Settings load(@NotNull YamlDocument config) throws IllegalArgumentException {
+        Preconditions.checkNotNull(config, "config");
+
+        Pattern townNamePattern;
+        try {
+            townNamePattern = Pattern.compile(config.getString("town-name-pattern"));
+        } catch (NullPointerException | PatternSyntaxException e) {
+            throw new IllegalArgumentException("Invalid town name pattern in config.yml");
+        }
+
+        Set<String> dimensionBlacklist = new HashSet<>();
+        config.getStringList("town-home-dimension-blacklist", List.of()).forEach(world -> dimensionBlacklist.add(world.toLowerCase(Locale.ROOT)));
+
+        Map<TownRole, String> roleColors = new EnumMap<>(TownRole.class);
+        Map<TownRole, String> roleNames = new EnumMap<>(TownRole.class);
+        for (TownRole role : TownRole.values()) {
+            roleColors.put(role, config.getString("colors." + role.getName(), ""));
+            roleNames.put(role, config.getString("roles." + role.getName(), role.getName()));
+        }
+
+        return new Settings(
+                townNamePattern,
+                config.getDouble("town-creation-cost", 0.0),
+                config.getDouble("town-sethome-cost", 0.0),
+                config.getDouble("town-home-teleport-cost", 0.0),
+                config.getInt("town-home-teleport-cooldown", 0),
+                config.getInt("town-home-teleport-countdown", 0),
+                Collections.unmodifiableSet(dimensionBlacklist),
+                Math.max(0, config.getLong("permission-cache-ttl", 10L)),
+                config.getBoolean("broadcasts.town-created", true),
+                config.getBoolean("broadcasts.town-deleted", true),
+                config.getBoolean("broadcasts.town-renamed", true),
+                config.getBoolean("broadcasts.player-joined-town", false),
+                config.getBoolean("broadcasts.player-left-town", false),
+                Collections.unmodifiableMap(roleColors),
+                Collections.unmodifiableMap(roleNames)
+        );
+    }
+
+    public boolean isDimensionBlacklisted(@NotNull String world) {
+        Preconditions.checkNotNull(world, "world");
+
+        return townHomeDimensionBlacklist.contains(world.toLowerCase(Locale.ROOT));
+    }
+
+    public String roleColor(@NotNull TownRole role) {
+        return roleColors.get(role);
+    }
+
+    public String roleName(@NotNull TownRole role) {
+        return roleNames.get(role);
+    }
+}
@@ -0,0 +1,33 @@
+-- Tables created by earlier versions through hbm2ddl are kept as they are
+CREATE TABLE IF NOT EXISTS ${prefix}towns (
+    id bigint generated by default as identity,
+    version bigint default 0 not null,
+    name varchar(255),
+    balance float(53) not null,
+    primary key (id)
+);
+
+CREATE TABLE IF NOT EXISTS ${prefix}town_members (
+    uuid ${uuid} not null,
+    version bigint default 0 not null,
+    town bigint,
+    name varchar(255),
+    role tinyint check (role between 0 and 2),
+    deposit boolean not null,
+    withdraw boolean not null,
+    primary key (uuid),
+    foreign key (town) references ${prefix}towns (id)
+);
+
+CREATE TABLE IF NOT EXISTS ${prefix}town_homes (
+    id bigint generated by default as identity,
+    town bigint unique,
+    world varchar(255),
+    x float(53) not null,
+    y float(53) not null,
+    z float(53) not null,
+    yaw float(24) not null,
+    pitch float(24) not null,
+    primary key (id),
+    foreign key (town) references ${prefix}towns (id)
+);
@@ -0,0 +1,33 @@
+-- Tables created by earlier versions through hbm2ddl are kept as they are
+CREATE TABLE IF NOT EXISTS ${prefix}towns (
+    id bigint not null auto_increment,
+    version bigint default 0 not null,
+    name varchar(255),
+    balance double precision not null,
+    primary key (id)
+) engine=InnoDB;
+
+CREATE TABLE IF NOT EXISTS ${prefix}town_members (
+    uuid ${uuid} not null,
+    version bigint default 0 not null,
+    town bigint,
+    name varchar(255),
+    role tinyint check (role between 0 and 2),
+    deposit bit not null,
+    withdraw bit not null,
+    primary key (uuid),
+    foreign key (town) references ${prefix}towns (id)
+) engine=InnoDB;
+
+CREATE TABLE IF NOT EXISTS ${prefix}town_homes (
+    id bigint not null auto_increment,
+    town bigint unique,
+    world varchar(255),
+    x double precision not null,
+    y double precision not null,
+    z double precision not null,
+    yaw float not null,
+    pitch float not null,
+    primary key (id),
+    foreign key (town) references ${prefix}towns (id)
+) engine=InnoDB;
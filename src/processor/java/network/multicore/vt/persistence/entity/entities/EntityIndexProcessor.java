@@ -0,0 +1,103 @@
+package network.multicore.vt.persistence.entity.entities;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Annotation processor that writes the names of all the classes annotated with @Entity to {@link #INDEX_RESOURCE}.
+ * The index is read at runtime by IndexedEntities, so that entities don't have to be found by scanning the classpath.
+ * <p>
+ * An incremental build only hands the recompiled classes to the processor: the entities of the previous index are kept
+ * as long as they still exist and are still annotated, so that the index always lists every entity.
+ * <p>
+ * This class must only depend on the JDK. It lives in its own source root, is compiled before the rest of the sources,
+ * and is left out of the plugin jar.
+ */
+// Also run when none of the recompiled classes is an entity, so that the entities that are not anymore are dropped from the index
+@SupportedAnnotationTypes("*")
+public class EntityIndexProcessor extends AbstractProcessor {
+    public static final String INDEX_RESOURCE = "META-INF/jpa-entities.idx";
+    static final String ENTITY_ANNOTATION = "jakarta.persistence.Entity";
+    private final Set<String> entities = new TreeSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement annotation = processingEnv.getElementUtils().getTypeElement(ENTITY_ANNOTATION);
+
+        if (annotation != null) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS) continue;
+                entities.add(processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString());
+            }
+        }
+
+        if (roundEnv.processingOver()) {
+            keepPreviousEntities();
+            writeIndex();
+        }
+
+        return false;
+    }
+
+    private void keepPreviousEntities() {
+        try {
+            FileObject file = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX_RESOURCE);
+
+            try (BufferedReader reader = new BufferedReader(file.openReader(true))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String entity = line.trim();
+                    if (!entity.isEmpty() && isEntity(entity)) entities.add(entity);
+                }
+            }
+        } catch (IOException ignored) {
+            // No previous index: this is a full build
+        }
+    }
+
+    private boolean isEntity(String binaryName) {
+        // Entities removed since the previous build are not found, and entities recompiled without the annotation are found from their source
+        TypeElement type = processingEnv.getElementUtils().getTypeElement(binaryName.replace('$', '.'));
+        if (type == null) return false;
+
+        for (AnnotationMirror annotation : type.getAnnotationMirrors()) {
+            if (((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().contentEquals(ENTITY_ANNOTATION)) return true;
+        }
+
+        return false;
+    }
+
+    private void writeIndex() {
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX_RESOURCE);
+
+            try (Writer writer = file.openWriter()) {
+                for (String entity : entities) {
+                    writer.write(entity);
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot write " + INDEX_RESOURCE + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package network.multicore.vt.data;
+
+import network.multicore.vt.persistence.entity.EntityUpdateException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogTownRepositoryTest {
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysTheLogWhenOpened() throws IOException {
+        UUID mayor = UUID.randomUUID();
+        long rome;
+
+        try (LogTownRepository repository = open()) {
+            Town town = repository.save(town("Rome", mayor));
+            town.restoreHome(new TownHome(town, "world", 1.5, 64, -3, 90, 0));
+            rome = repository.save(town).getId();
+
+            repository.deposit(town, 100);
+            repository.withdraw(town, 40);
+            repository.update(town, t -> t.setName("Roma"));
+            repository.delete(repository.save(town("Paris", UUID.randomUUID())));
+        }
+
+        try (LogTownRepository repository = open()) {
+            assertEquals(1, repository.count());
+
+            Town town = repository.findByName("roma").orElseThrow();
+            assertEquals(rome, town.getId());
+            assertEquals(60, town.getBalance());
+            assertEquals("world", town.getHome().getWorld());
+            assertEquals(town, repository.findByMember(mayor).orElseThrow());
+            assertFalse(repository.existsByName("Paris"));
+            assertFalse(repository.existsByName("Rome"));
+
+            // Ids are not reused after a delete
+            assertTrue(repository.save(town("Berlin", UUID.randomUUID())).getId() > rome + 1);
+        }
+    }
+
+    @Test
+    void dropsATornRecordAndAppendsAfterTheLastValidOne() throws IOException {
+        try (LogTownRepository repository = open()) {
+            repository.save(town("Rome", UUID.randomUUID()));
+            repository.save(town("Paris", UUID.randomUUID()));
+        }
+
+        // A crash while writing the last record leaves a wrong checksum
+        int last = lastRecord();
+        try (FileChannel channel = FileChannel.open(logFile(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer checksum = ByteBuffer.allocate(4);
+            channel.read(checksum, last + 4);
+            checksum.putInt(0, checksum.getInt(0) ^ 1).rewind();
+            channel.write(checksum, last + 4);
+        }
+
+        try (LogTownRepository repository = open()) {
+            assertTrue(repository.existsByName("Rome"));
+            assertFalse(repository.existsByName("Paris"));
+
+            repository.save(town("Berlin", UUID.randomUUID()));
+        }
+
+        try (LogTownRepository repository = open()) {
+            assertEquals(2, repository.count());
+            assertTrue(repository.existsByName("Berlin"));
+        }
+    }
+
+    @Test
+    void ignoresARecordCutShort() throws IOException {
+        try (LogTownRepository repository = open()) {
+            repository.save(town("Rome", UUID.randomUUID()));
+        }
+
+        // The length of a record longer than the rest of the file
+        int end = endOfRecords();
+        try (FileChannel channel = FileChannel.open(logFile(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, (int) channel.size()), end);
+        }
+
+        try (LogTownRepository repository = open()) {
+            assertEquals(1, repository.count());
+            repository.save(town("Paris", UUID.randomUUID()));
+        }
+
+        try (LogTownRepository repository = open()) {
+            assertEquals(2, repository.count());
+        }
+    }
+
+    @Test
+    void compactsTheLog() throws IOException {
+        long id;
+
+        try (LogTownRepository repository = open()) {
+            Town town = repository.save(town("Rome", UUID.randomUUID()));
+            id = town.getId();
+
+            for (int i = 0; i < 1500; i++) {
+                repository.deposit(town, 1);
+            }
+        }
+
+        // Compacted into a new generation, which replaces the first one
+        assertFalse(Files.exists(directory.resolve(LogTownRepository.LOG_NAME + ".1.log")));
+        assertTrue(Files.exists(directory.resolve(LogTownRepository.LOG_NAME + ".2.log")));
+
+        try (LogTownRepository repository = open()) {
+            Town town = repository.findById(id).orElseThrow();
+            assertEquals(1500, town.getBalance());
+            assertEquals(1500, town.getVersion());
+        }
+    }
+
+    @Test
+    void keepsTheIdsOfDeletedTownsAfterACompaction() throws IOException {
+        long paris;
+
+        try (LogTownRepository repository = open()) {
+            Town rome = repository.save(town("Rome", UUID.randomUUID()));
+            paris = repository.save(town("Paris", UUID.randomUUID())).getId();
+            repository.delete(repository.findById(paris).orElseThrow());
+
+            // Compacted, which drops the records of Paris
+            for (int i = 0; i < 1500; i++) {
+                repository.deposit(rome, 1);
+            }
+        }
+
+        assertTrue(Files.exists(directory.resolve(LogTownRepository.LOG_NAME + ".2.log")));
+
+        try (LogTownRepository repository = open()) {
+            assertFalse(repository.existsByName("Paris"));
+            assertTrue(repository.save(town("Berlin", UUID.randomUUID())).getId() > paris);
+        }
+    }
+
+    @Test
+    void failedUpdatesLeaveTheStoredTownUnchanged() throws IOException {
+        try (LogTownRepository repository = open()) {
+            Town rome = repository.save(town("Rome", UUID.randomUUID()));
+            UUID paris = repository.save(town("Paris", UUID.randomUUID())).getMayor().getUniqueId();
+
+            EntityUpdateException taken = assertThrows(EntityUpdateException.class, () -> repository.update(rome, t -> {
+                t.setName("PARIS");
+                t.deposit(10);
+            }));
+            assertEquals(EntityUpdateException.Reason.CONSTRAINT_VIOLATION, taken.getReason());
+
+            EntityUpdateException member = assertThrows(EntityUpdateException.class, () -> repository.update(rome,
+                    t -> t.getMembers().add(new TownMember(t, paris, "paris", TownRole.CITIZEN, false, false))));
+            assertEquals(EntityUpdateException.Reason.CONSTRAINT_VIOLATION, member.getReason());
+
+            EntityUpdateException precondition = assertThrows(EntityUpdateException.class, () -> repository.update(rome, t -> false, t -> t.setName("Roma")));
+            assertEquals(EntityUpdateException.Reason.PRECONDITION_FAILED, precondition.getReason());
+
+            Town stored = repository.findByName("rome").orElseThrow();
+            assertEquals("Rome", stored.getName());
+            assertEquals(0, stored.getBalance());
+            assertEquals(1, stored.getMembers().size());
+            assertEquals("Paris", repository.findByMember(paris).orElseThrow().getName());
+        }
+
+        try (LogTownRepository repository = open()) {
+            assertEquals(0, repository.findByName("Rome").orElseThrow().getBalance());
+        }
+    }
+
+    @Test
+    void updatesReplaceTheStoredTown() throws IOException {
+        try (LogTownRepository repository = open()) {
+            Town rome = repository.save(town("Rome", UUID.randomUUID()));
+            Town roma = repository.update(rome, t -> t.setName("Roma"));
+
+            assertEquals("Rome", rome.getName());
+            assertEquals(rome.getVersion() + 1, roma.getVersion());
+            assertEquals(roma, repository.findByName("Roma").orElseThrow());
+            assertNull(repository.findByName("Rome").orElse(null));
+            assertNotNull(repository.findByMember(roma.getMayor().getUniqueId()).orElse(null));
+        }
+    }
+
+    @Test
+    void writesAUnitOfWorkAsAWhole() throws IOException {
+        UUID mayor = UUID.randomUUID();
+
+        try (LogTownRepository repository = open()) {
+            Town rome = repository.save(town("Rome", mayor));
+            repository.deposit(rome, 50);
+
+            double deleted = repository.inTransaction(() -> {
+                Town stored = repository.findById(rome.getId()).orElseThrow();
+                repository.delete(stored);
+                repository.save(town("Paris", mayor));
+                return stored.getBalance();
+            });
+
+            assertEquals(50, deleted);
+        }
+
+        try (LogTownRepository repository = open()) {
+            assertEquals(1, repository.count());
+            assertEquals("Paris", repository.findByMember(mayor).orElseThrow().getName());
+        }
+    }
+
+    @Test
+    void discardsAFailedUnitOfWork() throws IOException {
+        UUID mayor = UUID.randomUUID();
+
+        try (LogTownRepository repository = open()) {
+            Town rome = repository.save(town("Rome", mayor));
+            repository.deposit(rome, 50);
+
+            assertThrows(IllegalStateException.class, () -> repository.inTransaction(() -> {
+                repository.withdraw(rome, 20);
+                repository.update(rome, t -> t.setName("Roma"));
+                repository.save(town("Paris", UUID.randomUUID()));
+                repository.delete(repository.findByName("Roma").orElseThrow());
+                throw new IllegalStateException("Refund failed");
+            }));
+
+            Town stored = repository.findByMember(mayor).orElseThrow();
+            assertEquals("Rome", stored.getName());
+            assertEquals(50, stored.getBalance());
+            assertFalse(repository.existsByName("Paris"));
+            assertEquals(stored.getId() + 1, repository.save(town("Berlin", UUID.randomUUID())).getId());
+        }
+
+        try (LogTownRepository repository = open()) {
+            assertEquals(2, repository.count());
+            assertEquals(50, repository.findByName("Rome").orElseThrow().getBalance());
+        }
+    }
+
+    @Test
+    void discardsAUnitOfWorkWhoseNestedPartHasFailed() throws IOException {
+        try (LogTownRepository repository = open()) {
+            assertThrows(IllegalStateException.class, () -> repository.inTransaction(() -> {
+                repository.save(town("Rome", UUID.randomUUID()));
+
+                try {
+                    repository.inTransaction(() -> {
+                        throw new IllegalArgumentException("Nested failure");
+                    });
+                } catch (IllegalArgumentException ignored) {
+                }
+            }));
+
+            assertEquals(0, repository.count());
+        }
+
+        try (LogTownRepository repository = open()) {
+            assertEquals(0, repository.count());
+        }
+    }
+
+    private LogTownRepository open() throws IOException {
+        LogTownRepository repository = new LogTownRepository(directory.toFile());
+        repository.open();
+        return repository;
+    }
+
+    private static Town town(String name, UUID mayor) {
+        Town town = new Town(0, 0, name, 0);
+        town.getMembers().add(new TownMember(town, mayor, name.toLowerCase(), TownRole.MAYOR, true, true));
+        return town;
+    }
+
+    private Path logFile() throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".log")).findFirst().orElseThrow();
+        }
+    }
+
+    private int lastRecord() throws IOException {
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(logFile()));
+        int last = -1;
+
+        for (int position = HEADER_SIZE; position + RECORD_HEADER_SIZE <= log.capacity() && log.getInt(position) > 0; position += RECORD_HEADER_SIZE + log.getInt(position)) {
+            last = position;
+        }
+
+        return last;
+    }
+
+    private int endOfRecords() throws IOException {
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(logFile()));
+        int position = HEADER_SIZE;
+
+        while (position + RECORD_HEADER_SIZE <= log.capacity() && log.getInt(position) > 0) {
+            position += RECORD_HEADER_SIZE + log.getInt(position);
+        }
+
+        return position;
+    }
+}
@@ -0,0 +1,105 @@
+package network.multicore.vt.persistence.datasource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class H2SnapshotsTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void restoresTheSnapshotInANewDatabase() throws SQLException, IOException {
+        File file = directory.resolve("snapshot.sql.gz").toFile();
+
+        JdbcDataSource first = database();
+        try (H2Snapshots snapshots = new H2Snapshots(first, file)) {
+            execute(first, "CREATE TABLE towns (id integer primary key, name varchar(64))");
+            execute(first, "INSERT INTO towns VALUES (1, 'Rome'), (2, 'O''Hara')");
+            snapshots.snapshot();
+        }
+
+        JdbcDataSource second = database();
+        try (H2Snapshots snapshots = new H2Snapshots(second, file)) {
+            assertTrue(snapshots.restore());
+            assertEquals(List.of("Rome", "O'Hara"), names(second));
+        }
+    }
+
+    @Test
+    void restoresNothingWithoutSnapshot() throws SQLException, IOException {
+        JdbcDataSource dataSource = database();
+
+        try (H2Snapshots snapshots = new H2Snapshots(dataSource, directory.resolve("missing.sql.gz").toFile())) {
+            assertFalse(snapshots.restore());
+        }
+    }
+
+    @Test
+    void replacesThePreviousSnapshot() throws SQLException, IOException {
+        File file = directory.resolve("snapshot.sql.gz").toFile();
+
+        JdbcDataSource first = database();
+        try (H2Snapshots snapshots = new H2Snapshots(first, file)) {
+            execute(first, "CREATE TABLE towns (id integer primary key, name varchar(64))");
+            execute(first, "INSERT INTO towns VALUES (1, 'Rome')");
+            snapshots.snapshot();
+            execute(first, "UPDATE towns SET name = 'Paris' WHERE id = 1");
+            snapshots.snapshot();
+        }
+
+        // The temporary files are moved over the snapshot
+        try (var files = Files.list(directory)) {
+            assertEquals(1, files.count());
+        }
+
+        JdbcDataSource second = database();
+        try (H2Snapshots snapshots = new H2Snapshots(second, file)) {
+            snapshots.restore();
+            assertEquals(List.of("Paris"), names(second));
+        }
+    }
+
+    private static JdbcDataSource database() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        // Dropped once the connection held by the snapshots is closed
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID());
+        return dataSource;
+    }
+
+    private static void execute(JdbcDataSource dataSource, String sql) throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    private static List<String> names(JdbcDataSource dataSource) throws SQLException {
+        List<String> names = new ArrayList<>();
+
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT name FROM towns ORDER BY id")) {
+            while (rs.next()) {
+                names.add(rs.getString(1));
+            }
+        }
+
+        return names;
+    }
+}
@@ -0,0 +1,134 @@
+package network.multicore.vt.persistence.datasource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RoutingDataSourceTest {
+    private JdbcDataSource primary;
+    private JdbcDataSource replica;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        primary = database("primary");
+        replica = database("replica");
+    }
+
+    @Test
+    void writesGoToThePrimary() throws SQLException {
+        RoutingDataSource routing = new RoutingDataSource(primary, List.of(replica), RoutingDataSource.Selection.ROUND_ROBIN);
+
+        try (Connection connection = routing.getConnection(); Statement statement = connection.createStatement()) {
+            assertEquals("primary", readName(connection));
+            statement.executeUpdate("INSERT INTO node (name) VALUES ('written')");
+        }
+
+        assertEquals(2, count(primary));
+        assertEquals(1, count(replica));
+    }
+
+    @Test
+    void readOnlyWorkGoesToTheReplica() throws SQLException {
+        RoutingDataSource routing = new RoutingDataSource(primary, List.of(replica), RoutingDataSource.Selection.ROUND_ROBIN);
+
+        try (Connection connection = RoutingDataSource.readOnly(() -> connect(routing))) {
+            assertEquals("replica", readName(connection));
+        }
+
+        // Only the connections acquired inside of the read-only work are routed
+        try (Connection connection = routing.getConnection()) {
+            assertEquals("primary", readName(connection));
+        }
+    }
+
+    @Test
+    void nestedReadOnlyWorkKeepsTheReplica() throws SQLException {
+        RoutingDataSource routing = new RoutingDataSource(primary, List.of(replica), RoutingDataSource.Selection.ROUND_ROBIN);
+
+        // The end of the nested work must not end the outer one
+        try (Connection connection = RoutingDataSource.readOnly(() -> {
+            RoutingDataSource.readOnly(() -> true);
+            return connect(routing);
+        })) {
+            assertEquals("replica", readName(connection));
+        }
+    }
+
+    @Test
+    void readOnlyWorkFallsBackToThePrimary() throws SQLException {
+        JdbcDataSource unreachable = new JdbcDataSource() {
+            @Override
+            public Connection getConnection() throws SQLException {
+                throw new SQLException("Replica down");
+            }
+        };
+        RoutingDataSource routing = new RoutingDataSource(primary, List.of(unreachable), RoutingDataSource.Selection.ROUND_ROBIN);
+
+        try (Connection connection = RoutingDataSource.readOnly(() -> connect(routing))) {
+            assertEquals("primary", readName(connection));
+        }
+    }
+
+    @Test
+    void leastConnectionsPicksTheIdleReplica() throws SQLException {
+        JdbcDataSource other = database("other");
+        RoutingDataSource routing = new RoutingDataSource(primary, List.of(replica, other), RoutingDataSource.Selection.LEAST_CONNECTIONS);
+
+        try (Connection first = RoutingDataSource.readOnly(() -> connect(routing))) {
+            String busy = readName(first);
+
+            for (int i = 0; i < 4; i++) {
+                try (Connection connection = RoutingDataSource.readOnly(() -> connect(routing))) {
+                    assertEquals(busy.equals("replica") ? "other" : "replica", readName(connection));
+                }
+            }
+        }
+    }
+
+    private static JdbcDataSource database(String name) throws SQLException {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        // Kept open between connections, and unique to each test
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE node (id integer auto_increment primary key, name varchar(16))");
+            statement.execute("INSERT INTO node (name) VALUES ('" + name + "')");
+        }
+
+        return dataSource;
+    }
+
+    private static Connection connect(DataSource dataSource) {
+        try {
+            return dataSource.getConnection();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String readName(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement(); ResultSet rs = statement.executeQuery("SELECT name FROM node ORDER BY id")) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+
+    private static int count(DataSource dataSource) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM node")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
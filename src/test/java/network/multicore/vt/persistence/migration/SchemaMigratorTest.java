@@ -0,0 +1,131 @@
+package network.multicore.vt.persistence.migration;
+
+import network.multicore.vt.persistence.UuidStorage;
+import network.multicore.vt.persistence.datasource.DataSourceType;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SchemaMigratorTest {
+    private JdbcDataSource dataSource;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new JdbcDataSource();
+        // Kept open between connections, and unique to each test
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+    }
+
+    @Test
+    void appliesPendingMigrationsOnce() {
+        AtomicInteger runs = new AtomicInteger();
+        List<Migration> migrations = List.of(
+                new JavaMigration(1, "first", context -> runs.incrementAndGet()),
+                new JavaMigration(2, "second", context -> context.execute("CREATE TABLE ${prefix}towns (id integer)"))
+        );
+
+        assertEquals(2, migrator().migrate(migrations).size());
+        assertEquals(0, migrator().migrate(migrations).size());
+        assertEquals(1, runs.get());
+        assertEquals(2, migrator().getCurrentVersion());
+    }
+
+    @Test
+    void concurrentRunsApplyEachMigrationOnce() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Migration> migrations = List.of(new JavaMigration(1, "slow", context -> {
+            runs.incrementAndGet();
+
+            try {
+                // Leaves time to the other run to find the lock taken
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            Future<List<Migration>> first = executor.submit(() -> {
+                start.await();
+                return migrator().migrate(migrations);
+            });
+            Future<List<Migration>> second = executor.submit(() -> {
+                start.await();
+                return migrator().migrate(migrations);
+            });
+
+            start.countDown();
+
+            assertEquals(1, first.get(30, TimeUnit.SECONDS).size() + second.get(30, TimeUnit.SECONDS).size());
+            assertEquals(1, runs.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void takesOverAnExpiredLock() throws SQLException {
+        migrator().migrate(List.of());
+        insertLock("crashed", Instant.now().minus(Duration.ofHours(1)));
+
+        List<Migration> applied = migrator().lockExpiry(Duration.ofMinutes(1)).migrate(List.of(new JavaMigration(1, "first", context -> {
+        })));
+
+        assertEquals(1, applied.size());
+        assertEquals(0, countLocks());
+    }
+
+    @Test
+    void releasesTheLockWhenAMigrationFails() throws SQLException {
+        List<Migration> migrations = List.of(new JavaMigration(1, "broken", context -> context.execute("NOT SQL")));
+
+        assertThrows(IllegalStateException.class, () -> migrator().migrate(migrations));
+        assertEquals(0, countLocks());
+        assertEquals(0, migrator().getCurrentVersion());
+    }
+
+    private SchemaMigrator migrator() {
+        return new SchemaMigrator(dataSource, DataSourceType.H2_MEMORY, "vt_", UuidStorage.BINARY);
+    }
+
+    private void insertLock(String owner, Instant lockedAt) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement("INSERT INTO vt_" + SchemaMigrator.SCHEMA_LOCK_TABLE + " (id, locked_by, locked_at) VALUES (1, ?, ?)")) {
+            statement.setString(1, owner);
+            statement.setTimestamp(2, Timestamp.from(lockedAt));
+            statement.executeUpdate();
+        }
+    }
+
+    private int countLocks() throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM vt_" + SchemaMigrator.SCHEMA_LOCK_TABLE)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package network.multicore.vt.persistence.migration;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SqlMigrationTest {
+
+    @Test
+    void splitsStatementsOnSemicolons() {
+        List<String> statements = SqlMigration.parse("""
+                CREATE TABLE a (id integer);
+                CREATE TABLE b (id integer); INSERT INTO b VALUES (1);
+                """);
+
+        assertEquals(List.of("CREATE TABLE a (id integer)", "CREATE TABLE b (id integer)", "INSERT INTO b VALUES (1)"), statements);
+    }
+
+    @Test
+    void joinsStatementsSpanningSeveralLines() {
+        List<String> statements = SqlMigration.parse("""
+                CREATE TABLE a (
+                    id integer,
+                    name varchar(64)
+                );
+                """);
+
+        assertEquals(List.of("CREATE TABLE a ( id integer, name varchar(64) )"), statements);
+    }
+
+    @Test
+    void keepsTheLastStatementWithoutSemicolon() {
+        assertEquals(List.of("SELECT 1", "SELECT 2"), SqlMigration.parse("SELECT 1;\nSELECT 2\n"));
+    }
+
+    @Test
+    void ignoresEmptyStatements() {
+        assertEquals(List.of("SELECT 1"), SqlMigration.parse(";;\n SELECT 1;\n;"));
+    }
+
+    @Test
+    void dropsLineComments() {
+        List<String> statements = SqlMigration.parse("""
+                -- Towns
+                CREATE TABLE a (id integer); -- trailing comment; not a statement
+                -- INSERT INTO a VALUES (1);
+                """);
+
+        assertEquals(List.of("CREATE TABLE a (id integer)"), statements);
+    }
+
+    @Test
+    void dropsBlockComments() {
+        List<String> statements = SqlMigration.parse("""
+                /* header;
+                   spanning lines */
+                SELECT /* inline; */ 1;
+                """);
+
+        assertEquals(List.of("SELECT 1"), statements);
+    }
+
+    @Test
+    void keepsSemicolonsAndCommentsInsideQuotes() {
+        List<String> statements = SqlMigration.parse("""
+                INSERT INTO a VALUES ('x;y', '-- not a comment', '/* nor this */');
+                SELECT "semi;colon" FROM `back;tick`;
+                """);
+
+        assertEquals(List.of(
+                "INSERT INTO a VALUES ('x;y', '-- not a comment', '/* nor this */')",
+                "SELECT \"semi;colon\" FROM `back;tick`"
+        ), statements);
+    }
+
+    @Test
+    void keepsWhitespaceInsideQuotes() {
+        assertEquals(List.of("SELECT 'a   b\nc'"), SqlMigration.parse("SELECT   'a   b\nc';"));
+    }
+
+    @Test
+    void handlesDoubledQuotes() {
+        List<String> statements = SqlMigration.parse("INSERT INTO a VALUES ('it''s; fine');\nSELECT 1;");
+
+        assertEquals(List.of("INSERT INTO a VALUES ('it''s; fine')", "SELECT 1"), statements);
+    }
+
+    @Test
+    void handlesWindowsLineEndings() {
+        assertEquals(List.of("SELECT 1", "SELECT 2"), SqlMigration.parse("-- comment\r\nSELECT 1;\r\nSELECT\r\n2;\r\n"));
+    }
+
+    @Test
+    void rejectsUnterminatedQuotes() {
+        assertThrows(IllegalArgumentException.class, () -> SqlMigration.parse("SELECT 'oops;"));
+    }
+
+    @Test
+    void rejectsUnterminatedBlockComments() {
+        assertThrows(IllegalArgumentException.class, () -> SqlMigration.parse("SELECT 1; /* oops"));
+    }
+}